@@ -1,77 +1,110 @@
 package edu.toronto.cs.propagation;
 
-import it.unimi.dsi.io.FastBufferedReader;
-import it.unimi.dsi.io.LineIterator;
-
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 import java.net.URL;
 import java.util.Iterator;
 import java.util.Vector;
 
 import edu.toronto.cs.propagation.util.ArcWithTimestamp;
+import edu.toronto.cs.propagation.util.Node;
+import edu.toronto.cs.propagation.util.NodeDictionary;
+import edu.toronto.cs.propagation.util.TabSeparatedFileParser;
 
 public class ObservationsIterator implements Iterator<PropagationHistory> {
-	
-	final LineIterator lineIterator;
-	
-	public ObservationsIterator(File file) {
+
+	final NodeDictionary dictionary;
+
+	final File file;
+
+	final TabSeparatedFileParser parser;
+
+	/**
+	 * Whether the current line of the parser has been read but not used yet.
+	 */
+	boolean pending = false;
+
+	boolean exhausted = false;
+
+	public ObservationsIterator(NodeDictionary dictionary, File file) {
+		this.dictionary = dictionary;
+		this.file = file;
 		try {
-			lineIterator = new LineIterator(new FastBufferedReader(new FileReader(file)));
+			parser = new TabSeparatedFileParser(file);
 		} catch (FileNotFoundException e) {
 			throw new IllegalArgumentException( "File not found: '" + file + "'");
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Can not read '" + file + "': " + e);
 		}
 	}
-	
-	public ObservationsIterator(String obsFilename) {
-		this(new File(obsFilename));
+
+	public ObservationsIterator(NodeDictionary dictionary, String obsFilename) {
+		this(dictionary, new File(obsFilename));
+	}
+
+	public ObservationsIterator(NodeDictionary dictionary, URL url) {
+		this(dictionary, new File(url.getFile()));
 	}
-	
-	public ObservationsIterator(URL url) {
-		this(new File(url.getFile()));
+
+	/**
+	 * Makes the next line of the file pending, unless there is one already.
+	 *
+	 * @return false if there are no more lines
+	 */
+	private boolean fill() {
+		if (!pending && !exhausted) {
+			try {
+				pending = parser.nextLine();
+				if (!pending) {
+					exhausted = true;
+					parser.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Can not read '" + file + "': " + e);
+			}
+		}
+		return pending;
 	}
 
 	public boolean hasNext() {
-		return lineIterator.hasNext() || (nextLine != null);
+		return fill();
 	}
-	
-	String nextLine = null;
 
 	public PropagationHistory next() {
 		String description = null;
 		Vector<ArcWithTimestamp> propagations = new Vector<ArcWithTimestamp>();
-		if (nextLine != null) { // we found an @ meme line or tab
-			if (nextLine.startsWith("@")) {
-				description = nextLine.substring(1).trim();
-			} else {
-				propagations.add(new ArcWithTimestamp(nextLine));
-			}
-			nextLine = null;
-		}
-		while (lineIterator.hasNext()) {
-			String str = lineIterator.next().toString();
-			if (str.startsWith("#")) {
+		while (fill()) {
+			int first = parser.firstByte();
+			if (first == '#') {
+				pending = false;
 				continue;
 			}
-			if (str.startsWith("@")) {
+			if (first == '@') {
 				if (propagations.size() > 0) {
-					nextLine = str;
+					// Starts the next history
 					return new PropagationHistory(description, propagations);
 				} else {
-					description = str.substring(1).trim();
+					description = parser.getLine().substring(1).trim();
+					pending = false;
 					continue;
 				}
 			}
-			if (str.startsWith("\t") && propagations.size() > 0 ) {
-				nextLine = str;
+			if (first == '\t' && propagations.size() > 0 ) {
 				return new PropagationHistory(description, propagations);
 			}
-			propagations.add(new ArcWithTimestamp(str));
+			propagations.add(readEvent());
+			pending = false;
 		}
 		return new PropagationHistory(description, propagations);
 	}
 
+	private ArcWithTimestamp readEvent() {
+		Node leader = parser.isEmpty(0) ? null : new Node(dictionary, parser.internNode(0, dictionary));
+		Node follower = parser.isEmpty(1) ? null : new Node(dictionary, parser.internNode(1, dictionary));
+		return new ArcWithTimestamp(leader, follower, parser.parseLong(2));
+	}
+
 	public void remove() {
 		throw new IllegalStateException("Can't do this operation");
 	}
@@ -1,34 +1,96 @@
 package edu.toronto.cs.propagation;
 
-import it.unimi.dsi.io.FastBufferedReader;
-import it.unimi.dsi.io.LineIterator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+import edu.toronto.cs.propagation.util.ArcWithTimestamp;
+import edu.toronto.cs.propagation.util.Node;
+import edu.toronto.cs.propagation.util.NodeDictionary;
+import edu.toronto.cs.propagation.util.TabSeparatedFileParser;
+
 /**
  * Provides an abstract way of iterating through a set of observations.
+ * <p>
+ * By default, observations read from a file are parsed again by every
+ * iterator. If they are read in memory, the file is parsed once into columns
+ * of primitive arrays (the leader, follower and timestamp of every event, and
+ * the offset of the first event of every action), which serve both the
+ * iterators and direct access through {@link #getActionOffsets()},
+ * {@link #getLeaderIds()}, {@link #getFollowerIds()} and
+ * {@link #getTimestamps()}.
  */
 public class ObservationsReader implements Iterable<PropagationHistory> {
 
 	File file;
+	NodeDictionary dictionary;
 	List<PropagationHistory> propagations;
 	int size = -1;
 
-	public ObservationsReader(String fileName) {
-		file = new File(fileName);
-		readSize();
+	/**
+	 * The events of action <em>i</em> are in positions actionOffsets[i] ..
+	 * actionOffsets[i+1]-1 of the other columns, sorted by timestamp; null
+	 * unless the observations were read in memory.
+	 */
+	int[] actionOffsets;
+	int[] leaderIds;
+	int[] followerIds;
+	long[] timestamps;
+	String[] descriptions;
+
+	/**
+	 * Reads observations from a file. The names of all the nodes appearing in
+	 * the file are added to the dictionary here, so the dictionary can be
+	 * frozen before iterating.
+	 * 
+	 * @param dictionary
+	 *            the node dictionary of the dataset
+	 * @param fileName
+	 *            the file containing the observations
+	 */
+	public ObservationsReader(NodeDictionary dictionary, String fileName) {
+		this(dictionary, new File(fileName), false);
+	}
+
+	/**
+	 * Reads observations from a file, optionally parsing them once into
+	 * memory.
+	 * 
+	 * @param dictionary
+	 *            the node dictionary of the dataset
+	 * @param fileName
+	 *            the file containing the observations
+	 * @param inMemory
+	 *            whether to keep the parsed observations in memory instead of
+	 *            parsing the file again on every iteration
+	 */
+	public ObservationsReader(NodeDictionary dictionary, String fileName, boolean inMemory) {
+		this(dictionary, new File(fileName), inMemory);
 	}
 
-	public ObservationsReader(URL url) {
-		file = new File(url.getFile());
-		readSize();
+	public ObservationsReader(NodeDictionary dictionary, URL url) {
+		this(dictionary, new File(url.getFile()), false);
+	}
+
+	private ObservationsReader(NodeDictionary dictionary, File file, boolean inMemory) {
+		this.dictionary = dictionary;
+		this.file = file;
+		if (inMemory) {
+			readColumns();
+		} else {
+			readSizeAndNodeNames();
+		}
 	}
 	
 	public ObservationsReader(List<PropagationHistory> propagations) {
@@ -48,9 +110,19 @@ public class ObservationsReader implements Iterable<PropagationHistory> {
 	}
 	
 
+	/**
+	 * @return the node dictionary of the observations, or null if they were
+	 *         not read from a file
+	 */
+	public NodeDictionary getNodeDictionary() {
+		return dictionary;
+	}
+
 	public Iterator<PropagationHistory> iterator() {
-		if (file != null) {
-			return new ObservationsIterator(file);
+		if (actionOffsets != null) {
+			return new ColumnsIterator();
+		} else if (file != null) {
+			return new ObservationsIterator(dictionary, file);
 		} else {
 			return propagations.iterator();
 		}
@@ -60,20 +132,249 @@ public class ObservationsReader implements Iterable<PropagationHistory> {
 		return size;
 	}
 
-	private void readSize() {
+	private void readSizeAndNodeNames() {
 		size = 0;
-		LineIterator lineIterator;
+		TabSeparatedFileParser parser = openParser();
 		try {
-			lineIterator = new LineIterator(new FastBufferedReader(
-					new FileReader(file)));
+			while (parser.nextLine()) {
+				int first = parser.firstByte();
+				if (first == '#' || first == '@') {
+					continue;
+				}
+				if (first == '\t') {
+					size++;
+				}
+				if (!parser.isEmpty(0)) {
+					parser.internNode(0, dictionary);
+				}
+				if (parser.numberOfFields() > 1 && !parser.isEmpty(1)) {
+					parser.internNode(1, dictionary);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Can not read '" + file + "': " + e);
+		} finally {
+			closeParser(parser);
+		}
+	}
+
+	private TabSeparatedFileParser openParser() {
+		try {
+			return new TabSeparatedFileParser(file);
 		} catch (FileNotFoundException e) {
 			throw new IllegalArgumentException("File not found: '" + file + "'");
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Can not read '" + file + "': " + e);
+		}
+	}
+
+	private static void closeParser(TabSeparatedFileParser parser) {
+		try {
+			parser.close();
+		} catch (IOException e) {
+			// Nothing was written
 		}
-		while (lineIterator.hasNext()) {
-			String str = lineIterator.next().toString();
-			if (str.startsWith("\t")) {
-				size++;
+	}
+
+	/**
+	 * @return whether the observations were parsed into memory, so the
+	 *         column arrays are available
+	 */
+	public boolean isInMemory() {
+		return actionOffsets != null;
+	}
+
+	/**
+	 * @return the offsets of the first event of every action in the other
+	 *         columns, followed by the total number of events; there is one
+	 *         more offset than actions. Must not be modified.
+	 */
+	public int[] getActionOffsets() {
+		checkInMemory();
+		return actionOffsets;
+	}
+
+	/**
+	 * @return the leader of every event, {@link Node#getNullId()} for the first
+	 *         event of every action. Must not be modified.
+	 */
+	public int[] getLeaderIds() {
+		checkInMemory();
+		return leaderIds;
+	}
+
+	/**
+	 * @return the follower of every event. Must not be modified.
+	 */
+	public int[] getFollowerIds() {
+		checkInMemory();
+		return followerIds;
+	}
+
+	/**
+	 * @return the timestamp of every event. Must not be modified.
+	 */
+	public long[] getTimestamps() {
+		checkInMemory();
+		return timestamps;
+	}
+
+	/**
+	 * @return the number of actions in the columns, which may differ from
+	 *         {@link #size()} only for malformed files
+	 */
+	public int sizeActions() {
+		checkInMemory();
+		return actionOffsets.length - 1;
+	}
+
+	private void checkInMemory() {
+		if (actionOffsets == null) {
+			throw new IllegalStateException("The observations were not read in memory");
+		}
+	}
+
+	/**
+	 * Parses the file once, with the same grouping of events into actions as
+	 * {@link ObservationsIterator}, and the same checks as
+	 * {@link PropagationHistory}. The node names are interned in the same
+	 * order as {@link #readSizeAndNodeNames()}.
+	 */
+	private void readColumns() {
+		size = 0;
+		IntArrayList offsets = new IntArrayList();
+		IntArrayList leaders = new IntArrayList();
+		IntArrayList followers = new IntArrayList();
+		LongArrayList times = new LongArrayList();
+		ObjectArrayList<String> actionDescriptions = new ObjectArrayList<String>();
+		String description = null;
+		offsets.add(0);
+		TabSeparatedFileParser parser = openParser();
+		try {
+			while (parser.nextLine()) {
+				int first = parser.firstByte();
+				if (first == -1 || first == '#') {
+					continue;
+				}
+				int actionBegin = offsets.getInt(offsets.size() - 1);
+				if (first == '@') {
+					if (followers.size() > actionBegin) {
+						offsets.add(followers.size());
+						actionDescriptions.add(description);
+					}
+					description = parser.getLine().substring(1).trim();
+					continue;
+				}
+				if (first == '\t') {
+					size++;
+					if (followers.size() > actionBegin) {
+						offsets.add(followers.size());
+						actionDescriptions.add(description);
+						description = null;
+					}
+				}
+				if (parser.numberOfFields() < 3) {
+					throw new IllegalArgumentException("Malformed event: '" + parser.getLine() + "'");
+				}
+				int leaderId = parser.isEmpty(0) ? Node.getNullId() : parser.internNode(0, dictionary);
+				int followerId = parser.isEmpty(1) ? Node.getNullId() : parser.internNode(1, dictionary);
+				if (leaderId == followerId) {
+					throw new IllegalArgumentException("Invalid event: '" + parser.getLine() + "'");
+				}
+				leaders.add(leaderId);
+				followers.add(followerId);
+				times.add(parser.parseLong(2));
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Can not read '" + file + "': " + e);
+		} finally {
+			closeParser(parser);
+		}
+		// Like the other actions, the last one is closed only if it has
+		// events, so every action of the columns has at least one
+		if (followers.size() > offsets.getInt(offsets.size() - 1)) {
+			offsets.add(followers.size());
+			actionDescriptions.add(description);
+		}
+
+		actionOffsets = offsets.toIntArray();
+		leaderIds = leaders.toIntArray();
+		followerIds = followers.toIntArray();
+		timestamps = times.toLongArray();
+		descriptions = actionDescriptions.toArray(new String[actionDescriptions.size()]);
+		for (int action = 0; action < actionOffsets.length - 1; action++) {
+			checkAction(action);
+		}
+	}
+
+	/**
+	 * Checks that the events of an action are consistent, as
+	 * {@link PropagationHistory} does. If they are not sorted by timestamp,
+	 * they are sorted by a {@link PropagationHistory}, and copied back.
+	 */
+	private void checkAction(int action) {
+		int begin = actionOffsets[action];
+		int end = actionOffsets[action + 1];
+		for (int i = begin + 1; i < end; i++) {
+			if (timestamps[i - 1] > timestamps[i]) {
+				PropagationHistory history = new PropagationHistory(descriptions[action], getEvents(action));
+				ObjectArrayList<ArcWithTimestamp> events = history.getEvents();
+				for (int j = 0; j < events.size(); j++) {
+					ArcWithTimestamp event = events.get(j);
+					leaderIds[begin + j] = event.getLeaderId();
+					followerIds[begin + j] = event.getFollowerId();
+					timestamps[begin + j] = event.getTimestamp();
+				}
+				return;
+			}
+		}
+		IntOpenHashSet active = new IntOpenHashSet(end - begin);
+		for (int i = begin; i < end; i++) {
+			if (leaderIds[i] != Node.getNullId() && !active.contains(leaderIds[i])) {
+				throw new IllegalArgumentException(
+						"This propagation could not have happened as the parent node was not active: "
+								+ new ArcWithTimestamp(dictionary, leaderIds[i], followerIds[i], timestamps[i]));
+			}
+			if (!active.add(followerIds[i])) {
+				throw new IllegalArgumentException(
+						"This propagation activates a node that was already active: "
+								+ new ArcWithTimestamp(dictionary, leaderIds[i], followerIds[i], timestamps[i]));
+			}
+		}
+	}
+
+	private ObjectArrayList<ArcWithTimestamp> getEvents(int action) {
+		int begin = actionOffsets[action];
+		int end = actionOffsets[action + 1];
+		ObjectArrayList<ArcWithTimestamp> events = new ObjectArrayList<ArcWithTimestamp>(end - begin);
+		for (int i = begin; i < end; i++) {
+			events.add(new ArcWithTimestamp(dictionary, leaderIds[i], followerIds[i], timestamps[i]));
+		}
+		return events;
+	}
+
+	/**
+	 * Iterates over the actions stored in the columns.
+	 */
+	private class ColumnsIterator implements Iterator<PropagationHistory> {
+
+		private int action = 0;
+
+		public boolean hasNext() {
+			return action < actionOffsets.length - 1;
+		}
+
+		public PropagationHistory next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
 			}
+			PropagationHistory history = PropagationHistory.fromCheckedEvents(descriptions[action], getEvents(action));
+			action++;
+			return history;
+		}
+
+		public void remove() {
+			throw new IllegalStateException("Can't do this operation");
 		}
 	}
 }
@@ -107,6 +107,19 @@ public class PropagationHistory {
 		this(null, reposts);
 	}
 
+	private PropagationHistory(ObjectArrayList<ArcWithTimestamp> events, String description) {
+		this.description = description;
+		this.events = events;
+	}
+
+	/**
+	 * Creates a propagation history from events that were already checked and
+	 * sorted by a previous instance, without checking them again.
+	 */
+	static PropagationHistory fromCheckedEvents(String description, ObjectArrayList<ArcWithTimestamp> events) {
+		return new PropagationHistory(events, description);
+	}
+
 	private boolean isSortedByNonDecreasingTimestamp() {
 		for (int i = 0; i < events.size() - 1; i++) {
 			if (events.get(i).getTimestamp() > events.get(i + 1).getTimestamp()) {
@@ -1,14 +1,15 @@
 package edu.toronto.cs.propagation;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.io.LineIterator;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
-
 import com.martiansoftware.jsap.FlaggedOption;
 import com.martiansoftware.jsap.JSAP;
 import com.martiansoftware.jsap.JSAPException;
@@ -18,7 +19,11 @@ import com.martiansoftware.jsap.SimpleJSAP;
 
 import edu.toronto.cs.propagation.ic.ICModel;
 import edu.toronto.cs.propagation.util.Arc;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
+import edu.toronto.cs.propagation.util.CSRGraph;
 import edu.toronto.cs.propagation.util.Node;
+import edu.toronto.cs.propagation.util.NodeDictionary;
+import edu.toronto.cs.propagation.util.TabSeparatedFileParser;
 import edu.toronto.cs.propagation.util.Utilities;
 
 /**
@@ -26,15 +31,44 @@ import edu.toronto.cs.propagation.util.Utilities;
  */
 public class SocialNetwork {
 
-	private TreeSet<Arc> arcs = new TreeSet<Arc>();
-
-	private TreeMap<Node, TreeSet<Arc>> followerArcs = new TreeMap<Node, TreeSet<Arc>>();
+	private final NodeDictionary dictionary;
 
-	private TreeMap<Node, TreeSet<Arc>> leaderArcs = new TreeMap<Node, TreeSet<Arc>>();
+	/**
+	 * The arcs and the nodes sorted by name, or null until they are first
+	 * requested if the network was read with a
+	 * {@link TabSeparatedFileParser}.
+	 */
+	private TreeSet<Arc> arcs = new TreeSet<Arc>();
 
 	private TreeSet<Node> nodes = new TreeSet<Node>();
 
+	/**
+	 * The adjacency of every node, in both directions, indexed by node id.
+	 */
+	private final CSRGraph graph;
+
+	/**
+	 * Reads a social network into a new node dictionary.
+	 * 
+	 * @param it
+	 *            an iterator over a list of tab-separated arcs
+	 */
 	public SocialNetwork(LineIterator it) {
+		this(new NodeDictionary(), it);
+	}
+
+	/**
+	 * Reads a social network, adding the names of its nodes to a dictionary.
+	 * Observations and probabilities for this network must use the same
+	 * dictionary.
+	 * 
+	 * @param dictionary
+	 *            the node dictionary of the dataset
+	 * @param it
+	 *            an iterator over a list of tab-separated arcs
+	 */
+	public SocialNetwork(NodeDictionary dictionary, LineIterator it) {
+		this.dictionary = dictionary;
 		while (it.hasNext()) {
 			String str = it.next().toString();
 			try {
@@ -42,8 +76,8 @@ public class SocialNetwork {
 					continue;
 				}
 				String[] tokens = str.split("\t");
-				Node leader = new Node(tokens[0]);
-				Node follower = new Node(tokens[1]);
+				Node leader = new Node(dictionary, tokens[0]);
+				Node follower = new Node(dictionary, tokens[1]);
 				Arc arc = new Arc(leader, follower);
 				if (!nodes.contains(leader)) {
 					nodes.add(leader);
@@ -53,28 +87,78 @@ public class SocialNetwork {
 				}
 				if (!arcs.contains(arc)) {
 					arcs.add(arc);
-					if (!followerArcs.containsKey(leader)) {
-						followerArcs.put(leader, new TreeSet<Arc>());
-					}
-					followerArcs.get(leader).add(arc);
-					if (!leaderArcs.containsKey(follower)) {
-						leaderArcs.put(follower, new TreeSet<Arc>());
-					}
-					leaderArcs.get(follower).add(arc);
 				}
 			} catch (IllegalArgumentException e) {
 				System.err.println(str);
 				e.printStackTrace();
 			}
 		}
+		graph = new CSRGraph(arcs);
+	}
+
+	/**
+	 * Reads a social network from a file, adding the names of its nodes to a
+	 * dictionary, with a {@link TabSeparatedFileParser}. The arcs are
+	 * collected as pairs of node ids, and the sets returned by
+	 * {@link #getArcs()} and {@link #getNodes()} are only created when they are
+	 * requested.
+	 * 
+	 * @param dictionary
+	 *            the node dictionary of the dataset
+	 * @param file
+	 *            a file with a list of tab-separated arcs
+	 */
+	public SocialNetwork(NodeDictionary dictionary, File file) throws IOException {
+		this.dictionary = dictionary;
+		this.arcs = null;
+		this.nodes = null;
+		IntArrayList leaders = new IntArrayList();
+		IntArrayList followers = new IntArrayList();
+		LongOpenHashSet seen = new LongOpenHashSet();
+		TabSeparatedFileParser parser = new TabSeparatedFileParser(file);
+		try {
+			while (parser.nextLine()) {
+				if (parser.firstByte() == '#') {
+					continue;
+				}
+				try {
+					int leaderId = parser.internNode(0, dictionary);
+					int followerId = parser.internNode(1, dictionary);
+					if (leaderId == followerId) {
+						throw new IllegalArgumentException("The members of the arc can not be equal: " + leaderId + "==" + followerId);
+					}
+					if (seen.add(((long) leaderId << 32) | followerId)) {
+						leaders.add(leaderId);
+						followers.add(followerId);
+					}
+				} catch (IllegalArgumentException e) {
+					System.err.println(parser.getLine());
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		graph = new CSRGraph(leaders.elements(), followers.elements(), leaders.size());
+	}
+
+	/**
+	 * Reads a social network from a file into a new node dictionary.
+	 * 
+	 * @param file
+	 *            a file with a list of tab-separated arcs
+	 */
+	public SocialNetwork(File file) throws IOException {
+		this(new NodeDictionary(), file);
 	}
 	
 	public SocialNetwork(ICModel model, double minProbability) {
-		SparseDoubleMatrix2D probs = model.getProbs();
-		TreeSet<Arc> selectedArcs = Utilities.getSortedArcsWithHighProbability(probs, minProbability);
+		dictionary = model.getSn().getNodeDictionary();
+		ArcProbabilities probs = model.getProbs();
+		TreeSet<Arc> selectedArcs = Utilities.getSortedArcsWithHighProbability(dictionary, probs, minProbability);
 		for (Arc arc: selectedArcs) {
-			Node leader = new Node(arc.getLeaderName());
-			Node follower = new Node(arc.getFollowerName());
+			Node leader = new Node(dictionary, arc.getLeaderId());
+			Node follower = new Node(dictionary, arc.getFollowerId());
 			if (!nodes.contains(leader)) {
 				nodes.add(leader);
 			}
@@ -83,52 +167,102 @@ public class SocialNetwork {
 			}
 			if (!arcs.contains(arc)) {
 				arcs.add(arc);
-				if (!followerArcs.containsKey(leader)) {
-					followerArcs.put(leader, new TreeSet<Arc>());
-				}
-				followerArcs.get(leader).add(arc);
-				if (!leaderArcs.containsKey(follower)) {
-					leaderArcs.put(follower, new TreeSet<Arc>());
-				}
-				leaderArcs.get(follower).add(arc);
 			}
 		}
+		graph = new CSRGraph(arcs);
 	}
 
 	public boolean containsNode(Node startNode) {
-		return nodes.contains(startNode);
+		return containsNode(startNode.getId());
+	}
+
+	/**
+	 * Checks if a node belongs to the social network; every node in the
+	 * network has at least one arc.
+	 * 
+	 * @param nodeid
+	 *            the id of the node
+	 * @return true iff the node is the leader or the follower of some arc
+	 */
+	public boolean containsNode(int nodeid) {
+		return graph.outDegree(nodeid) > 0 || graph.inDegree(nodeid) > 0;
 	}
 
 	public boolean containsNode(String nodeName) {
-		return containsNode(new Node(nodeName));
+		int nodeid = dictionary.getId(nodeName);
+		return nodeid > 0 && containsNode(nodeid);
 	}
 
 	public void dump() {
-		for (Arc arc : arcs) {
+		for (Arc arc : getArcs()) {
 			System.out.println(arc.getLeaderName() + "\t" + arc.getFollowerName());
 		}
 	}
 	
 	public void dump(PrintWriter pw) {
-		for (Arc arc : arcs) {
+		for (Arc arc : getArcs()) {
 			pw.println(arc.getLeaderName() + "\t" + arc.getFollowerName());
 		}
 	}
 
-	public TreeSet<Arc> getArcs() {
+	/**
+	 * Gets the dictionary defining the node ids of this social network.
+	 * 
+	 * @return the node dictionary
+	 */
+	public NodeDictionary getNodeDictionary() {
+		return dictionary;
+	}
+
+	public synchronized TreeSet<Arc> getArcs() {
+		if (arcs == null) {
+			arcs = new TreeSet<Arc>();
+			int[] followerIds = graph.getFollowerIds();
+			for (int arcId = 0; arcId < graph.sizeArcs(); arcId++) {
+				arcs.add(new Arc(dictionary, graph.getArcLeaderId(arcId), followerIds[arcId]));
+			}
+		}
 		return arcs;
 	}
 
-	public TreeSet<Node> getNodes() {
+	public synchronized TreeSet<Node> getNodes() {
+		if (nodes == null) {
+			nodes = new TreeSet<Node>();
+			for (int nodeId = 0; nodeId <= graph.getMaxNodeId(); nodeId++) {
+				if (containsNode(nodeId)) {
+					nodes.add(new Node(dictionary, nodeId));
+				}
+			}
+		}
 		return nodes;
 	}
 
+	/**
+	 * @return the number of nodes with at least one arc
+	 */
 	public int sizeNodes() {
-		return nodes.size();
+		int size = 0;
+		for (int nodeId = 0; nodeId <= graph.getMaxNodeId(); nodeId++) {
+			if (containsNode(nodeId)) {
+				size++;
+			}
+		}
+		return size;
 	}
 
 	public int sizeArcs() {
-		return arcs.size();
+		return graph.sizeArcs();
+	}
+
+	/**
+	 * Gets the adjacency of the social network in compressed sparse row
+	 * format. Prefer this over {@link #getFollowers(int)} and
+	 * {@link #getLeaders(int)} in inner loops, as it does not allocate.
+	 * 
+	 * @return the graph, indexed by node id
+	 */
+	public CSRGraph getGraph() {
+		return graph;
 	}
 
 	/**
@@ -139,15 +273,37 @@ public class SocialNetwork {
 	 * @return a set of people represented as edges in the social network
 	 */
 	public TreeSet<Arc> getFollowers(Node leader) {
-		if (followerArcs.containsKey(leader)) {
-			return followerArcs.get(leader);
-		} else {
-			return new TreeSet<Arc>();
-		}
+		return getFollowers(leader.getId());
 	}
 	
 	public TreeSet<Arc> getFollowers(int nodeid) {
-		return getFollowers(new Node(nodeid));
+		TreeSet<Arc> followers = new TreeSet<Arc>();
+		int[] followerIds = graph.getFollowerIds();
+		int end = graph.getFollowersEnd(nodeid);
+		for (int i = graph.getFollowersBegin(nodeid); i < end; i++) {
+			followers.add(new Arc(dictionary, nodeid, followerIds[i]));
+		}
+		return followers;
+	}
+
+	/**
+	 * Gets the ids of the followers of a leader, without allocating. The
+	 * followers are in positions {@link #getFollowersBegin(int)} (inclusive)
+	 * to {@link #getFollowersEnd(int)} (exclusive) of the returned array,
+	 * sorted by id.
+	 * 
+	 * @return the followers of all nodes; must not be modified
+	 */
+	public int[] getFollowerIds() {
+		return graph.getFollowerIds();
+	}
+
+	public int getFollowersBegin(int nodeid) {
+		return graph.getFollowersBegin(nodeid);
+	}
+
+	public int getFollowersEnd(int nodeid) {
+		return graph.getFollowersEnd(nodeid);
 	}
 
 	/**
@@ -158,15 +314,37 @@ public class SocialNetwork {
 	 * @return a set of people represented as edges in the social network
 	 */
 	public TreeSet<Arc> getLeaders(Node follower) {
-		if (leaderArcs.containsKey(follower)) {
-			return leaderArcs.get(follower);
-		} else {
-			return new TreeSet<Arc>();
-		}
+		return getLeaders(follower.getId());
 	}
 	
 	public TreeSet<Arc> getLeaders(int nodeid) {
-		return getLeaders(new Node(nodeid));
+		TreeSet<Arc> leaders = new TreeSet<Arc>();
+		int[] leaderIds = graph.getLeaderIds();
+		int end = graph.getLeadersEnd(nodeid);
+		for (int i = graph.getLeadersBegin(nodeid); i < end; i++) {
+			leaders.add(new Arc(dictionary, leaderIds[i], nodeid));
+		}
+		return leaders;
+	}
+
+	/**
+	 * Gets the ids of the leaders of a follower, without allocating. The
+	 * leaders are in positions {@link #getLeadersBegin(int)} (inclusive) to
+	 * {@link #getLeadersEnd(int)} (exclusive) of the returned array, sorted
+	 * by id.
+	 * 
+	 * @return the leaders of all nodes; must not be modified
+	 */
+	public int[] getLeaderIds() {
+		return graph.getLeaderIds();
+	}
+
+	public int getLeadersBegin(int nodeid) {
+		return graph.getLeadersBegin(nodeid);
+	}
+
+	public int getLeadersEnd(int nodeid) {
+		return graph.getLeadersEnd(nodeid);
 	}
 
 	public static void main(String[] args) throws JSAPException,
@@ -0,0 +1,269 @@
+package edu.toronto.cs.propagation.ic;
+
+import java.util.Arrays;
+
+import edu.toronto.cs.propagation.util.ArcProbabilities;
+import edu.toronto.cs.propagation.util.CSRGraph;
+
+/**
+ * Computes the log-likelihood of a block (a child node and its parents)
+ * across all actions, for a subset of selected parents.
+ * <p>
+ * The parents of the block are identified by their block-local index (see
+ * {@link ChildActions}); <em>1-p</em> and <em>log(1-p)</em> are read once per
+ * parent when the block is set, and the selected parents are a boolean array.
+ * Evaluations iterate the arrays of <em>Cplus</em> and <em>Cminus</em> and
+ * allocate nothing.
+ * <p>
+ * For every action of <em>Cplus</em>, the product of <em>1-p</em> over the
+ * selected parents is kept up to date as parents are selected, so the
+ * increase for selecting one more parent <em>u</em> only visits the actions
+ * of <em>u</em>, i.e., <em>Aplus(u,v)</em> and <em>Aminus(u,v)</em>.
+ * <p>
+ * An instance can be moved from block to block with {@link #setBlock(int)},
+ * reusing its arrays, or kept on a block while parents are added to it. It
+ * is not thread-safe; use one instance per thread.
+ */
+public class BlockLikelihood {
+
+	private final ArcProbabilities probs;
+
+	private final ICEstimateAuxiliary auxiliary;
+
+	private int child;
+
+	private ChildActions cPlus;
+
+	private ChildActions cMinus;
+
+	/**
+	 * For every block-local index, <em>1-p</em>.
+	 */
+	private double[] oneMinusP;
+
+	/**
+	 * For every block-local index, <em>log(1-p)</em>.
+	 */
+	private double[] logOneMinusP;
+
+	private boolean[] selected;
+
+	/**
+	 * For every action of {@link #cPlus}, the product of <em>1-p</em> over
+	 * its selected parents.
+	 */
+	private double[] products;
+
+	/**
+	 * Creates a kernel for the blocks of a model.
+	 *
+	 * @param model
+	 *            the model giving the probabilities
+	 * @param auxiliary
+	 *            the auxiliary variables giving <em>Cplus</em> and
+	 *            <em>Cminus</em>
+	 */
+	public BlockLikelihood(ICModel model, ICEstimateAuxiliary auxiliary) {
+		this.probs = model.getProbs();
+		this.auxiliary = auxiliary;
+		this.child = -1;
+		this.oneMinusP = new double[0];
+		this.logOneMinusP = new double[0];
+		this.selected = new boolean[0];
+		this.products = new double[0];
+	}
+
+	/**
+	 * Moves to a block, with no parent selected.
+	 *
+	 * @param v
+	 *            the child node of the block
+	 */
+	public void setBlock(int v) {
+		child = v;
+		cPlus = auxiliary.getCplus(v);
+		cMinus = auxiliary.getCminus(v);
+		int n = cPlus.sizeLeaders();
+		if (oneMinusP.length < n) {
+			int size = Math.max(n, 2 * oneMinusP.length);
+			oneMinusP = new double[size];
+			logOneMinusP = new double[size];
+			selected = new boolean[size];
+		}
+
+		CSRGraph graph = auxiliary.getCplusIndex().getGraph();
+		int[] leaderArcIds = graph.getLeaderArcIds();
+		boolean sameGraph = (probs.getGraph() == graph);
+		for (int k = 0; k < n; k++) {
+			double p = sameGraph ? probs.get(leaderArcIds[cPlus
+					.getLeaderPosition(k)]) : probs.getQuick(
+					cPlus.getLeader(k), v);
+			oneMinusP[k] = 1.0 - p;
+			logOneMinusP[k] = Math.log(1.0 - p);
+			selected[k] = false;
+		}
+
+		int nActions = cPlus.size();
+		if (products.length < nActions) {
+			products = new double[Math.max(nActions, 2 * products.length)];
+		}
+		Arrays.fill(products, 0, nActions, 1.0);
+	}
+
+	/**
+	 * @return the child node of the current block
+	 */
+	public int getChild() {
+		return child;
+	}
+
+	/**
+	 * @return <em>Cplus</em> of the current block
+	 */
+	public ChildActions getCplus() {
+		return cPlus;
+	}
+
+	/**
+	 * @return <em>Cminus</em> of the current block
+	 */
+	public ChildActions getCminus() {
+		return cMinus;
+	}
+
+	/**
+	 * Selects a parent.
+	 *
+	 * @param parentId
+	 *            the parent
+	 * @return false if the node is not a leader of the child, in which case
+	 *         it can not change the log-likelihood of the block
+	 */
+	public boolean select(int parentId) {
+		int k = cPlus.indexOfParent(parentId);
+		if (k < 0) {
+			return false;
+		}
+		if (!selected[k]) {
+			selected[k] = true;
+			int n = cPlus.sizeActionsOfParent(k);
+			for (int m = 0; m < n; m++) {
+				products[cPlus.getActionOfParent(k, m)] *= oneMinusP[k];
+			}
+		}
+		return true;
+	}
+
+	public void deselect(int parentId) {
+		int k = cPlus.indexOfParent(parentId);
+		if (k >= 0 && selected[k]) {
+			selected[k] = false;
+			// Dividing could lose precision, or divide by zero if p=1
+			int n = cPlus.sizeActionsOfParent(k);
+			for (int m = 0; m < n; m++) {
+				recomputeProduct(cPlus.getActionOfParent(k, m));
+			}
+		}
+	}
+
+	public boolean isSelected(int parentId) {
+		int k = cPlus.indexOfParent(parentId);
+		return k >= 0 && selected[k];
+	}
+
+	/**
+	 * Selects every parent with non-zero probability.
+	 */
+	public void selectNonZero() {
+		int n = cPlus.sizeLeaders();
+		for (int k = 0; k < n; k++) {
+			selected[k] = (oneMinusP[k] < 1.0);
+		}
+		for (int i = 0; i < cPlus.size(); i++) {
+			recomputeProduct(i);
+		}
+	}
+
+	private void recomputeProduct(int i) {
+		double probA = 1.0;
+		for (int j = 0; j < cPlus.sizeParents(i); j++) {
+			int k = cPlus.getParentIndex(i, j);
+			if (selected[k]) {
+				probA *= oneMinusP[k];
+			}
+		}
+		products[i] = probA;
+	}
+
+	/**
+	 * Computes the log-likelihood of the block for the selected parents.
+	 *
+	 * @return the log-likelihood, possibly -Infinity
+	 */
+	public double logLikelihood() {
+		double blockLogL = 0.0;
+
+		for (int i = 0; i < cPlus.size(); i++) {
+			double probA = 1.0;
+			for (int j = 0; j < cPlus.sizeParents(i); j++) {
+				int k = cPlus.getParentIndex(i, j);
+				if (selected[k]) {
+					probA *= oneMinusP[k];
+				}
+			}
+			probA = 1.0 - probA;
+			double logA = Math.log(probA);
+			blockLogL += logA;
+		}
+
+		for (int i = 0; i < cMinus.size(); i++) {
+			double logA = 0.0;
+			for (int j = 0; j < cMinus.sizeParents(i); j++) {
+				int k = cMinus.getParentIndex(i, j);
+				if (selected[k]) {
+					logA += logOneMinusP[k];
+				}
+			}
+			blockLogL += logA;
+		}
+		return blockLogL;
+	}
+
+	/**
+	 * Computes the increase of the log-likelihood of the block if a parent
+	 * was selected, in addition to the selected parents. Only the actions of
+	 * the parent are visited.
+	 *
+	 * @param extraParentId
+	 *            the parent, which should not be selected
+	 * @return the increase, possibly Infinity or NaN if the log-likelihood of
+	 *         the block is -Infinity
+	 */
+	public double logLikelihoodIncrease(int extraParentId) {
+		int x = cPlus.indexOfParent(extraParentId);
+		if (x < 0) {
+			return 0.0;
+		}
+
+		double increase = 0.0;
+
+		int n = cPlus.sizeActionsOfParent(x);
+		for (int m = 0; m < n; m++) {
+			double origProb = products[cPlus.getActionOfParent(x, m)];
+			double updProb = origProb * oneMinusP[x];
+
+			origProb = 1.0 - origProb;
+			updProb = 1.0 - updProb;
+
+			double origLog = Math.log(origProb);
+			double updLog = Math.log(updProb);
+			increase += (updLog - origLog);
+		}
+		n = cMinus.sizeActionsOfParent(x);
+		for (int m = 0; m < n; m++) {
+			increase += logOneMinusP[x];
+		}
+
+		return increase;
+	}
+}
@@ -0,0 +1,397 @@
+package edu.toronto.cs.propagation.ic;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+import edu.toronto.cs.propagation.util.ArcActionLists;
+import edu.toronto.cs.propagation.util.BinaryFileWriter;
+import edu.toronto.cs.propagation.util.CSRGraph;
+import edu.toronto.cs.propagation.util.MappedFileReader;
+
+/**
+ * <em>Bplus</em>: for every action <em>a</em> and child <em>v</em>, the
+ * parents <em>u</em> such that <em>Aplus(u,v)</em> contains <em>a</em>.
+ * <p>
+ * Every (child,action) pair with parents is a slot. Slots are numbered
+ * densely in compressed sparse row (CSR) format, grouped by child and sorted
+ * by action within each child, and the parents of all slots are contiguous in
+ * a single array of node ids, in the order in which they were given. The slot
+ * of every entry of <em>Aplus</em> is resolved once, when the index is
+ * created, so the E-step of {@link ICEstimateEM} never looks up an action.
+ * The index is immutable, so it can be read by many threads at the same time.
+ * It is stored in binary files as it is in memory, by
+ * {@link #write(BinaryFileWriter)}, so an index read from a file is served
+ * from the mapped file.
+ */
+public class BplusIndex {
+
+	private final CSRGraph graph;
+
+	private final int nActions;
+
+	/**
+	 * For child <em>v</em>, its slots are childSlotOffsets[v] ..
+	 * childSlotOffsets[v+1]-1.
+	 */
+	private final IntBuffer childSlotOffsets;
+
+	private final IntBuffer slotActions;
+
+	/**
+	 * For every slot, its parents are in
+	 * {@link #parents}[parentOffsets[slot] .. parentOffsets[slot+1]-1].
+	 */
+	private final IntBuffer parentOffsets;
+
+	private final IntBuffer parents;
+
+	/**
+	 * For every arc, the slots of the actions of its <em>Aplus</em>, in
+	 * increasing order of action, are in
+	 * {@link #arcSlots}[arcSlotOffsets[arcId] .. arcSlotOffsets[arcId+1]-1].
+	 */
+	private final IntBuffer arcSlotOffsets;
+
+	private final IntBuffer arcSlots;
+
+	/**
+	 * Creates an index from the children and parents of every action. The
+	 * arrays are not kept.
+	 *
+	 * @param graph
+	 *            the graph containing every arc of Aplus
+	 * @param Aplus
+	 *            for every arc, the actions for which the parent may have
+	 *            activated the child
+	 * @param nActions
+	 *            the number of actions
+	 * @param actionOffsets
+	 *            for action <em>a</em>, its children are
+	 *            children[actionOffsets[a] .. actionOffsets[a+1]-1]
+	 * @param children
+	 *            the children of every action, without duplicates
+	 * @param childParentOffsets
+	 *            for the child in position <em>k</em> of children, its parents
+	 *            are parents[childParentOffsets[k] ..
+	 *            childParentOffsets[k+1]-1]
+	 * @param childParents
+	 *            the parents of every (action,child) pair
+	 * @throws IllegalArgumentException
+	 *             if an action of Aplus has no parents for the child of the
+	 *             arc
+	 */
+	BplusIndex(CSRGraph graph, ArcActionLists Aplus, int nActions,
+			int[] actionOffsets, int[] children, int[] childParentOffsets,
+			int[] childParents) {
+		this.graph = graph;
+		this.nActions = nActions;
+		int maxNodeId = graph.getMaxNodeId();
+		int nSlots = actionOffsets[nActions];
+
+		// Group the slots by child with a stable counting sort, so actions
+		// stay in increasing order
+		int[] childSlotOffsets = new int[maxNodeId + 2];
+		for (int k = 0; k < nSlots; k++) {
+			if (children[k] < 0 || children[k] > maxNodeId) {
+				throw new IllegalArgumentException("Bplus has a child ("
+						+ children[k] + ") that is not in the social network");
+			}
+			childSlotOffsets[children[k] + 1]++;
+		}
+		for (int v = 0; v <= maxNodeId; v++) {
+			childSlotOffsets[v + 1] += childSlotOffsets[v];
+		}
+		int[] slotOfEntry = new int[nSlots];
+		int[] next = new int[maxNodeId + 1];
+		System.arraycopy(childSlotOffsets, 0, next, 0, next.length);
+		int[] slotActions = new int[nSlots];
+		for (int action = 0; action < nActions; action++) {
+			for (int k = actionOffsets[action]; k < actionOffsets[action + 1]; k++) {
+				int slot = next[children[k]]++;
+				slotOfEntry[k] = slot;
+				slotActions[slot] = action;
+			}
+		}
+		next = null;
+
+		int[] parentOffsets = new int[nSlots + 1];
+		for (int k = 0; k < nSlots; k++) {
+			parentOffsets[slotOfEntry[k] + 1] = childParentOffsets[k + 1]
+					- childParentOffsets[k];
+		}
+		for (int slot = 0; slot < nSlots; slot++) {
+			parentOffsets[slot + 1] += parentOffsets[slot];
+		}
+		int[] parents = new int[parentOffsets[nSlots]];
+		for (int k = 0; k < nSlots; k++) {
+			System.arraycopy(childParents, childParentOffsets[k], parents,
+					parentOffsets[slotOfEntry[k]], childParentOffsets[k + 1]
+							- childParentOffsets[k]);
+		}
+		slotOfEntry = null;
+		this.childSlotOffsets = IntBuffer.wrap(childSlotOffsets);
+		this.slotActions = IntBuffer.wrap(slotActions);
+		this.parentOffsets = IntBuffer.wrap(parentOffsets);
+		this.parents = IntBuffer.wrap(parents);
+
+		// Resolve the slot of every entry of Aplus
+		int nArcs = graph.sizeArcs();
+		int[] arcSlotOffsets = new int[nArcs + 1];
+		for (int arcId = 0; arcId < nArcs; arcId++) {
+			arcSlotOffsets[arcId + 1] = arcSlotOffsets[arcId]
+					+ Aplus.size(arcId);
+		}
+		int[] arcSlots = new int[arcSlotOffsets[nArcs]];
+		ArcActionLists.Cursor cursor = Aplus.cursor();
+		for (int arcId = 0; arcId < nArcs; arcId++) {
+			int child = graph.getArcFollowerId(arcId);
+			int i = arcSlotOffsets[arcId];
+			for (cursor.reset(arcId); cursor.hasNext();) {
+				int action = cursor.nextInt();
+				int slot = getSlot(action, child);
+				if (slot == -1) {
+					throw new IllegalArgumentException(
+							"Bplus has no parents for action " + action
+									+ " and child " + child
+									+ ", which are in Aplus");
+				}
+				arcSlots[i++] = slot;
+			}
+		}
+		this.arcSlotOffsets = IntBuffer.wrap(arcSlotOffsets);
+		this.arcSlots = IntBuffer.wrap(arcSlots);
+	}
+
+	private BplusIndex(CSRGraph graph, int nActions,
+			IntBuffer childSlotOffsets, IntBuffer slotActions,
+			IntBuffer parentOffsets, IntBuffer parents,
+			IntBuffer arcSlotOffsets, IntBuffer arcSlots) {
+		this.graph = graph;
+		this.nActions = nActions;
+		this.childSlotOffsets = childSlotOffsets;
+		this.slotActions = slotActions;
+		this.parentOffsets = parentOffsets;
+		this.parents = parents;
+		this.arcSlotOffsets = arcSlotOffsets;
+		this.arcSlots = arcSlots;
+	}
+
+	/**
+	 * Writes the index as it is in memory, to be read by
+	 * {@link #read(MappedFileReader, CSRGraph, ArcActionLists, int[], boolean)}.
+	 */
+	void write(BinaryFileWriter out) throws IOException {
+		out.writeInt(nActions);
+		out.writeInt(childSlotOffsets.capacity() - 1);
+		out.writeInt(sizeSlots());
+		out.writeInt(sizeParents());
+		out.writeInt(arcSlotOffsets.capacity() - 1);
+		out.writeInts(childSlotOffsets);
+		out.writeInts(slotActions);
+		out.writeInts(parentOffsets);
+		out.writeInts(parents);
+		out.writeInts(arcSlotOffsets);
+		out.writeInts(arcSlots);
+	}
+
+	/**
+	 * Reads an index written by {@link #write(BinaryFileWriter)}. If the node
+	 * and arc ids of the file are those of the graph, the index is mapped and
+	 * used as it is; otherwise it is created again from its slots.
+	 *
+	 * @param in
+	 *            the file, positioned at the index
+	 * @param graph
+	 *            the graph containing every arc of Aplus
+	 * @param Aplus
+	 *            Aplus, with the arc ids of the graph
+	 * @param remap
+	 *            the node id of every node id of the file, or null if they
+	 *            are the same
+	 * @param sameArcs
+	 *            whether the arc ids of the file are those of the graph
+	 */
+	static BplusIndex read(MappedFileReader in, CSRGraph graph,
+			ArcActionLists Aplus, int[] remap, boolean sameArcs)
+			throws IOException {
+		int nActions = in.readInt();
+		int nNodes = in.readInt();
+		int nSlots = in.readInt();
+		int nParents = in.readInt();
+		int nArcs = in.readInt();
+		IntBuffer childSlotOffsets = in.viewInts(nNodes + 1);
+		IntBuffer slotActions = in.viewInts(nSlots);
+		IntBuffer parentOffsets = in.viewInts(nSlots + 1);
+		IntBuffer parents = in.viewInts(nParents);
+		IntBuffer arcSlotOffsets = in.viewInts(nArcs + 1);
+		IntBuffer arcSlots = in.viewInts(arcSlotOffsets.get(nArcs));
+		BplusIndex index = new BplusIndex(graph, nActions, childSlotOffsets,
+				slotActions, parentOffsets, parents, arcSlotOffsets, arcSlots);
+		if (remap == null && sameArcs && nNodes == graph.getMaxNodeId() + 1) {
+			return index;
+		}
+
+		// Create the index again, for the ids of the graph
+		int[] actionOffsets = new int[nActions + 1];
+		int[] children = new int[nSlots];
+		int[] slots = index.getSlotsByAction(actionOffsets, children);
+		int[] childParentOffsets = new int[nSlots + 1];
+		int[] childParents = new int[nParents];
+		int k = 0;
+		for (int pos = 0; pos < nSlots; pos++) {
+			if (remap != null) {
+				children[pos] = remap[children[pos]];
+			}
+			int end = index.getParentsEnd(slots[pos]);
+			for (int i = index.getParentsBegin(slots[pos]); i < end; i++) {
+				int parent = index.getParent(i);
+				childParents[k++] = (remap == null) ? parent : remap[parent];
+			}
+			childParentOffsets[pos + 1] = k;
+		}
+		return new BplusIndex(graph, Aplus, nActions, actionOffsets, children,
+				childParentOffsets, childParents);
+	}
+
+	/**
+	 * @return the number of actions
+	 */
+	public int sizeActions() {
+		return nActions;
+	}
+
+	/**
+	 * @return the number of (child,action) pairs with parents
+	 */
+	public int sizeSlots() {
+		return slotActions.capacity();
+	}
+
+	/**
+	 * @return the number of (child,action,parent) triples
+	 */
+	public int sizeParents() {
+		return parents.capacity();
+	}
+
+	/**
+	 * Gets the first slot of a child; its slots are getSlotsBegin(v) ..
+	 * getSlotsEnd(v)-1, in increasing order of action.
+	 */
+	public int getSlotsBegin(int child) {
+		return childSlotOffsets.get(child);
+	}
+
+	public int getSlotsEnd(int child) {
+		return childSlotOffsets.get(child + 1);
+	}
+
+	/**
+	 * Gets the slot of a (child,action) pair, by binary search among the
+	 * slots of the child.
+	 *
+	 * @return the slot, or -1 if the pair has no parents
+	 */
+	public int getSlot(int action, int child) {
+		if (child < 0 || child >= childSlotOffsets.capacity() - 1) {
+			return -1;
+		}
+		int low = childSlotOffsets.get(child);
+		int high = childSlotOffsets.get(child + 1) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (slotActions.get(mid) < action) {
+				low = mid + 1;
+			} else if (slotActions.get(mid) > action) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	public int getAction(int slot) {
+		return slotActions.get(slot);
+	}
+
+	/**
+	 * Gets the first position of the parents of a slot, for
+	 * {@link #getParent(int)}.
+	 */
+	public int getParentsBegin(int slot) {
+		return parentOffsets.get(slot);
+	}
+
+	public int getParentsEnd(int slot) {
+		return parentOffsets.get(slot + 1);
+	}
+
+	/**
+	 * Gets the parent in a position; the parents of all the slots are one
+	 * slot after the other.
+	 */
+	public int getParent(int i) {
+		return parents.get(i);
+	}
+
+	/**
+	 * Gets the first position of the slots of an arc, for
+	 * {@link #getArcSlot(int)}; they correspond to the actions of
+	 * <em>Aplus</em> for the arc, in the same order.
+	 */
+	public int getArcSlotsBegin(int arcId) {
+		return arcSlotOffsets.get(arcId);
+	}
+
+	public int getArcSlotsEnd(int arcId) {
+		return arcSlotOffsets.get(arcId + 1);
+	}
+
+	/**
+	 * Gets the slot in a position; the slots of the actions of Aplus of all
+	 * the arcs are one arc after the other.
+	 */
+	public int getArcSlot(int i) {
+		return arcSlots.get(i);
+	}
+
+	/**
+	 * @return the graph defining the arc ids
+	 */
+	public CSRGraph getGraph() {
+		return graph;
+	}
+
+	/**
+	 * Sorts the slots by action, and then by child.
+	 *
+	 * @param actionOffsets
+	 *            an array of length {@link #sizeActions()}+1, filled with the
+	 *            first position of the slots of every action
+	 * @param children
+	 *            an array of length {@link #sizeSlots()}, filled with the
+	 *            child of every slot in the returned order
+	 * @return the slots
+	 */
+	int[] getSlotsByAction(int[] actionOffsets, int[] children) {
+		int nSlots = slotActions.capacity();
+		for (int slot = 0; slot < nSlots; slot++) {
+			actionOffsets[slotActions.get(slot) + 1]++;
+		}
+		for (int action = 0; action < nActions; action++) {
+			actionOffsets[action + 1] += actionOffsets[action];
+		}
+		int[] next = new int[nActions];
+		System.arraycopy(actionOffsets, 0, next, 0, nActions);
+		int[] slots = new int[nSlots];
+		for (int v = 0; v < childSlotOffsets.capacity() - 1; v++) {
+			for (int slot = childSlotOffsets.get(v); slot < childSlotOffsets.get(v + 1); slot++) {
+				int pos = next[slotActions.get(slot)]++;
+				slots[pos] = slot;
+				children[pos] = v;
+			}
+		}
+		return slots;
+	}
+}
@@ -0,0 +1,210 @@
+package edu.toronto.cs.propagation.ic;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.logging.ProgressLogger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+import edu.toronto.cs.propagation.util.ArcProbabilities;
+import edu.toronto.cs.propagation.util.CSRGraph;
+import edu.toronto.cs.propagation.util.Multithreaded;
+import edu.toronto.cs.propagation.util.Utilities;
+
+/**
+ * Runs many independent cascades of an independent cascade model from a set
+ * of seeds, and aggregates them into {@link CascadeStatistics}, without
+ * creating a {@link edu.toronto.cs.propagation.PropagationHistory} per
+ * cascade.
+ * <p>
+ * The cascades follow the same process as {@link ICModel#runModel(java.util.Set)}
+ * (waiting times, if the model has any, are ignored). Cascades are run in
+ * batches of {@link #BATCH_SIZE}, each with its own {@link SplittableRandom}
+ * split from the random seed, so the statistics only depend on the random
+ * seed and not on the number of threads. Every thread reuses its arrays: the
+ * active nodes are marked with the number of the cascade, so they never need
+ * to be cleared, and the frontiers are arrays of node ids.
+ */
+public class CascadeSimulator implements Multithreaded {
+
+	private static final Logger LOGGER = Logger.getLogger(CascadeSimulator.class);
+
+	/**
+	 * The number of cascades run with the same generator.
+	 */
+	public static final int BATCH_SIZE = 1024;
+
+	private final CSRGraph graph;
+
+	private final ArcProbabilities probs;
+
+	private int numberOfThreads = DEFAULT_NUMBER_OF_THREADS;
+
+	/**
+	 * Creates a simulator for a model. The probabilities of the model must not
+	 * change while simulating.
+	 *
+	 * @param model
+	 *            the model
+	 */
+	public CascadeSimulator(ICModel model) {
+		this.probs = model.getProbs();
+		this.graph = probs.getGraph();
+	}
+
+	public void setNumberOfThreads(int numberOfThreads) {
+		if (numberOfThreads < 1) {
+			throw new IllegalArgumentException("The number of threads must be at least 1");
+		}
+		this.numberOfThreads = numberOfThreads;
+	}
+
+	/**
+	 * Runs cascades.
+	 *
+	 * @param seeds
+	 *            the ids of the nodes active at the beginning of every cascade
+	 * @param numberOfCascades
+	 *            the number of cascades
+	 * @param randomSeed
+	 *            the seed of the random generators
+	 * @return the statistics of the cascades
+	 */
+	public CascadeStatistics simulate(final int[] seeds, int numberOfCascades, long randomSeed) {
+		if (seeds.length == 0) {
+			throw new IllegalArgumentException("There must be at least one seed");
+		}
+		if (numberOfCascades < 0) {
+			throw new IllegalArgumentException("The number of cascades must not be negative");
+		}
+		int maxNodeId = graph.getMaxNodeId();
+		for (int seed : seeds) {
+			if (seed < 0) {
+				throw new IllegalArgumentException("Invalid seed node id: " + seed);
+			}
+			maxNodeId = Math.max(maxNodeId, seed);
+		}
+		final int numberOfNodes = maxNodeId + 1;
+
+		// One generator per batch, split in order
+		int numberOfBatches = (numberOfCascades + BATCH_SIZE - 1) / BATCH_SIZE;
+		final SplittableRandom[] randoms = new SplittableRandom[numberOfBatches];
+		final int[] batchSizes = new int[numberOfBatches];
+		SplittableRandom root = new SplittableRandom(randomSeed);
+		for (int b = 0; b < numberOfBatches; b++) {
+			randoms[b] = root.split();
+			batchSizes[b] = Math.min(BATCH_SIZE, numberOfCascades - b * BATCH_SIZE);
+		}
+
+		final ProgressLogger pl = new ProgressLogger(LOGGER, ProgressLogger.TEN_SECONDS, "batches");
+		pl.expectedUpdates = numberOfBatches;
+		pl.start("Begin running " + numberOfCascades + " cascades from " + seeds.length + " seeds on " + numberOfThreads + " threads");
+		final int nTasks = Math.max(1, Math.min(numberOfThreads, numberOfBatches));
+		ObjectArrayList<Callable<CascadeStatistics>> tasks = new ObjectArrayList<Callable<CascadeStatistics>>(nTasks);
+		for (int t = 0; t < nTasks; t++) {
+			final int firstBatch = t;
+			tasks.add(new Callable<CascadeStatistics>() {
+				public CascadeStatistics call() {
+					Worker worker = new Worker(numberOfNodes);
+					for (int b = firstBatch; b < randoms.length; b += nTasks) {
+						for (int i = 0; i < batchSizes[b]; i++) {
+							worker.run(seeds, randoms[b]);
+						}
+						synchronized (pl) {
+							pl.update();
+						}
+					}
+					return worker.statistics;
+				}
+			});
+		}
+		List<CascadeStatistics> results = Utilities.runTasks(tasks, numberOfThreads);
+
+		CascadeStatistics statistics = new CascadeStatistics(numberOfNodes);
+		for (CascadeStatistics result : results) {
+			statistics.add(result);
+		}
+		pl.stop("Done running cascades: mean spread=" + statistics.getMeanSpread());
+		return statistics;
+	}
+
+	/**
+	 * The arrays of a thread.
+	 */
+	private class Worker {
+
+		/**
+		 * For every node, the number of the last cascade that activated it.
+		 */
+		private final int[] activeIn;
+
+		private int cascade;
+
+		private int[] frontier;
+
+		private int[] nextFrontier;
+
+		final CascadeStatistics statistics;
+
+		Worker(int numberOfNodes) {
+			this.activeIn = new int[numberOfNodes];
+			this.cascade = 0;
+			this.frontier = new int[numberOfNodes];
+			this.nextFrontier = new int[numberOfNodes];
+			this.statistics = new CascadeStatistics(numberOfNodes);
+		}
+
+		void run(int[] seeds, SplittableRandom random) {
+			if (cascade == Integer.MAX_VALUE) {
+				Arrays.fill(activeIn, 0);
+				cascade = 0;
+			}
+			cascade++;
+
+			int size = 0;
+			for (int seed : seeds) {
+				if (activeIn[seed] != cascade) {
+					activeIn[seed] = cascade;
+					frontier[size++] = seed;
+					statistics.activated(seed);
+				}
+			}
+			int spread = size;
+
+			int[] followerIds = graph.getFollowerIds();
+			int maxNodeId = graph.getMaxNodeId();
+			while (size > 0) {
+				int nextSize = 0;
+				for (int f = 0; f < size; f++) {
+					int parentId = frontier[f];
+					if (parentId > maxNodeId) {
+						continue;
+					}
+					int end = graph.getFollowersEnd(parentId);
+					for (int arcId = graph.getFollowersBegin(parentId); arcId < end; arcId++) {
+						int childId = followerIds[arcId];
+						if (activeIn[childId] == cascade) {
+							continue;
+						}
+						double prob = probs.get(arcId);
+						if (prob > 0 && random.nextDouble() < prob) {
+							activeIn[childId] = cascade;
+							nextFrontier[nextSize++] = childId;
+							statistics.activated(childId);
+						}
+					}
+				}
+				int[] swap = frontier;
+				frontier = nextFrontier;
+				nextFrontier = swap;
+				size = nextSize;
+				spread += size;
+			}
+			statistics.cascadeDone(spread);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package edu.toronto.cs.propagation.ic;
+
+/**
+ * Aggregate statistics of a batch of cascades run by a
+ * {@link CascadeSimulator}: how many cascades activated each node, and how
+ * many cascades reached each spread (number of activated nodes, including the
+ * seeds).
+ */
+public class CascadeStatistics {
+
+	private long numberOfCascades;
+
+	/**
+	 * For every node id, the number of cascades in which it was activated.
+	 */
+	private final long[] activationCounts;
+
+	/**
+	 * For every spread, the number of cascades with that spread.
+	 */
+	private final long[] spreadCounts;
+
+	CascadeStatistics(int numberOfNodes) {
+		this.numberOfCascades = 0;
+		this.activationCounts = new long[numberOfNodes];
+		this.spreadCounts = new long[numberOfNodes + 1];
+	}
+
+	void activated(int nodeId) {
+		activationCounts[nodeId]++;
+	}
+
+	void cascadeDone(int spread) {
+		spreadCounts[spread]++;
+		numberOfCascades++;
+	}
+
+	/**
+	 * Adds the statistics of another batch of cascades over the same nodes.
+	 */
+	void add(CascadeStatistics other) {
+		numberOfCascades += other.numberOfCascades;
+		for (int i = 0; i < activationCounts.length; i++) {
+			activationCounts[i] += other.activationCounts[i];
+		}
+		for (int i = 0; i < spreadCounts.length; i++) {
+			spreadCounts[i] += other.spreadCounts[i];
+		}
+	}
+
+	public long getNumberOfCascades() {
+		return numberOfCascades;
+	}
+
+	/**
+	 * @return the number of node ids, which bounds the spread
+	 */
+	public int getNumberOfNodes() {
+		return activationCounts.length;
+	}
+
+	/**
+	 * @return the number of cascades in which a node was activated
+	 */
+	public long getActivationCount(int nodeId) {
+		return activationCounts[nodeId];
+	}
+
+	/**
+	 * @return the fraction of cascades in which a node was activated
+	 */
+	public double getActivationProbability(int nodeId) {
+		return (double) activationCounts[nodeId] / (double) numberOfCascades;
+	}
+
+	/**
+	 * @return the number of cascades that activated exactly a number of nodes
+	 */
+	public long getSpreadCount(int spread) {
+		return spreadCounts[spread];
+	}
+
+	/**
+	 * @return the largest spread of a cascade, or 0 if there are no cascades
+	 */
+	public int getMaxSpread() {
+		for (int spread = spreadCounts.length - 1; spread > 0; spread--) {
+			if (spreadCounts[spread] > 0) {
+				return spread;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the average number of activated nodes per cascade
+	 */
+	public double getMeanSpread() {
+		double sum = 0.0;
+		for (int spread = 0; spread < spreadCounts.length; spread++) {
+			sum += (double) spread * spreadCounts[spread];
+		}
+		return sum / numberOfCascades;
+	}
+}
@@ -0,0 +1,165 @@
+package edu.toronto.cs.propagation.ic;
+
+import java.util.Arrays;
+
+/**
+ * A read-only view of the actions of a child in a {@link ChildActionsIndex},
+ * and of the parents of each action.
+ * <p>
+ * Actions are numbered from 0 to {@link #size()}-1 in increasing order of id;
+ * the parents of the <em>i</em>-th action are numbered from 0 to
+ * {@link #sizeParents(int)}-1 in increasing order of id. Parents are also
+ * identified by their block-local index, from 0 to {@link #sizeLeaders()}-1,
+ * which is their position among all the leaders of the child in the graph.
+ */
+public final class ChildActions {
+
+	private final int[] actions;
+
+	private final int[] parentOffsets;
+
+	private final int[] parents;
+
+	private final int[] parentActionOffsets;
+
+	private final int[] parentActions;
+
+	private final int[] leaderIds;
+
+	private final int from;
+
+	private final int to;
+
+	private final int leadersBegin;
+
+	private final int leadersEnd;
+
+	ChildActions(ChildActionsIndex index, int from, int to, int leadersBegin,
+			int leadersEnd) {
+		this.actions = index.getActions();
+		this.parentOffsets = index.getParentOffsets();
+		this.parents = index.getParents();
+		this.parentActionOffsets = index.getParentActionOffsets();
+		this.parentActions = index.getParentActions();
+		this.leaderIds = index.getGraph().getLeaderIds();
+		this.from = from;
+		this.to = to;
+		this.leadersBegin = leadersBegin;
+		this.leadersEnd = leadersEnd;
+	}
+
+	/**
+	 * @return the number of actions
+	 */
+	public int size() {
+		return to - from;
+	}
+
+	public boolean isEmpty() {
+		return to == from;
+	}
+
+	/**
+	 * @return the id of the <em>i</em>-th action
+	 */
+	public int getAction(int i) {
+		return actions[from + i];
+	}
+
+	/**
+	 * @return the number of parents of the <em>i</em>-th action
+	 */
+	public int sizeParents(int i) {
+		return parentOffsets[from + i + 1] - parentOffsets[from + i];
+	}
+
+	/**
+	 * @return the id of the <em>j</em>-th parent of the <em>i</em>-th action
+	 */
+	public int getParent(int i, int j) {
+		return leaderIds[leadersBegin + parents[parentOffsets[from + i] + j]];
+	}
+
+	/**
+	 * @return the block-local index of the <em>j</em>-th parent of the
+	 *         <em>i</em>-th action
+	 */
+	public int getParentIndex(int i, int j) {
+		return parents[parentOffsets[from + i] + j];
+	}
+
+	/**
+	 * @return true iff a node is a parent of the <em>i</em>-th action
+	 */
+	public boolean containsParent(int i, int parentId) {
+		int index = indexOfParent(parentId);
+		return index >= 0 && containsParentIndex(i, index);
+	}
+
+	/**
+	 * @return true iff the node with a block-local index is a parent of the
+	 *         <em>i</em>-th action
+	 */
+	public boolean containsParentIndex(int i, int index) {
+		return Arrays.binarySearch(parents, parentOffsets[from + i],
+				parentOffsets[from + i + 1], index) >= 0;
+	}
+
+	/**
+	 * @return the number of actions of which the node with a block-local
+	 *         index is a parent
+	 */
+	public int sizeActionsOfParent(int index) {
+		return parentActionOffsets[leadersBegin + index + 1]
+				- parentActionOffsets[leadersBegin + index];
+	}
+
+	/**
+	 * Gets the <em>m</em>-th action of which the node with a block-local index
+	 * is a parent. Only available if the index is transposed.
+	 *
+	 * @return the position <em>i</em> of the action in this view
+	 * @throws IllegalStateException
+	 *             if the index is not transposed
+	 */
+	public int getActionOfParent(int index, int m) {
+		if (parentActions == null) {
+			throw new IllegalStateException(
+					"The actions of each parent are not stored in this index");
+		}
+		return parentActions[parentActionOffsets[leadersBegin + index] + m];
+	}
+
+	/**
+	 * @return the number of leaders of the child in the graph, which bounds
+	 *         the block-local indices
+	 */
+	public int sizeLeaders() {
+		return leadersEnd - leadersBegin;
+	}
+
+	/**
+	 * @return the block-local index of a leader of the child, or -1 if the
+	 *         node is not a leader of the child
+	 */
+	public int indexOfParent(int parentId) {
+		int pos = Arrays.binarySearch(leaderIds, leadersBegin, leadersEnd,
+				parentId);
+		return (pos >= 0) ? pos - leadersBegin : -1;
+	}
+
+	/**
+	 * @return the id of the leader of the child with a block-local index
+	 */
+	public int getLeader(int index) {
+		return leaderIds[leadersBegin + index];
+	}
+
+	/**
+	 * @return the position of the leader with a block-local index in
+	 *         {@link edu.toronto.cs.propagation.util.CSRGraph#getLeaderIds()}
+	 */
+	public int getLeaderPosition(int index) {
+		return leadersBegin + index;
+	}
+}
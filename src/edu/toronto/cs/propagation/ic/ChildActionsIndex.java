@@ -0,0 +1,224 @@
+package edu.toronto.cs.propagation.ic;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.logging.ProgressLogger;
+
+import org.apache.log4j.Logger;
+
+import edu.toronto.cs.propagation.util.ArcActionLists;
+import edu.toronto.cs.propagation.util.CSRGraph;
+
+/**
+ * For every child <em>v</em>, the actions in which <em>v</em> has a parent in
+ * a matrix of arcs to actions (such as <em>Aplus</em> or <em>Aminus</em>),
+ * and for each of those actions the parents, i.e., <em>Cplus(v)</em> or
+ * <em>Cminus(v)</em>.
+ * <p>
+ * The index is computed once and stored in compressed sparse row (CSR)
+ * format, indexed by node id. Parents are stored by their block-local index,
+ * i.e., their position among the leaders of the child in the
+ * {@link CSRGraph}, so per-block values can be kept in dense arrays. Actions
+ * are sorted by increasing id, and so are the parents of each action. The
+ * index is immutable, so it can be read by many threads at the same time.
+ */
+public class ChildActionsIndex {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(ChildActionsIndex.class);
+
+	private final CSRGraph graph;
+
+	/**
+	 * For child <em>v</em>, its actions are in
+	 * {@link #actions}[childOffsets[v] .. childOffsets[v+1]-1].
+	 */
+	private final int[] childOffsets;
+
+	private final int[] actions;
+
+	/**
+	 * For the action in position <em>i</em> of {@link #actions}, the
+	 * block-local indices of its parents are in
+	 * {@link #parents}[parentOffsets[i] .. parentOffsets[i+1]-1].
+	 */
+	private final int[] parentOffsets;
+
+	private final int[] parents;
+
+	/**
+	 * For the leader in position <em>pos</em> of
+	 * {@link CSRGraph#getLeaderIds()}, the positions of its actions among the
+	 * actions of its child are in
+	 * {@link #parentActions}[parentActionOffsets[pos] ..
+	 * parentActionOffsets[pos+1]-1], in increasing order. The positions are
+	 * only stored if the index was created transposed; the offsets always
+	 * are.
+	 */
+	private final int[] parentActionOffsets;
+
+	private final int[] parentActions;
+
+	/**
+	 * Indexes a matrix of arcs to actions.
+	 *
+	 * @param graph
+	 *            the graph containing every arc of the matrix
+	 * @param A
+	 *            for every arc, a list of distinct actions
+	 * @param name
+	 *            the name of the matrix, for logging
+	 * @param transposed
+	 *            whether to also store, for every parent, the positions of
+	 *            its actions
+	 */
+	ChildActionsIndex(CSRGraph graph, ArcActionLists A,
+			String name, boolean transposed) {
+		this.graph = graph;
+		int maxNodeId = graph.getMaxNodeId();
+		int[] leaderArcIds = graph.getLeaderArcIds();
+		ArcActionLists.Cursor actionsOfArc = A.cursor();
+		ProgressLogger pl = new ProgressLogger(LOGGER,
+				ProgressLogger.TEN_SECONDS, "nodes");
+		pl.expectedUpdates = maxNodeId + 1;
+		pl.start("Begin indexing " + name + " by child");
+
+		childOffsets = new int[maxNodeId + 2];
+		IntArrayList actionList = new IntArrayList();
+		IntArrayList parentOffsetList = new IntArrayList();
+		IntArrayList parentList = new IntArrayList();
+		long[] pairs = new long[16];
+		for (int v = 0; v <= maxNodeId; v++) {
+			pl.update();
+			childOffsets[v] = actionList.size();
+
+			// (action,parent) pairs, sorted by action and then by parent
+			int nPairs = 0;
+			int begin = graph.getLeadersBegin(v);
+			int end = graph.getLeadersEnd(v);
+			for (int i = begin; i < end; i++) {
+				actionsOfArc.reset(leaderArcIds[i]);
+				pairs = LongArrays.grow(pairs, nPairs + actionsOfArc.size());
+				while (actionsOfArc.hasNext()) {
+					pairs[nPairs++] = ((long) actionsOfArc.nextInt() << 32) | (i - begin);
+				}
+			}
+			LongArrays.quickSort(pairs, 0, nPairs);
+
+			for (int k = 0; k < nPairs; k++) {
+				int action = (int) (pairs[k] >>> 32);
+				if (k == 0 || action != (int) (pairs[k - 1] >>> 32)) {
+					actionList.add(action);
+					parentOffsetList.add(parentList.size());
+				}
+				parentList.add((int) pairs[k]);
+			}
+		}
+		childOffsets[maxNodeId + 1] = actionList.size();
+		parentOffsetList.add(parentList.size());
+
+		actions = actionList.toIntArray();
+		parentOffsets = parentOffsetList.toIntArray();
+		parents = parentList.toIntArray();
+		actionList = null;
+		parentOffsetList = null;
+		parentList = null;
+
+		// Transpose: count the actions of every parent, then fill
+		parentActionOffsets = new int[graph.sizeArcs() + 1];
+		for (int v = 0; v <= maxNodeId; v++) {
+			int begin = graph.getLeadersBegin(v);
+			for (int a = childOffsets[v]; a < childOffsets[v + 1]; a++) {
+				for (int k = parentOffsets[a]; k < parentOffsets[a + 1]; k++) {
+					parentActionOffsets[begin + parents[k] + 1]++;
+				}
+			}
+		}
+		for (int pos = 0; pos < graph.sizeArcs(); pos++) {
+			parentActionOffsets[pos + 1] += parentActionOffsets[pos];
+		}
+		if (transposed) {
+			parentActions = new int[parents.length];
+			int[] cursor = new int[graph.sizeArcs()];
+			System.arraycopy(parentActionOffsets, 0, cursor, 0, cursor.length);
+			for (int v = 0; v <= maxNodeId; v++) {
+				int begin = graph.getLeadersBegin(v);
+				for (int a = childOffsets[v]; a < childOffsets[v + 1]; a++) {
+					for (int k = parentOffsets[a]; k < parentOffsets[a + 1]; k++) {
+						parentActions[cursor[begin + parents[k]]++] = a
+								- childOffsets[v];
+					}
+				}
+			}
+		} else {
+			parentActions = null;
+		}
+		pl.stop("Done indexing " + name + ": " + actions.length
+				+ " (child,action) pairs, " + parents.length + " parents");
+	}
+
+	/**
+	 * Gets the actions of a child and their parents.
+	 *
+	 * @param child
+	 *            the child
+	 * @return a read-only view, empty if the child has no parent in the matrix
+	 */
+	public ChildActions get(int child) {
+		if (child < 0 || child >= childOffsets.length - 1) {
+			return new ChildActions(this, 0, 0, 0, 0);
+		}
+		return new ChildActions(this, childOffsets[child],
+				childOffsets[child + 1], graph.getLeadersBegin(child),
+				graph.getLeadersEnd(child));
+	}
+
+	int[] getActions() {
+		return actions;
+	}
+
+	int[] getParentOffsets() {
+		return parentOffsets;
+	}
+
+	int[] getParents() {
+		return parents;
+	}
+
+	int[] getParentActionOffsets() {
+		return parentActionOffsets;
+	}
+
+	int[] getParentActions() {
+		return parentActions;
+	}
+
+	/**
+	 * @return true iff the positions of the actions of every parent are
+	 *         stored
+	 */
+	public boolean isTransposed() {
+		return parentActions != null;
+	}
+
+	/**
+	 * @return the graph defining the block-local indices of the parents
+	 */
+	public CSRGraph getGraph() {
+		return graph;
+	}
+
+	/**
+	 * @return the number of (child,action) pairs
+	 */
+	public int sizeActions() {
+		return actions.length;
+	}
+
+	/**
+	 * @return the number of (child,action,parent) triples
+	 */
+	public int sizeParents() {
+		return parents.length;
+	}
+}
@@ -0,0 +1,150 @@
+package edu.toronto.cs.propagation.ic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPException;
+import com.martiansoftware.jsap.JSAPResult;
+import com.martiansoftware.jsap.Parameter;
+import com.martiansoftware.jsap.SimpleJSAP;
+
+import edu.toronto.cs.propagation.SocialNetwork;
+import edu.toronto.cs.propagation.util.NodeDictionary;
+import edu.toronto.cs.propagation.util.ProbabilitiesFileReader;
+import edu.toronto.cs.propagation.util.ProbabilitiesFileWriter;
+import edu.toronto.cs.propagation.util.TabSeparatedFileParser;
+import edu.toronto.cs.propagation.util.Utilities;
+
+/**
+ * Converts a file of propagation probabilities from text to binary, or from
+ * binary to text, keeping the order of the arcs.
+ * <p>
+ * The binary files are read by {@link ICModel#ICModel(SocialNetwork, File)}
+ * without parsing numbers or looking up every node name.
+ */
+public class ConvertProbabilities {
+
+	static Logger LOGGER = Logger.getLogger(ConvertProbabilities.class);
+	static {
+		BasicConfigurator.resetConfiguration();
+		BasicConfigurator.configure();
+	}
+
+	/**
+	 * Converts a text file to binary.
+	 *
+	 * @param input
+	 *            the text file
+	 * @param output
+	 *            the binary file
+	 * @param dictionary
+	 *            the dictionary to number the nodes; the ids are those that
+	 *            loading the social network gives, if it is its dictionary
+	 * @return the number of probabilities converted
+	 */
+	public static long textToBinary(File input, File output,
+			NodeDictionary dictionary) throws IOException {
+		ProbabilitiesFileWriter writer = new ProbabilitiesFileWriter(output,
+				dictionary);
+		TabSeparatedFileParser parser = new TabSeparatedFileParser(input);
+		try {
+			while (parser.nextLine()) {
+				if (parser.firstByte() != '#' && !isDefaultProbability(parser)) {
+					writer.write(parser.internNode(0, dictionary),
+							parser.internNode(1, dictionary),
+							parser.parseDouble(2));
+				}
+			}
+		} finally {
+			parser.close();
+			writer.close();
+		}
+		return writer.size();
+	}
+
+	private static boolean isDefaultProbability(TabSeparatedFileParser parser) {
+		if (!parser.fieldEqualsIgnoreCase(0, "defaultProbability")) {
+			return false;
+		}
+		if (parser.parseDouble(1) > 0.0) {
+			throw new IllegalArgumentException(
+					"Deprecated: default probability must be zero");
+		}
+		return true;
+	}
+
+	/**
+	 * Converts a binary file to text, in the format of
+	 * {@link ICModel#dumpProbabilities(PrintWriter)}.
+	 *
+	 * @param input
+	 *            the binary file
+	 * @param output
+	 *            the text file
+	 * @return the number of probabilities converted
+	 */
+	public static long binaryToText(File input, File output) throws IOException {
+		NodeDictionary dictionary = new NodeDictionary();
+		ProbabilitiesFileReader reader = new ProbabilitiesFileReader(input,
+				dictionary, true);
+		PrintWriter pw = Utilities.getPW(output.getPath());
+		try {
+			pw.println("#Propagation probabilities");
+			int n = reader.size();
+			for (int i = 0; i < n; i++) {
+				pw.println(dictionary.getName(reader.getLeaderId(i)) + "\t"
+						+ dictionary.getName(reader.getFollowerId(i)) + "\t"
+						+ reader.getProbability(i));
+			}
+			return n;
+		} finally {
+			pw.close();
+			reader.close();
+		}
+	}
+
+	public static void main(String[] args) throws JSAPException, IOException {
+		final SimpleJSAP jsap = new SimpleJSAP(
+				ConvertProbabilities.class.getName(),
+				"Converts propagation probabilities between the text and the binary format; the direction is given by the format of the input.",
+				new Parameter[] {
+						new FlaggedOption("input", JSAP.STRING_PARSER,
+								JSAP.NO_DEFAULT, JSAP.REQUIRED, 'i', "input",
+								"The file containing the propagation probabilities"),
+						new FlaggedOption("output", JSAP.STRING_PARSER,
+								JSAP.NO_DEFAULT, JSAP.REQUIRED, 'o', "output",
+								"The file to write the converted probabilities to"),
+						new FlaggedOption("social-network", JSAP.STRING_PARSER,
+								JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 's',
+								"social-network",
+								"The file containing the social network graph, to number the nodes of a binary output as it does"), });
+
+		final JSAPResult jsapResult = jsap.parse(args);
+		if (jsap.messagePrinted()) {
+			return;
+		}
+
+		File input = new File(jsapResult.getString("input"));
+		File output = new File(jsapResult.getString("output"));
+		long n;
+		if (ProbabilitiesFileReader.isProbabilitiesFile(input)) {
+			LOGGER.info("Converting " + input + " from binary to text");
+			n = binaryToText(input, output);
+		} else {
+			NodeDictionary dictionary = new NodeDictionary();
+			if (jsapResult.userSpecified("social-network")) {
+				new SocialNetwork(dictionary, new File(
+						jsapResult.getString("social-network")));
+			}
+			LOGGER.info("Converting " + input + " from text to binary");
+			n = textToBinary(input, output, dictionary);
+		}
+		LOGGER.info("Converted " + n + " probabilities to " + output);
+	}
+}
@@ -0,0 +1,450 @@
+package edu.toronto.cs.propagation.ic;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.logging.ProgressLogger;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+
+import org.apache.log4j.Logger;
+
+import edu.toronto.cs.propagation.util.ArcActionLists;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
+import edu.toronto.cs.propagation.util.CSRGraph;
+import edu.toronto.cs.propagation.util.Utilities;
+
+/**
+ * The EM iteration of {@link ICEstimateEM} over a chunk of arcs.
+ * <p>
+ * The update is Jacobi-style: every arc is updated from the estimates of the
+ * previous iteration only. The estimates are kept in two arrays indexed by
+ * the position of the arc in the chunk; each iteration reads one and writes
+ * the other, and then the two are swapped, so iterating does not allocate.
+ * <p>
+ * With more than one thread, the (action,follower) probabilities and then the
+ * arcs are split into ranges of similar cost, one per thread, with a barrier
+ * after each phase. The squared difference between iterations is added up
+ * by range, in a fixed order, so the result does not depend on scheduling.
+ */
+class EMChunk {
+
+	/**
+	 * Chunks with fewer arcs per thread than this are iterated by fewer
+	 * threads, as the barriers would cost more than the updates.
+	 */
+	static final int MIN_ARCS_PER_THREAD = 1024;
+
+	/**
+	 * The number of consecutive iterations an arc must change by less than
+	 * the tolerance before it stops being updated, see
+	 * {@link #iterateActiveSet(int, double, double, int, Logger, ProgressLogger)}.
+	 */
+	static final int ARC_PATIENCE = 3;
+
+	private final int[] arcIds;
+
+	/**
+	 * |Aplus| + |Aminus| of every arc, by position.
+	 */
+	private final int[] denominators;
+
+	/**
+	 * |Aminus| of every arc, by position.
+	 */
+	private final int[] aMinusSizes;
+
+	private final PAlphaTable pAlphaTable;
+
+	/**
+	 * The estimates of the last iteration, by position.
+	 */
+	private double[] currentProbs;
+
+	/**
+	 * The estimates being computed, by position.
+	 */
+	private double[] nextProbs;
+
+	/**
+	 * Creates a chunk, with the initial estimates of its arcs.
+	 *
+	 * @param graph
+	 *            the graph defining the arc ids
+	 * @param arcIds
+	 *            the arcs, grouped by follower; all have a non-empty
+	 *            <em>Aplus</em>
+	 * @param initialProbs
+	 *            the initial estimates
+	 * @param Aplus
+	 *            Aplus
+	 * @param Aminus
+	 *            Aminus
+	 * @param Bplus
+	 *            Bplus
+	 */
+	EMChunk(CSRGraph graph, int[] arcIds, ArcProbabilities initialProbs,
+			ArcActionLists Aplus, ArcActionLists Aminus,
+			BplusIndex Bplus) {
+		this.arcIds = arcIds;
+		denominators = new int[arcIds.length];
+		aMinusSizes = new int[arcIds.length];
+		currentProbs = new double[arcIds.length];
+		nextProbs = new double[arcIds.length];
+		for (int pos = 0; pos < arcIds.length; pos++) {
+			aMinusSizes[pos] = Aminus.size(arcIds[pos]);
+			denominators[pos] = Aplus.size(arcIds[pos]) + aMinusSizes[pos];
+			currentProbs[pos] = initialProbs.get(arcIds[pos]);
+		}
+		pAlphaTable = new PAlphaTable(graph, arcIds, Bplus);
+	}
+
+	/**
+	 * @return the number of arcs
+	 */
+	int size() {
+		return arcIds.length;
+	}
+
+	/**
+	 * Gets the current estimates, by position. This is the array copied by
+	 * {@link #copyTo(ArcProbabilities)}, and it may be modified.
+	 *
+	 * @return the current estimates
+	 */
+	double[] getEstimates() {
+		return currentProbs;
+	}
+
+	/**
+	 * Copies the current estimates of the arcs of this chunk.
+	 *
+	 * @param probs
+	 *            the destination
+	 */
+	void copyTo(ArcProbabilities probs) {
+		for (int pos = 0; pos < arcIds.length; pos++) {
+			probs.set(arcIds[pos], currentProbs[pos]);
+		}
+	}
+
+	/**
+	 * Computes one EM update of all the arcs, in the calling thread.
+	 *
+	 * @param current
+	 *            the estimates to update, by position
+	 * @param next
+	 *            output: the updated estimates, by position
+	 * @return the squared difference between the two
+	 */
+	double step(double[] current, double[] next) {
+		pAlphaTable.update(current, 0, pAlphaTable.sizeSlots());
+		return updateArcs(current, next, 0, arcIds.length);
+	}
+
+	/**
+	 * Computes the log-likelihood maximized by EM, over the arcs of this
+	 * chunk: the sum of log(pAlpha) over the (action,follower) pairs of the
+	 * arcs plus, for every arc, |Aminus| log(1-p).
+	 *
+	 * @param probs
+	 *            the estimates, by position
+	 * @return the log-likelihood
+	 */
+	double logLikelihood(double[] probs) {
+		pAlphaTable.update(probs, 0, pAlphaTable.sizeSlots());
+		double logL = pAlphaTable.sumOfLogs();
+		for (int pos = 0; pos < arcIds.length; pos++) {
+			if (aMinusSizes[pos] > 0) {
+				logL += aMinusSizes[pos] * Math.log(1.0 - probs[pos]);
+			}
+		}
+		return logL;
+	}
+
+	/**
+	 * Computes the next estimate of a range of arcs, using the values of
+	 * pAlpha of the current estimates.
+	 *
+	 * @return the squared difference with the current estimates
+	 */
+	private double updateArcs(double[] current, double[] next, int fromPos,
+			int toPos) {
+		double l2sq = 0.0;
+		for (int pos = fromPos; pos < toPos; pos++) {
+			double currentProb = current[pos];
+			if (currentProb == 0.0) {
+				// arcs with zero probability stay at zero
+				next[pos] = 0.0;
+				continue;
+			}
+			double prob = currentProb / (double) denominators[pos];
+			prob *= pAlphaTable.sumOfInverses(pos);
+			next[pos] = prob;
+			double d = currentProb - prob;
+			l2sq += d * d;
+		}
+		return l2sq;
+	}
+
+	private void swap() {
+		double[] aux = currentProbs;
+		currentProbs = nextProbs;
+		nextProbs = aux;
+	}
+
+	/**
+	 * Iterates until the estimates converge.
+	 *
+	 * @param maxIterations
+	 *            the maximum number of iterations, -1 means infinity
+	 * @param minDifference
+	 *            iteration stops when the squared difference between two
+	 *            iterations is below this (0=ignore)
+	 * @param numberOfThreads
+	 *            the maximum number of threads
+	 * @param logger
+	 *            a logger, or null
+	 * @param pl
+	 *            a progress logger, possibly shared with other chunks, or
+	 *            null
+	 * @return the number of iterations
+	 */
+	int iterate(int maxIterations, double minDifference, int numberOfThreads,
+			Logger logger, ProgressLogger pl) {
+		int threads = Math.max(1, Math.min(numberOfThreads, arcIds.length
+				/ MIN_ARCS_PER_THREAD));
+		if (threads == 1) {
+			return iterateSequential(maxIterations, minDifference, logger, pl);
+		} else {
+			return iterateParallel(maxIterations, minDifference, threads,
+					logger, pl);
+		}
+	}
+
+	private int iterateSequential(int maxIterations, double minDifference,
+			Logger logger, ProgressLogger pl) {
+		int iteration;
+		for (iteration = 0; (iteration < maxIterations || maxIterations == -1); iteration++) {
+			double l2sq = step(currentProbs, nextProbs);
+			if (endOfIteration(l2sq, minDifference, logger, pl)) {
+				return iteration + 1;
+			}
+		}
+		return iteration;
+	}
+
+	/**
+	 * Swaps the buffers unless the estimates have converged.
+	 *
+	 * @return true iff the estimates have converged
+	 */
+	private boolean endOfIteration(double l2sq, double minDifference,
+			Logger logger, ProgressLogger pl) {
+		if (pl != null) {
+			synchronized (pl) {
+				pl.update();
+			}
+		}
+		if ((minDifference > 0) && (l2sq < minDifference)) {
+			if (logger != null) {
+				logger.info("Difference is " + l2sq + " < " + minDifference);
+			}
+			// keep the estimates of the previous iteration, as before
+			return true;
+		}
+		swap();
+		return false;
+	}
+
+	/**
+	 * Iterates until the estimates converge, updating only the followers
+	 * whose arcs are still changing. An arc is quiet once its change stays
+	 * below arcTolerance for {@link #ARC_PATIENCE} iterations, and a follower
+	 * leaves the active set when all its arcs are quiet. Every
+	 * fullSweepInterval iterations, and before stopping, all the followers
+	 * are updated, and those with an arc that changed by arcTolerance or more
+	 * become active again. Iteration stops only after a full sweep.
+	 * <p>
+	 * The arcs of a follower are only read by the updates of that follower,
+	 * so when a follower leaves the active set its latest estimates are
+	 * written to both buffers and it can be skipped until the next full
+	 * sweep.
+	 *
+	 * @param maxIterations
+	 *            the maximum number of iterations, -1 means infinity
+	 * @param minDifference
+	 *            iteration stops when the squared difference between two
+	 *            iterations is below this (0=ignore)
+	 * @param arcTolerance
+	 *            the tolerance for the change of every arc
+	 * @param fullSweepInterval
+	 *            the number of iterations between full sweeps
+	 * @param logger
+	 *            a logger, or null
+	 * @param pl
+	 *            a progress logger, possibly shared with other chunks, or
+	 *            null
+	 * @return the number of iterations
+	 */
+	int iterateActiveSet(int maxIterations, double minDifference,
+			double arcTolerance, int fullSweepInterval, Logger logger,
+			ProgressLogger pl) {
+		int nFollowers = pAlphaTable.sizeFollowers();
+		int[] quietIterations = new int[arcIds.length];
+		int[] active = new int[nFollowers];
+		int[] nextActive = new int[nFollowers];
+		int nActive = 0;
+		long arcUpdates = 0;
+		boolean fullSweep = true;
+		int iteration;
+		for (iteration = 0; (iteration < maxIterations || maxIterations == -1); iteration++) {
+			if (iteration % fullSweepInterval == 0) {
+				fullSweep = true;
+			}
+			int nToUpdate = fullSweep ? nFollowers : nActive;
+			int nNextActive = 0;
+			double l2sq = 0.0;
+			for (int i = 0; i < nToUpdate; i++) {
+				int follower = fullSweep ? i : active[i];
+				int fromPos = pAlphaTable.followerArcOffset(follower);
+				int toPos = pAlphaTable.followerArcOffset(follower + 1);
+				pAlphaTable.update(currentProbs,
+						pAlphaTable.followerSlotOffset(follower),
+						pAlphaTable.followerSlotOffset(follower + 1));
+				l2sq += updateArcs(currentProbs, nextProbs, fromPos, toPos);
+				arcUpdates += toPos - fromPos;
+
+				boolean quiet = true;
+				for (int pos = fromPos; pos < toPos; pos++) {
+					if (Math.abs(nextProbs[pos] - currentProbs[pos]) < arcTolerance) {
+						quietIterations[pos]++;
+					} else {
+						quietIterations[pos] = 0;
+					}
+					quiet &= quietIterations[pos] >= ARC_PATIENCE;
+				}
+				if (quiet) {
+					System.arraycopy(nextProbs, fromPos, currentProbs, fromPos,
+							toPos - fromPos);
+				} else {
+					nextActive[nNextActive++] = follower;
+				}
+			}
+			if (pl != null) {
+				synchronized (pl) {
+					pl.update();
+				}
+			}
+			if (minDifference > 0 && l2sq < minDifference) {
+				if (fullSweep) {
+					if (logger != null) {
+						logger.info("Difference is " + l2sq + " < "
+								+ minDifference);
+					}
+					// keep the estimates of the previous iteration, as before
+					iteration++;
+					break;
+				}
+			}
+			// Confirm convergence, or an empty active set, with a full sweep
+			fullSweep = (minDifference > 0 && l2sq < minDifference)
+					|| nNextActive == 0;
+			swap();
+			int[] aux = active;
+			active = nextActive;
+			nextActive = aux;
+			nActive = nNextActive;
+		}
+		if (logger != null) {
+			logger.info("Active set: " + arcUpdates + " arc updates instead of "
+					+ (long) iteration * arcIds.length);
+		}
+		return iteration;
+	}
+
+	private int iterateParallel(final int maxIterations,
+			final double minDifference, final int threads,
+			final Logger logger, final ProgressLogger pl) {
+		final int[] slotSplits = pAlphaTable.splitSlots(threads);
+		final int[] arcSplits = pAlphaTable.splitArcs(threads);
+		final double[] partialL2sq = new double[threads];
+		final int[] iterations = new int[1];
+		final boolean[] done = new boolean[] { maxIterations == 0 };
+		final Throwable[] failure = new Throwable[1];
+
+		// Runs in the last thread to reach the barrier; the barrier makes its
+		// effects visible to all threads
+		final CyclicBarrier arcsUpdated = new CyclicBarrier(threads,
+				new Runnable() {
+					public void run() {
+						if (failure[0] != null) {
+							done[0] = true;
+							return;
+						}
+						double l2sq = 0.0;
+						for (int t = 0; t < threads; t++) {
+							l2sq += partialL2sq[t];
+						}
+						iterations[0]++;
+						done[0] = endOfIteration(l2sq, minDifference, logger,
+								pl)
+								|| (iterations[0] >= maxIterations && maxIterations != -1);
+					}
+				});
+		final CyclicBarrier slotsUpdated = new CyclicBarrier(threads);
+
+		ObjectArrayList<Callable<Void>> workers = new ObjectArrayList<Callable<Void>>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			workers.add(new Callable<Void>() {
+				public Void call() {
+					try {
+						while (!done[0]) {
+							try {
+								pAlphaTable.update(currentProbs,
+										slotSplits[thread],
+										slotSplits[thread + 1]);
+							} catch (RuntimeException e) {
+								fail(e);
+							}
+							slotsUpdated.await();
+							try {
+								partialL2sq[thread] = updateArcs(
+										currentProbs, nextProbs,
+										arcSplits[thread],
+										arcSplits[thread + 1]);
+							} catch (RuntimeException e) {
+								fail(e);
+							}
+							arcsUpdated.await();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException(e);
+					} catch (BrokenBarrierException e) {
+						throw new IllegalStateException(e);
+					}
+					return null;
+				}
+
+				/**
+				 * Records a failure, but keeps going through the barriers so
+				 * the other threads can finish.
+				 */
+				private void fail(RuntimeException e) {
+					synchronized (failure) {
+						if (failure[0] == null) {
+							failure[0] = e;
+						}
+					}
+				}
+			});
+		}
+		Utilities.runTasks(workers, threads);
+		if (failure[0] instanceof RuntimeException) {
+			throw (RuntimeException) failure[0];
+		}
+		return iterations[0];
+	}
+}
@@ -21,9 +21,11 @@ import com.martiansoftware.jsap.Switch;
 import edu.toronto.cs.propagation.ObservationsReader;
 import edu.toronto.cs.propagation.SocialNetwork;
 import edu.toronto.cs.propagation.ic.candidate_selection.CandidateSelectionPolicy;
+import edu.toronto.cs.propagation.util.ActiveSet;
 import edu.toronto.cs.propagation.util.DelayThreshold;
 import edu.toronto.cs.propagation.util.Iterative;
-import edu.toronto.cs.propagation.util.Utilities;
+import edu.toronto.cs.propagation.util.Multithreaded;
+import edu.toronto.cs.propagation.util.NodeDictionary;
 
 /**
  * An abstract estimator for an independent cascade model, given a set of observations.
@@ -94,8 +96,14 @@ public abstract class ICEstimate {
 						"The maximum number of iterations allowed for iterative methods (-1=infinite)"),
 				new FlaggedOption("number-of-chunks", JSAP.INTEGER_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'r', "number-of-chunks",
 						"The number of chunks to be sparsified in parralel"),
+				new FlaggedOption("threads", JSAP.INTEGER_PARSER, Integer.toString(Multithreaded.DEFAULT_NUMBER_OF_THREADS), JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "threads",
+						"The number of threads used to compute the auxiliary variables and by multi-threaded estimators (default: number of processors)"),
 				new FlaggedOption("min-difference", JSAP.DOUBLE_PARSER, Double.toString(ICEstimateEM.DEFAULT_MIN_DIFFERENCE), JSAP.NOT_REQUIRED, 'd', "min-difference",
 						"The minimum difference between the L2 norm in two iterations to continue iterating (0=ignore)"),
+				new FlaggedOption("arc-tolerance", JSAP.DOUBLE_PARSER, Double.toString(ActiveSet.DEFAULT_ARC_TOLERANCE), JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "arc-tolerance",
+						"Stop updating arcs whose change stays below this, until the next full sweep (0=update all arcs in every iteration)"),
+				new FlaggedOption("full-sweep-interval", JSAP.INTEGER_PARSER, Integer.toString(ActiveSet.DEFAULT_FULL_SWEEP_INTERVAL), JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "full-sweep-interval",
+						"The number of iterations between updates of all arcs, when using an arc tolerance"),
 				new FlaggedOption("delay-threshold-multiplier", JSAP.DOUBLE_PARSER, Double.toString(ICEstimateEMWithDelayThreshold.DEFAULT_DELAY_THRESHOLD_MULTIPLIER),
 						JSAP.NOT_REQUIRED, 't', "delay-threshold-multiplier",
 						"The delay-threshold multiplier (will be multiplied by the mean delay to compute the threshold)"),
@@ -103,6 +111,7 @@ public abstract class ICEstimate {
 						"The base name for reading a pre-computed auxiliary structure"),
 				new Switch("debug-recompute-ll", JSAP.NO_SHORTFLAG, "debug-recompute-ll", "Re-compute the log-likelihood of the estimated model from the input data, use for debugging"), 
 				new FlaggedOption("output-file", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'o', "output-file", "The output file to write the model to"),
+				new Switch("binary-output", JSAP.NO_SHORTFLAG, "binary-output", "Write the model in binary, to be loaded faster"),
 				new FlaggedOption("input", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'i', "input", "The file containing the observations"), });
 
 		final JSAPResult jsapResult = jsap.parse(args);
@@ -112,7 +121,8 @@ public abstract class ICEstimate {
 
 		// Load social network
 		String snFilename = jsapResult.getString("social-network");
-		SocialNetwork socNet = new SocialNetwork(Utilities.getIterator(snFilename));
+		NodeDictionary dictionary = new NodeDictionary();
+		SocialNetwork socNet = new SocialNetwork(dictionary, new File(snFilename));
 		LOGGER.info("Social network size: nodes=" + socNet.sizeNodes() + ", arcs=" + socNet.sizeArcs() );
 
 		// Load estimator
@@ -123,7 +133,8 @@ public abstract class ICEstimate {
 		
 		// Open observations
 		String obsFilename = jsapResult.getString("input");
-		ObservationsReader observations = new ObservationsReader(obsFilename);
+		ObservationsReader observations = new ObservationsReader(dictionary, obsFilename, true);
+		dictionary.freeze();
 
 		// See if we have an auxiliary file
 		if (jsapResult.userSpecified("auxiliary-basename")) {
@@ -160,6 +171,9 @@ public abstract class ICEstimate {
 			LOGGER.info("Computing auxiliary variables");
 			estimator.computeAuxiliary(observations);
 		}
+		if (jsapResult.userSpecified("threads")) {
+			estimator.auxiliary.setNumberOfThreads(jsapResult.getInt("threads"));
+		}
 		LOGGER.info("Number of actions: " + estimator.getnActions() );
 			
 		// Configure estimator
@@ -183,6 +197,36 @@ public abstract class ICEstimate {
 			}
 			LOGGER.info("Estimation minDifference: " + minDifference);
 		}
+		if (jsapResult.userSpecified("threads")) {
+			int numberOfThreads = jsapResult.getInt("threads");
+			try {
+				((Multithreaded) estimator).setNumberOfThreads(numberOfThreads);
+			} catch (ClassCastException e) {
+				LOGGER.error("This type of estimator does not accept the threads parameter");
+				return;
+			}
+			LOGGER.info("Estimation number of threads: " + numberOfThreads);
+		}
+		if (jsapResult.userSpecified("arc-tolerance")) {
+			double arcTolerance = jsapResult.getDouble("arc-tolerance");
+			try {
+				((ActiveSet) estimator).setArcTolerance(arcTolerance);
+			} catch (ClassCastException e) {
+				LOGGER.error("This type of estimator does not accept the arc-tolerance parameter");
+				return;
+			}
+			LOGGER.info("Estimation arcTolerance: " + arcTolerance);
+		}
+		if (jsapResult.userSpecified("full-sweep-interval")) {
+			int fullSweepInterval = jsapResult.getInt("full-sweep-interval");
+			try {
+				((ActiveSet) estimator).setFullSweepInterval(fullSweepInterval);
+			} catch (ClassCastException e) {
+				LOGGER.error("This type of estimator does not accept the full-sweep-interval parameter");
+				return;
+			}
+			LOGGER.info("Estimation fullSweepInterval: " + fullSweepInterval);
+		}
 		int numOfChunks = 1;
 		if (jsapResult.userSpecified("number-of-chunks")) {
 			numOfChunks = jsapResult.getInt("number-of-chunks");
@@ -196,14 +240,18 @@ public abstract class ICEstimate {
 		if (jsapResult.userSpecified("output-file")) {
 			String filename = jsapResult.getString("output-file");
 			LOGGER.info("Writing model to " + filename);
-			PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(new File(filename))));
-			estimatedModel.dumpProbabilities(pw);
-			pw.close();
+			if (jsapResult.getBoolean("binary-output")) {
+				estimatedModel.writeProbabilities(new File(filename));
+			} else {
+				PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(new File(filename))));
+				estimatedModel.dumpProbabilities(pw);
+				pw.close();
+			}
 		}
 
 		if (jsapResult.userSpecified("actual-probabilities")) {
 			// Print comparison
-			ICModel actualModel = new ICModel(socNet, Utilities.getIterator(jsapResult.getString("actual-probabilities")));
+			ICModel actualModel = new ICModel(socNet, new File(jsapResult.getString("actual-probabilities")));
 			actualModel.dumpComparisonWithAlternative(estimatedModel, true);
 		}
 
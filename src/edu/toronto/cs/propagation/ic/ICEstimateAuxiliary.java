@@ -5,34 +5,32 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
-import it.unimi.dsi.io.FastBufferedReader;
-import it.unimi.dsi.io.LineIterator;
 import it.unimi.dsi.logging.ProgressLogger;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
-
 import com.martiansoftware.jsap.FlaggedOption;
 import com.martiansoftware.jsap.JSAP;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import com.martiansoftware.jsap.Parameter;
 import com.martiansoftware.jsap.SimpleJSAP;
+import com.martiansoftware.jsap.Switch;
 
 import edu.toronto.cs.propagation.ObservationsReader;
 import edu.toronto.cs.propagation.PropagationHistory;
@@ -40,18 +38,22 @@ import edu.toronto.cs.propagation.SocialNetwork;
 import edu.toronto.cs.propagation.ic.candidate_selection.CandidateSelectionPolicy;
 import edu.toronto.cs.propagation.ic.candidate_selection.CandidateSelectionPolicy.CandidateType;
 import edu.toronto.cs.propagation.ic.candidate_selection.SelectByTimePrecedence;
-import edu.toronto.cs.propagation.util.Arc;
+import edu.toronto.cs.propagation.util.ArcActionLists;
 import edu.toronto.cs.propagation.util.ArcWithTimestamp;
-import edu.toronto.cs.propagation.util.Int2ArrayOfIntMap;
+import edu.toronto.cs.propagation.util.BinaryFileWriter;
+import edu.toronto.cs.propagation.util.CSRGraph;
+import edu.toronto.cs.propagation.util.MappedFileReader;
+import edu.toronto.cs.propagation.util.Multithreaded;
 import edu.toronto.cs.propagation.util.Node;
-import edu.toronto.cs.propagation.util.SparseIntArrayListMatrix2D;
+import edu.toronto.cs.propagation.util.NodeDictionary;
+import edu.toronto.cs.propagation.util.TabSeparatedFileParser;
 import edu.toronto.cs.propagation.util.Utilities;
 
 /**
  * Auxiliary data structures.
  * 
  */
-public class ICEstimateAuxiliary {
+public class ICEstimateAuxiliary implements Multithreaded {
 
 	private static final String PROPERTIES_KEY_CANDIDATE_SELECTION_POLICY = "candidateSelectionPolicy";
 
@@ -69,6 +71,28 @@ public class ICEstimateAuxiliary {
 
 	private static final String FILE_SUFFIX_PROPERTIES = ".properties";
 
+	private static final String FILE_SUFFIX_BINARY = ".aux";
+
+	/**
+	 * The first bytes of the binary format, "SPAX".
+	 */
+	private static final int BINARY_MAGIC = 0x53504158;
+
+	/**
+	 * The version of the binary format written. Readers accept this version
+	 * and all the previous ones. Version 1 stored Aplus and Aminus as arrays
+	 * of ints; version 2 stores the arcs of the social network, and Aplus and
+	 * Aminus compressed as they are in memory; version 3 also stores Bplus as
+	 * it is in memory, rather than by action.
+	 */
+	private static final int BINARY_VERSION = 3;
+
+	/**
+	 * The number of shards of actions per thread, so threads that finish
+	 * early can take more work.
+	 */
+	private static final int SHARDS_PER_THREAD = 4;
+
 	static Logger LOGGER = Logger.getLogger(ICEstimateAuxiliary.class);
 	static {
 		BasicConfigurator.resetConfiguration();
@@ -80,6 +104,11 @@ public class ICEstimateAuxiliary {
 	 */
 	private final SocialNetwork sn;
 
+	/**
+	 * The node dictionary of the social network and the observations.
+	 */
+	private final NodeDictionary dictionary;
+
 	/**
 	 * The observations (propagations).
 	 */
@@ -101,20 +130,20 @@ public class ICEstimateAuxiliary {
 	 * For every arc (parent,child), it contains the actions for which that
 	 * parent may have activated the child.
 	 */
-	private SparseIntArrayListMatrix2D Aplus;
+	private ArcActionLists Aplus;
 
 	/**
 	 * For every arc (parent,child), it contains the actions for which that
 	 * parent certainly did not active the child.
 	 */
-	private SparseIntArrayListMatrix2D Aminus;
+	private ArcActionLists Aminus;
 
 	/**
 	 * For every action <em>a</em>, for every node <em>v</em>, it contains the
 	 * set of nodes <em>u</em> such that <em>Aplus(u,v)</em> contains <em>a</em>
 	 * .
 	 */
-	private ObjectArrayList<Int2ArrayOfIntMap> Bplus;
+	private BplusIndex Bplus;
 
 	/**
 	 * The total number of actions seen
@@ -126,9 +155,32 @@ public class ICEstimateAuxiliary {
 	 */
 	private CandidateSelectionPolicy candidateSelectionPolicy;
 
-	private Int2ObjectOpenHashMap<IntArrayList> cPlusOnline;
+	/**
+	 * For every action, the nodes it activated, in the order of its events.
+	 * Kept from the pass over the observations until {@link #Aplus},
+	 * {@link #Aminus} and {@link #Bplus} are computed.
+	 */
+	private ObjectArrayList<int[]> activatedNodesPerAction;
+
+	/**
+	 * The nodes in the order in which they were first added to
+	 * {@link #nodeActions}, including omega, or null if unknown. Replaying
+	 * these insertions gives a map with the same iteration order, which
+	 * decides the order in which nodes are processed.
+	 */
+	private int[] nodeActionsInsertionOrder;
+
+	private int numberOfThreads = DEFAULT_NUMBER_OF_THREADS;
 
-	private Int2ObjectOpenHashMap<IntArrayList> cMinusOnline;
+	/**
+	 * For every child, the actions of {@link #Aplus} and their parents.
+	 */
+	private volatile ChildActionsIndex cPlus;
+
+	/**
+	 * For every child, the actions of {@link #Aminus} and their parents.
+	 */
+	private volatile ChildActionsIndex cMinus;
 
 	/**
 	 * Creates a new set of auxiliary variables.
@@ -140,11 +192,20 @@ public class ICEstimateAuxiliary {
 	 * @param candidateSelectionPolicy
 	 *            a policy for selecting the candidate activators from the
 	 *            parents of a node
+	 * @throws IllegalArgumentException
+	 *             if the observations were read with a node dictionary
+	 *             different from the one of the social network
 	 */
 	public ICEstimateAuxiliary(SocialNetwork sn,
 			ObservationsReader observations,
 			CandidateSelectionPolicy candidateSelectionPolicy) {
+		if (observations.getNodeDictionary() != null
+				&& observations.getNodeDictionary() != sn.getNodeDictionary()) {
+			throw new IllegalArgumentException(
+					"The observations and the social network use different node dictionaries");
+		}
 		this.sn = sn;
+		this.dictionary = sn.getNodeDictionary();
 		this.observationsReader = observations;
 		this.candidateSelectionPolicy = candidateSelectionPolicy;
 		this.nActions = -1;
@@ -153,8 +214,8 @@ public class ICEstimateAuxiliary {
 		this.Bplus = null;
 		this.nodeActions = null;
 		this.activationTimePerAction = null;
-		this.cPlusOnline = null;
-		this.cMinusOnline = null;
+		this.cPlus = null;
+		this.cMinus = null;
 	}
 
 	public void clear() {
@@ -163,11 +224,14 @@ public class ICEstimateAuxiliary {
 		Bplus = null;
 		nodeActions = null;
 		activationTimePerAction = null;
+		activatedNodesPerAction = null;
+		cPlus = null;
+		cMinus = null;
 	}
 
 	public int getnActions() {
 		if (nActions == -1) {
-			computeNodeActions();
+			readObservations();
 		}
 		return nActions;
 	}
@@ -183,37 +247,11 @@ public class ICEstimateAuxiliary {
 	 */
 	public Int2ObjectOpenHashMap<IntOpenHashSet> getNodeActions() {
 		if (nodeActions == null) {
-			computeNodeActions();
+			readObservations();
 		}
 		return nodeActions;
 	}
 
-	/**
-	 * Computes {@link #nodeActions}
-	 * 
-	 * @return
-	 */
-	private void computeNodeActions() {
-		nodeActions = new Int2ObjectOpenHashMap<IntOpenHashSet>();
-		IntOpenHashSet distinctActions = new IntOpenHashSet();
-		Iterator<PropagationHistory> iterator = observationsReader.iterator();
-		for (int action = 0; action < observationsReader.size(); action++) {
-			PropagationHistory history = iterator.next();
-			for (ArcWithTimestamp propagation : history.getEvents()) {
-				int childId = propagation.getFollowerId();
-				if (!nodeActions.containsKey(childId)) {
-					nodeActions.put(childId, new IntOpenHashSet());
-				}
-				nodeActions.get(childId).add(action);
-				distinctActions.add(action);
-			}
-		}
-
-		// Remove node omega
-		nodeActions.remove(Node.DEFAULT_START_NODE.getId());
-		nActions = distinctActions.size();
-	}
-
 	/**
 	 * Pre-computes and returns {@link #activationTimePerAction}
 	 * 
@@ -221,46 +259,17 @@ public class ICEstimateAuxiliary {
 	 */
 	public ObjectArrayList<Int2LongOpenHashMap> getActivationTimePerAction() {
 		if (activationTimePerAction == null) {
-			computeActivationTimePerAction();
+			readObservations();
 		}
 		return activationTimePerAction;
 	}
 
-	/**
-	 * Computes {@link #activationTimePerAction}
-	 */
-	private void computeActivationTimePerAction() {
-		if (nActions == -1) {
-			computeNodeActions();
-		}
-
-		ProgressLogger pl = new ProgressLogger(LOGGER,
-				ProgressLogger.TEN_SECONDS, "actions");
-		pl.expectedUpdates = nActions;
-		pl.start("Begin computing activation time per action");
-		activationTimePerAction = new ObjectArrayList<Int2LongOpenHashMap>(
-				nActions);
-		Iterator<PropagationHistory> iterator = observationsReader.iterator();
-		for (int action = 0; action < nActions; action++) {
-			pl.update();
-			PropagationHistory history = iterator.next();
-			Int2LongOpenHashMap activationTime = new Int2LongOpenHashMap(
-					history.size());
-			activationTime.defaultReturnValue(-1);
-			for (ArcWithTimestamp ev : history.getEvents()) {
-				activationTime.put(ev.getFollowerId(), ev.getTimestamp());
-			}
-			activationTimePerAction.add(action, activationTime);
-		}
-		pl.stop("Done computing activation time per action");
-	}
-
 	/**
 	 * Pre-computes and returns {@link #Aplus}
 	 * 
 	 * @return
 	 */
-	public SparseIntArrayListMatrix2D getAplus() {
+	public ArcActionLists getAplus() {
 		if (Aplus == null) {
 			computeAplusAminusBplus();
 		}
@@ -272,7 +281,7 @@ public class ICEstimateAuxiliary {
 	 * 
 	 * @return
 	 */
-	public SparseIntArrayListMatrix2D getAminus() {
+	public ArcActionLists getAminus() {
 		if (Aminus == null) {
 			computeAplusAminusBplus();
 		}
@@ -284,347 +293,512 @@ public class ICEstimateAuxiliary {
 	 * 
 	 * @return
 	 */
-	public ObjectArrayList<Int2ArrayOfIntMap> getBplus() {
+	public BplusIndex getBplus() {
 		if (Bplus == null) {
 			computeAplusAminusBplus();
 		}
 		return Bplus;
 	}
 
+	/**
+	 * Computes {@link #nodeActions} and {@link #activationTimePerAction} in a
+	 * single pass over the observations. If a candidate selection policy is
+	 * given, also keeps the nodes activated by every action, for
+	 * {@link #computeAplusAminusBplus()}.
+	 */
+	private void readObservations() {
+		int nHistories = observationsReader.size();
+		ProgressLogger pl = new ProgressLogger(LOGGER,
+				ProgressLogger.TEN_SECONDS, "actions");
+		pl.expectedUpdates = nHistories;
+		pl.start("Begin reading observations");
+		nodeActions = new Int2ObjectOpenHashMap<IntOpenHashSet>();
+		IntArrayList insertionOrder = new IntArrayList();
+		IntOpenHashSet distinctActions = new IntOpenHashSet();
+		activationTimePerAction = new ObjectArrayList<Int2LongOpenHashMap>(
+				nHistories);
+		ObjectArrayList<int[]> activatedNodes = (candidateSelectionPolicy != null) ? new ObjectArrayList<int[]>(
+				nHistories) : null;
+		// Observations in memory are read straight from their columns
+		boolean inMemory = observationsReader.isInMemory();
+		Iterator<PropagationHistory> iterator = inMemory ? null
+				: observationsReader.iterator();
+		int[] actionOffsets = inMemory ? observationsReader.getActionOffsets() : null;
+		int[] followerIds = inMemory ? observationsReader.getFollowerIds() : null;
+		long[] timestamps = inMemory ? observationsReader.getTimestamps() : null;
+		for (int action = 0; action < nHistories; action++) {
+			pl.update();
+			int begin = 0;
+			int end;
+			if (inMemory) {
+				begin = actionOffsets[action];
+				end = actionOffsets[action + 1];
+			} else {
+				ObjectArrayList<ArcWithTimestamp> events = iterator.next().getEvents();
+				end = events.size();
+				followerIds = new int[end];
+				timestamps = new long[end];
+				for (int i = 0; i < end; i++) {
+					followerIds[i] = events.get(i).getFollowerId();
+					timestamps[i] = events.get(i).getTimestamp();
+				}
+			}
+			Int2LongOpenHashMap activationTime = new Int2LongOpenHashMap(
+					end - begin);
+			activationTime.defaultReturnValue(-1);
+			int[] nodes = new int[end - begin];
+			for (int i = 0; i < nodes.length; i++) {
+				int childId = followerIds[begin + i];
+				IntOpenHashSet actions = nodeActions.get(childId);
+				if (actions == null) {
+					actions = new IntOpenHashSet();
+					nodeActions.put(childId, actions);
+					insertionOrder.add(childId);
+				}
+				actions.add(action);
+				distinctActions.add(action);
+				activationTime.put(childId, timestamps[begin + i]);
+				nodes[i] = childId;
+			}
+			activationTimePerAction.add(activationTime);
+			if (activatedNodes != null) {
+				activatedNodes.add(nodes);
+			}
+		}
+
+		// Remove node omega
+		nodeActions.remove(Node.getDefaultStartNodeId());
+		nodeActionsInsertionOrder = insertionOrder.toIntArray();
+		nActions = distinctActions.size();
+
+		// Only the first nActions actions are used
+		activationTimePerAction.removeElements(nActions,
+				activationTimePerAction.size());
+		if (activatedNodes != null) {
+			activatedNodes.removeElements(nActions, activatedNodes.size());
+			activatedNodesPerAction = activatedNodes;
+		}
+		pl.stop("Done reading observations: number of actions=" + nActions);
+	}
+
+	/**
+	 * The entries of {@link #Aplus} and {@link #Aminus} found by a worker, as
+	 * (arc id, action) pairs in increasing order of action, and those of
+	 * {@link #Bplus}: for every action, the number of its children, and for
+	 * every child, the number of its parents.
+	 */
+	private static class Incidences {
+		final IntArrayList aPlusArcs = new IntArrayList();
+
+		final IntArrayList aPlusActions = new IntArrayList();
+
+		final IntArrayList aMinusArcs = new IntArrayList();
+
+		final IntArrayList aMinusActions = new IntArrayList();
+
+		final IntArrayList bPlusActionSizes = new IntArrayList();
+
+		final IntArrayList bPlusChildren = new IntArrayList();
+
+		final IntArrayList bPlusChildSizes = new IntArrayList();
+
+		final IntArrayList bPlusParents = new IntArrayList();
+	}
+
 	/**
 	 * Computes {@link #Aplus}, {@link #Aminus} and {@link #Bplus}.
+	 * <p>
+	 * The actions are split into contiguous shards of similar cost, which are
+	 * processed by {@link #numberOfThreads} threads. Each shard collects its
+	 * entries in primitive lists; then the compressed lists of all arcs are
+	 * sized and filled shard by shard, so actions stay in increasing order,
+	 * and the entries of {@link #Bplus} are concatenated and indexed.
 	 */
 	private void computeAplusAminusBplus() {
 		if (candidateSelectionPolicy == null) {
 			throw new IllegalArgumentException(
 					"Can't compute Aplus and Aminus unless an edge placement policy is given");
 		}
-		if (activationTimePerAction == null) {
-			computeActivationTimePerAction();
+		if (activatedNodesPerAction == null) {
+			readObservations();
 		}
+		final ObjectArrayList<int[]> activatedNodes = activatedNodesPerAction;
 
-		SparseDoubleMatrix2D AplusSize = Node.getSparseDoubleMatrix();
-		SparseDoubleMatrix2D AminusSize = Node.getSparseDoubleMatrix();
-
-		// B(action,v) = u such that ( action in A+(u,v) )
-		Bplus = new ObjectArrayList<Int2ArrayOfIntMap>(nActions);
+		// Shards of similar fan-out
+		long[] cumulativeCost = new long[nActions + 1];
+		for (int action = 0; action < nActions; action++) {
+			long cost = 1;
+			for (int parentId : activatedNodes.get(action)) {
+				cost += sn.getFollowersEnd(parentId)
+						- sn.getFollowersBegin(parentId);
+			}
+			cumulativeCost[action + 1] = cumulativeCost[action] + cost;
+		}
+		int nShards = Math.max(1, Math.min(nActions, numberOfThreads
+				* SHARDS_PER_THREAD));
+		int[] shardBegin = new int[nShards + 1];
+		int action = 0;
+		for (int shard = 1; shard < nShards; shard++) {
+			long target = cumulativeCost[nActions] * shard / nShards;
+			while (action < nActions && cumulativeCost[action] < target) {
+				action++;
+			}
+			shardBegin[shard] = action;
+		}
+		shardBegin[nShards] = nActions;
 
-		ProgressLogger pl = new ProgressLogger(LOGGER,
+		final ProgressLogger pl = new ProgressLogger(LOGGER,
 				ProgressLogger.TEN_SECONDS, "actions");
-		pl.start("Begin computing sizes of Aplus and Aminus; and Bplus using "
-				+ candidateSelectionPolicy.toSpec());
+		pl.start("Begin computing Aplus, Aminus and Bplus using "
+				+ candidateSelectionPolicy.toSpec() + " on " + nShards
+				+ " shards");
 		pl.expectedUpdates = nActions;
-		Iterator<PropagationHistory> iterator = observationsReader.iterator();
-		Int2ObjectOpenHashMap<IntOpenHashSet> bPlusAction = new Int2ObjectOpenHashMap<IntOpenHashSet>();
-		for (int action = 0; action < nActions; action++) {
-			pl.update();
-
-			PropagationHistory history = iterator.next();
-			Int2LongOpenHashMap activated = activationTimePerAction.get(action);
-			bPlusAction.clear();
-
-			for (ArcWithTimestamp ev : history.getEvents()) {
-				int parentId = ev.getFollowerId();
-				for (Arc childArc : sn.getFollowers(parentId)) {
-					int childId = childArc.getFollowerId();
-
-					CandidateType edgePlacement = candidateSelectionPolicy
-							.decideCandidateType(activated, parentId, childId);
-
-					switch (edgePlacement) {
-					case COULD_HAVE_ACTIVATED:
-						AplusSize.setQuick(parentId, childId,
-								AplusSize.getQuick(parentId, childId) + 1);
-						if (!bPlusAction.containsKey(childId)) {
-							bPlusAction.put(childId, new IntOpenHashSet());
+		ObjectArrayList<Callable<Incidences>> tasks = new ObjectArrayList<Callable<Incidences>>();
+		for (int shard = 0; shard < nShards; shard++) {
+			final int fromAction = shardBegin[shard];
+			final int toAction = shardBegin[shard + 1];
+			tasks.add(new Callable<Incidences>() {
+				public Incidences call() {
+					Incidences incidences = new Incidences();
+					int[] followerIds = sn.getFollowerIds();
+					for (int action = fromAction; action < toAction; action++) {
+						Int2LongOpenHashMap activated = activationTimePerAction
+								.get(action);
+						// A new map for every action, so the order of its
+						// keys does not depend on the shard
+						Int2ObjectOpenHashMap<IntOpenHashSet> bPlusAction = new Int2ObjectOpenHashMap<IntOpenHashSet>();
+						for (int parentId : activatedNodes.get(action)) {
+							int end = sn.getFollowersEnd(parentId);
+							for (int i = sn.getFollowersBegin(parentId); i < end; i++) {
+								int childId = followerIds[i];
+
+								CandidateType edgePlacement = candidateSelectionPolicy
+										.decideCandidateType(activated,
+												parentId, childId);
+
+								switch (edgePlacement) {
+								case COULD_HAVE_ACTIVATED:
+									incidences.aPlusArcs.add(i);
+									incidences.aPlusActions.add(action);
+									if (!bPlusAction.containsKey(childId)) {
+										bPlusAction.put(childId,
+												new IntOpenHashSet());
+									}
+									bPlusAction.get(childId).add(parentId);
+									break;
+								case FAILED_TO_ACTIVATE:
+									incidences.aMinusArcs.add(i);
+									incidences.aMinusActions.add(action);
+									break;
+								case OTHER:
+									break;
+								default:
+									throw new IllegalStateException();
+								}
+							}
+						}
+						incidences.bPlusActionSizes.add(bPlusAction.size());
+						for (int childId : bPlusAction.keySet()) {
+							IntOpenHashSet parents = bPlusAction.get(childId);
+							incidences.bPlusChildren.add(childId);
+							incidences.bPlusChildSizes.add(parents.size());
+							for (int parentId : parents) {
+								incidences.bPlusParents.add(parentId);
+							}
+						}
+						synchronized (pl) {
+							pl.update();
 						}
-						bPlusAction.get(childId).add(parentId);
-						break;
-					case FAILED_TO_ACTIVATE:
-						AminusSize.setQuick(parentId, childId,
-								AminusSize.getQuick(parentId, childId) + 1);
-
-						break;
-					case OTHER:
-						break;
-					default:
-						throw new IllegalStateException();
 					}
+					return incidences;
 				}
-			}
-			Bplus.add(action, new Int2ArrayOfIntMap(bPlusAction));
+			});
 		}
-		pl.stop("Done computing sizes: number of arcs in Aplus="
-				+ AplusSize.cardinality() + ", Aminus="
-				+ AminusSize.cardinality() + ", Bplus=" + Bplus.size());
+		List<Incidences> shards = Utilities.runTasks(tasks, numberOfThreads);
+		activatedNodesPerAction = null;
+		pl.stop("Done computing shards");
 
 		// A+(u,v) = actions for which u was activated before v got activated
-		Aplus = Node.getSparseObjectMatrix();
 		// A-(u,v) = actions for which u was activated but v was not activated
-		Aminus = Node.getSparseObjectMatrix();
-
-		pl = new ProgressLogger(LOGGER, ProgressLogger.TEN_SECONDS, "arcs");
-		pl.start("Begin allocating arrays for Aplus and Aminus");
-		pl.expectedUpdates = AplusSize.cardinality() + AminusSize.cardinality();
-
-		int aPlusSize = 0;
-		for (Arc arc : Utilities.getSortedNonZeroArcs(AplusSize)) {
-			pl.update();
-			int size = (int) AplusSize.getQuick(arc.getLeaderId(),
-					arc.getFollowerId());
-			Aplus.setQuick(arc.getLeaderId(), arc.getFollowerId(),
-					new IntArrayList(size));
-			aPlusSize += size;
+		// Shards are in order of action, so the actions of every arc are
+		// given in increasing order
+		ProgressLogger plMerge = new ProgressLogger(LOGGER);
+		plMerge.start("Begin merging Aplus and Aminus");
+		CSRGraph graph = sn.getGraph();
+		ArcActionLists.Builder aPlusBuilder = new ArcActionLists.Builder(graph);
+		ArcActionLists.Builder aMinusBuilder = new ArcActionLists.Builder(graph);
+		for (Incidences incidences : shards) {
+			for (int i = 0; i < incidences.aPlusArcs.size(); i++) {
+				aPlusBuilder.count(incidences.aPlusArcs.getInt(i),
+						incidences.aPlusActions.getInt(i));
+			}
+			for (int i = 0; i < incidences.aMinusArcs.size(); i++) {
+				aMinusBuilder.count(incidences.aMinusArcs.getInt(i),
+						incidences.aMinusActions.getInt(i));
+			}
 		}
-
-		int aMinusSize = 0;
-		for (Arc arc : Utilities.getSortedNonZeroArcs(AminusSize)) {
-			pl.update();
-			int size = (int) AminusSize.getQuick(arc.getLeaderId(),
-					arc.getFollowerId());
-			Aminus.setQuick(arc.getLeaderId(), arc.getFollowerId(),
-					new IntArrayList(size));
-			aMinusSize += size;
-		}
-
-		pl.stop("Done allocating arrays: actions/arc in Aplus="
-				+ (double) aPlusSize / (double) (AplusSize.cardinality())
-				+ " in Aminus=" + (double) aMinusSize
-				/ (double) (AminusSize.cardinality()));
-		Utilities.setToZero(AplusSize);
-		AplusSize = null;
-		Utilities.setToZero(AminusSize);
-		AminusSize = null;
-
-		pl = new ProgressLogger(LOGGER, ProgressLogger.TEN_SECONDS, "actions");
-		pl.start("Begin computing Aplus and Aminus using "
-				+ candidateSelectionPolicy.toSpec());
-		pl.expectedUpdates = nActions;
-		iterator = observationsReader.iterator();
-		for (int action = 0; action < nActions; action++) {
-			pl.update();
-
-			PropagationHistory history = iterator.next();
-			Int2LongOpenHashMap activated = activationTimePerAction.get(action);
-			bPlusAction.clear();
-
-			for (ArcWithTimestamp ev : history.getEvents()) {
-				int parentId = ev.getFollowerId();
-				for (Arc childArc : sn.getFollowers(parentId)) {
-					int childId = childArc.getFollowerId();
-
-					CandidateType edgePlacement = candidateSelectionPolicy
-							.decideCandidateType(activated, parentId, childId);
-
-					switch (edgePlacement) {
-					case COULD_HAVE_ACTIVATED:
-						((IntArrayList) Aplus.getQuick(parentId, childId))
-								.add(action);
-
-						break;
-					case FAILED_TO_ACTIVATE:
-						((IntArrayList) Aminus.getQuick(parentId, childId))
-								.add(action);
-						break;
-
-					case OTHER:
-						break;
-					default:
-						throw new IllegalStateException();
-					}
-				}
+		for (Incidences incidences : shards) {
+			for (int i = 0; i < incidences.aPlusArcs.size(); i++) {
+				aPlusBuilder.add(incidences.aPlusArcs.getInt(i),
+						incidences.aPlusActions.getInt(i));
+			}
+			for (int i = 0; i < incidences.aMinusArcs.size(); i++) {
+				aMinusBuilder.add(incidences.aMinusArcs.getInt(i),
+						incidences.aMinusActions.getInt(i));
 			}
 		}
-		pl.stop("Done.");
+		Aplus = aPlusBuilder.build();
+		Aminus = aMinusBuilder.build();
+
+		// Concatenate the entries of B+, by action
+		int[] actionOffsets = new int[nActions + 1];
+		int nChildren = 0;
+		int nParents = 0;
+		for (Incidences incidences : shards) {
+			nChildren += incidences.bPlusChildren.size();
+			nParents += incidences.bPlusParents.size();
+		}
+		int[] children = new int[nChildren];
+		int[] childParentOffsets = new int[nChildren + 1];
+		int[] parents = new int[nParents];
+		action = 0;
+		int child = 0;
+		int parent = 0;
+		for (Incidences incidences : shards) {
+			for (int i = 0; i < incidences.bPlusActionSizes.size(); i++) {
+				actionOffsets[action + 1] = actionOffsets[action]
+						+ incidences.bPlusActionSizes.getInt(i);
+				action++;
+			}
+			for (int i = 0; i < incidences.bPlusChildren.size(); i++) {
+				children[child] = incidences.bPlusChildren.getInt(i);
+				childParentOffsets[child + 1] = childParentOffsets[child]
+						+ incidences.bPlusChildSizes.getInt(i);
+				child++;
+			}
+			System.arraycopy(incidences.bPlusParents.elements(), 0, parents,
+					parent, incidences.bPlusParents.size());
+			parent += incidences.bPlusParents.size();
+		}
+		shards = null;
+		Bplus = new BplusIndex(graph, Aplus, nActions, actionOffsets,
+				children, childParentOffsets, parents);
+		plMerge.stop("Done merging: number of arcs in Aplus="
+				+ Aplus.cardinality() + ", Aminus=" + Aminus.cardinality()
+				+ ", Bplus=" + Bplus.sizeSlots() + "; actions/arc in Aplus="
+				+ (double) Aplus.sizeActions() / (double) (Aplus.cardinality())
+				+ " in Aminus=" + (double) Aminus.sizeActions()
+				/ (double) (Aminus.cardinality()) + "; bytes/action in Aplus="
+				+ (double) Aplus.sizeBytes() / (double) Aplus.sizeActions()
+				+ " in Aminus=" + (double) Aminus.sizeBytes()
+				/ (double) Aminus.sizeActions());
 	}
 
-	/**
-	 * Contains for every node v, the arcs in {@link #Aminus} that have v as
-	 * child.
-	 */
-	Int2ArrayOfIntMap aPlusParentsOfChild;
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
 
 	/**
-	 * Contains for every node v, the arcs in {@link #Aminus} that have v as
-	 * child.
+	 * Pre-computes and returns {@link #cPlus}, the index of {@link #Aplus} by
+	 * child, also transposed so the actions of each parent can be visited.
+	 * Can be called concurrently.
 	 */
-	Int2ArrayOfIntMap aMinusParentsOfChild;
+	public ChildActionsIndex getCplusIndex() {
+		ChildActionsIndex index = cPlus;
+		if (index == null) {
+			synchronized (this) {
+				if (cPlus == null) {
+					cPlus = new ChildActionsIndex(sn.getGraph(), getAplus(),
+							"Aplus", true);
+				}
+				index = cPlus;
+			}
+		}
+		return index;
+	}
 
 	/**
-	 * Computes for every arc in a map of arcs to lists of integers A, a map
-	 * from every child to the arcs it participates on.
-	 * 
-	 * @param A
-	 * @return
+	 * Pre-computes and returns {@link #cMinus}, the index of {@link #Aminus} by
+	 * child. Only the number of actions of each parent is kept, not their
+	 * positions. Can be called concurrently.
 	 */
-	private Int2ArrayOfIntMap computeParentsOfChild(SparseIntArrayListMatrix2D A) {
-		Int2ObjectOpenHashMap<IntOpenHashSet> AArcsOfNode = new Int2ObjectOpenHashMap<IntOpenHashSet>();
-		for (Arc arc : Utilities.getSortedNonZeroArcs(A)) {
-			int node = arc.getFollowerId();
-			if (AArcsOfNode.containsKey(node) == false) {
-				AArcsOfNode.put(node, new IntOpenHashSet());
+	public ChildActionsIndex getCminusIndex() {
+		ChildActionsIndex index = cMinus;
+		if (index == null) {
+			synchronized (this) {
+				if (cMinus == null) {
+					cMinus = new ChildActionsIndex(sn.getGraph(), getAminus(),
+							"Aminus", false);
+				}
+				index = cMinus;
 			}
-			AArcsOfNode.get(node).add(arc.getLeaderId());
 		}
-		return new Int2ArrayOfIntMap(AArcsOfNode);
+		return index;
 	}
 
 	/**
-	 * Gets the value of cPlus for a given node on-line. Slower, but less
-	 * memory-intensive, than {@link #getCplusPrecomputing(int)}.
+	 * Gets cPlus for a given node: the actions for which it may have been
+	 * activated by a parent, and for each of them those parents.
 	 * 
 	 * @param node
-	 * @return
+	 * @return a read-only view, empty if the node is not the child of any arc
+	 *         in {@link #Aplus}
 	 */
-	public Int2ObjectOpenHashMap<IntArrayList> getCplusOnline(int node) {
-		if (cPlusOnline == null) {
-			if (nActions == -1) {
-				computeNodeActions();
-			}
-			cPlusOnline = new Int2ObjectOpenHashMap<IntArrayList>(nActions);
-		}
-		return getCFromAOnline(getAplus(), cPlusOnline,
-				getAplusParentsOfChild(node), node);
-	}
-
-	public int[] getAplusParentsOfChild(int node) {
-		if (aPlusParentsOfChild == null) {
-			aPlusParentsOfChild = computeParentsOfChild(getAplus());
-		}
-		return aPlusParentsOfChild.get(node);
+	public ChildActions getCplus(int node) {
+		return getCplusIndex().get(node);
 	}
 
 	/**
-	 * Gets the value of cMinus for a given node on-line. Slower, but less
-	 * memory-intensive, than {@link #getCminusPrecomputing(int)}.
+	 * Gets cMinus for a given node: the actions for which a parent failed to
+	 * activate it, and for each of them those parents.
 	 * 
 	 * @param node
-	 * @return
+	 * @return a read-only view, empty if the node is not the child of any arc
+	 *         in {@link #Aminus}
 	 */
-	public Int2ObjectOpenHashMap<IntArrayList> getCminusOnline(int node) {
-		if (cMinusOnline == null) {
-			if (nActions == -1) {
-				computeNodeActions();
-			}
-			cMinusOnline = new Int2ObjectOpenHashMap<IntArrayList>(nActions);
-		}
-		return getCFromAOnline(getAminus(), cMinusOnline,
-				getAminusParentsOfChild(node), node);
-	}
-
-	public int[] getAminusParentsOfChild(int node) {
-		if (aMinusParentsOfChild == null) {
-			aMinusParentsOfChild = computeParentsOfChild(getAminus());
-		}
-		return aMinusParentsOfChild.get(node);
+	public ChildActions getCminus(int node) {
+		return getCminusIndex().get(node);
 	}
 
 	/**
-	 * Given a map from arcs to lists of actions, and a specific child node,
-	 * computes a map from actions to parents for the arcs that end in that
-	 * child node.
-	 * 
-	 * Compared to the methods that pre-compute, we avoid storing the list of
-	 * actions on each arc, but store only the arcs.
+	 * Obtains the {@link #observationsReader}
 	 * 
-	 * @param A
-	 * @param cOnline
-	 * @param parentsOfChild
-	 * @param node
 	 * @return
 	 */
-	private Int2ObjectOpenHashMap<IntArrayList> getCFromAOnline(
-			SparseIntArrayListMatrix2D A,
-			Int2ObjectOpenHashMap<IntArrayList> cOnline, int[] parentsOfChild,
-			int node) {
-		// The node is not the child of any arc in A
-		if (parentsOfChild == null) {
-			return null;
-		}
-
-		cOnline.clear(); // It is important because other methods may (i)
-							// iterate through the keys
-							// of this array, or (ii) expect to find a null
-							// somewhere instead of an
-							// empty list
-		int size = 0;
-		for (int leaderId : parentsOfChild) {
-			for (int action : A.getQuick(leaderId, node)) {
-				if (cOnline.containsKey(action) == false) {
-					cOnline.put(action, new IntArrayList());
-				}
-				cOnline.get(action).add(leaderId);
-				size++;
-			}
-		}
-		return (size > 0) ? cOnline : null;
+	public ObservationsReader getObservationsReader() {
+		return observationsReader;
 	}
 
 	/**
-	 * Gets the log-likelihood of a block.
+	 * Obtains the number of nodes in the underlying social network {@link #sn}.
 	 * 
-	 * @param model
-	 * @param v
-	 * @param nodeActionsV
-	 * @param cPlusV
-	 * @param cMinusV
-	 * @param selectedParents
 	 * @return
 	 */
-	public double blockLogLikelihood(ICModel model, int v,
-			Int2ObjectOpenHashMap<IntArrayList> cPlusV,
-			Int2ObjectOpenHashMap<IntArrayList> cMinusV,
-			IntOpenHashSet selectedParents) {
-		return model.blockLogLikelihoodUsingCplusCminus(v, cPlusV, cMinusV,
-				selectedParents);
+	public int getSizeNodes() {
+		return sn.sizeNodes();
 	}
 
 	/**
-	 * Gets the log-likelihood of a block.
-	 * 
-	 * @param model
-	 * @param v
-	 * @param nodeActionsV
-	 * @param cPlusV
-	 * @param cMinusV
-	 * @param selectedParents
-	 * @return
+	 * Writes the auxiliary variables to a binary file basename.aux, which can
+	 * be read with {@link #read(String)}. The node ids in the file are those
+	 * of the node dictionary, whose names are also stored.
+	 *
+	 * @param basename
+	 *            the base name of the file
 	 */
-	public double blockLogLikelihood(ICModel model, int v,
-			Int2ObjectOpenHashMap<IntArrayList> cPlusV,
-			Int2ObjectOpenHashMap<IntArrayList> cMinusV,
-			ObjectOpenHashSet<Arc> selectedParents) {
-		return model.blockLogLikelihoodUsingCplusCminus(v, cPlusV, cMinusV,
-				selectedParents);
+	public void write(String basename) throws IOException {
+		getnActions();
+		BinaryFileWriter out = new BinaryFileWriter(new File(basename
+				+ FILE_SUFFIX_BINARY));
+		try {
+			out.writeHeader(BINARY_MAGIC, BINARY_VERSION);
+			out.writeInt(nActions);
+			out.writeString(candidateSelectionPolicy.toSpec());
+
+			// Node names
+			int nNodes = dictionary.getMaxId() + 1;
+			out.writeInt(nNodes);
+			for (int id = 0; id < nNodes; id++) {
+				out.writeString(dictionary.getName(id));
+			}
+
+			writeBinaryNodeActions(out);
+			writeBinaryActivationTimePerAction(out);
+			writeBinaryArcs(out);
+			getAplus().write(out);
+			getAminus().write(out);
+			getBplus().write(out);
+		} finally {
+			out.close();
+		}
 	}
 
-	public double blockLogLikelihoodIncrease(ICModel model, int v,
-			Int2ObjectOpenHashMap<IntArrayList> cPlusV,
-			Int2ObjectOpenHashMap<IntArrayList> cMinusV,
-			ObjectOpenHashSet<Arc> alreadySelectedParents, int extraParentId) {
-		return model.blockLogLikelihoodIncreaseUsingCplusCminus(v, cPlusV,
-				cMinusV, alreadySelectedParents, extraParentId);
+	private static int checkedSize(long size) {
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException(
+					"Too many entries for the binary format: " + size);
+		}
+		return (int) size;
 	}
 
 	/**
-	 * Obtains the {@link #observationsReader}
-	 * 
-	 * @return
+	 * Writes {@link #nodeActions} with the nodes in insertion order, if
+	 * known, and the actions of every node sorted; omega has no actions.
 	 */
-	public ObservationsReader getObservationsReader() {
-		return observationsReader;
+	private void writeBinaryNodeActions(BinaryFileWriter out)
+			throws IOException {
+		getNodeActions();
+		int[] nodes = (nodeActionsInsertionOrder != null) ? nodeActionsInsertionOrder
+				: nodeActions.keySet().toIntArray();
+		int[] offsets = new int[nodes.length + 1];
+		for (int i = 0; i < nodes.length; i++) {
+			IntOpenHashSet actions = nodeActions.get(nodes[i]);
+			offsets[i + 1] = checkedSize((long) offsets[i]
+					+ (actions == null ? 0 : actions.size()));
+		}
+		out.writeInt(nodes.length);
+		out.writeInts(nodes);
+		out.writeInts(offsets);
+		for (int node : nodes) {
+			IntOpenHashSet actions = nodeActions.get(node);
+			if (actions != null) {
+				int[] sorted = actions.toIntArray();
+				Arrays.sort(sorted);
+				out.writeInts(sorted);
+			}
+		}
+	}
+
+	private void writeBinaryActivationTimePerAction(BinaryFileWriter out)
+			throws IOException {
+		getActivationTimePerAction();
+		int nMaps = activationTimePerAction.size();
+		int[] offsets = new int[nMaps + 1];
+		for (int action = 0; action < nMaps; action++) {
+			offsets[action + 1] = checkedSize((long) offsets[action]
+					+ activationTimePerAction.get(action).size());
+		}
+		out.writeInt(nMaps);
+		out.writeInts(offsets);
+		for (int action = 0; action < nMaps; action++) {
+			out.writeInts(activationTimePerAction.get(action).keySet()
+					.toIntArray());
+		}
+		out.align(8);
+		for (int action = 0; action < nMaps; action++) {
+			Int2LongOpenHashMap activationTime = activationTimePerAction
+					.get(action);
+			for (int nodeId : activationTime.keySet()) {
+				out.writeLong(activationTime.get(nodeId));
+			}
+		}
 	}
 
 	/**
-	 * Obtains the number of nodes in the underlying social network {@link #sn}.
-	 * 
-	 * @return
+	 * Writes the arcs of the social network in order of arc id, so a reader
+	 * can check that its arc ids are the same.
 	 */
-	public int getSizeNodes() {
-		return sn.sizeNodes();
+	private void writeBinaryArcs(BinaryFileWriter out) throws IOException {
+		CSRGraph graph = sn.getGraph();
+		int nArcs = graph.sizeArcs();
+		out.writeInt(nArcs);
+		for (int arcId = 0; arcId < nArcs; arcId++) {
+			out.writeInt(graph.getArcLeaderId(arcId));
+		}
+		for (int arcId = 0; arcId < nArcs; arcId++) {
+			out.writeInt(graph.getArcFollowerId(arcId));
+		}
 	}
 
-	public void write(String basename) throws IOException {
+	/**
+	 * Writes the auxiliary variables as tab-separated text files with node
+	 * names, which can be read with {@link #read(String)} if there is no
+	 * binary file with the same base name.
+	 *
+	 * @param basename
+	 *            the base name of the files
+	 */
+	public void writeText(String basename) throws IOException {
 		PrintWriter pwNodeActions = new PrintWriter(new BufferedWriter(
 				new FileWriter(new File(basename + FILE_SUFFIX_NODE_ACTIONS))));
 		PrintWriter pwActivationTimePerAction = new PrintWriter(
@@ -670,7 +844,7 @@ public class ICEstimateAuxiliary {
 		for (int nodeId : nodeActions.keySet()) {
 			if (nodeActions.get(nodeId) != null) {
 				for (int action : nodeActions.get(nodeId)) {
-					out.write(Node.getName(nodeId) + "\t" + action + "\n");
+					out.write(dictionary.getName(nodeId) + "\t" + action + "\n");
 				}
 			}
 		}
@@ -683,41 +857,258 @@ public class ICEstimateAuxiliary {
 					.get(action);
 			for (int nodeId : activationTime.keySet()) {
 				long time = activationTime.get(nodeId);
-				out.write(action + "\t" + Node.getName(nodeId) + "\t" + time
+				out.write(action + "\t" + dictionary.getName(nodeId) + "\t" + time
 						+ "\n");
 			}
 		}
 	}
 
-	private void writeA(PrintWriter out, SparseIntArrayListMatrix2D A) {
-		cern.colt.list.IntArrayList rowList = new cern.colt.list.IntArrayList();
-		cern.colt.list.IntArrayList columnList = new cern.colt.list.IntArrayList();
-		cern.colt.list.ObjectArrayList valueList = new cern.colt.list.ObjectArrayList();
-		A.getNonZeros(rowList, columnList, valueList);
-		for (int i = 0; i < rowList.size(); i++) {
-			int parentId = rowList.get(i);
-			int childId = columnList.get(i);
-			IntArrayList actions = (IntArrayList) valueList.get(i);
-			for (int action : actions) {
-				out.write(Node.getName(parentId) + "\t" + Node.getName(childId)
-						+ "\t" + action + "\n");
+	private void writeA(PrintWriter out, ArcActionLists A) {
+		CSRGraph graph = A.getGraph();
+		ArcActionLists.Cursor cursor = A.cursor();
+		for (int arcId = 0; arcId < graph.sizeArcs(); arcId++) {
+			String parentName = dictionary.getName(graph.getArcLeaderId(arcId));
+			String childName = dictionary.getName(graph.getArcFollowerId(arcId));
+			for (cursor.reset(arcId); cursor.hasNext();) {
+				out.write(parentName + "\t" + childName + "\t"
+						+ cursor.nextInt() + "\n");
 			}
 		}
 	}
 
 	private void writeBplus(PrintWriter out) {
 		getBplus();
-		for (int action = 0; action < Bplus.size(); action++) {
-			for (int childId : Bplus.get(action).keySet()) {
-				for (int parentId : Bplus.get(action).get(childId)) {
-					out.write(action + "\t" + Node.getName(childId) + "\t"
-							+ Node.getName(parentId) + "\n");
-				}
+		int[] actionOffsets = new int[Bplus.sizeActions() + 1];
+		int[] children = new int[Bplus.sizeSlots()];
+		int[] slots = Bplus.getSlotsByAction(actionOffsets, children);
+		for (int pos = 0; pos < slots.length; pos++) {
+			int action = Bplus.getAction(slots[pos]);
+			String childName = dictionary.getName(children[pos]);
+			int end = Bplus.getParentsEnd(slots[pos]);
+			for (int i = Bplus.getParentsBegin(slots[pos]); i < end; i++) {
+				out.write(action + "\t" + childName + "\t"
+						+ dictionary.getName(Bplus.getParent(i)) + "\n");
 			}
 		}
 	}
 
+	/**
+	 * Reads the auxiliary variables written by {@link #write(String)} or, if
+	 * there is no binary file, by {@link #writeText(String)}.
+	 *
+	 * @param basename
+	 *            the base name of the files
+	 */
 	public void read(String basename) throws IOException {
+		File binaryFile = new File(basename + FILE_SUFFIX_BINARY);
+		if (binaryFile.exists()) {
+			readBinary(binaryFile);
+		} else {
+			readText(basename);
+		}
+	}
+
+	/**
+	 * Reads a binary file. If its node and arc ids are those of the social
+	 * network, as when it was written for the same network, Aplus, Aminus and
+	 * Bplus are served from the mapped file without being copied. The node
+	 * actions and the activation times are copied into hash maps, which is
+	 * what {@link #getNodeActions()} and
+	 * {@link #getActivationTimePerAction()} return.
+	 */
+	private void readBinary(File binaryFile) throws IOException {
+		ProgressLogger pl = new ProgressLogger(LOGGER);
+		pl.start("Begin reading " + binaryFile);
+		MappedFileReader in = new MappedFileReader(binaryFile);
+		try {
+			int version = in.readHeader(BINARY_MAGIC, BINARY_VERSION);
+			nActions = in.readInt();
+			candidateSelectionPolicy = CandidateSelectionPolicy.fromSpec(in
+					.readString());
+
+			// Map the ids of the file to those of the dictionary
+			int nNodes = in.readInt();
+			int[] remap = new int[nNodes];
+			boolean identity = true;
+			for (int id = 0; id < nNodes; id++) {
+				String name = in.readString();
+				remap[id] = (name == null) ? Node.getNullId() : dictionary
+						.intern(name);
+				identity &= (remap[id] == id);
+			}
+			if (identity) {
+				remap = null;
+			}
+
+			readBinaryNodeActions(in, remap);
+			readBinaryActivationTimePerAction(in, remap);
+			if (version == 1) {
+				Aplus = readBinaryA(in, remap);
+				Aminus = readBinaryA(in, remap);
+				readBinaryBplus(in, remap);
+			} else {
+				int[] arcIds = readBinaryArcs(in, remap);
+				Aplus = ArcActionLists.read(in, sn.getGraph(), arcIds);
+				Aminus = ArcActionLists.read(in, sn.getGraph(), arcIds);
+				if (version == 2) {
+					readBinaryBplus(in, remap);
+				} else {
+					Bplus = BplusIndex.read(in, sn.getGraph(), Aplus, remap,
+							arcIds == null);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		pl.stop("Done reading " + binaryFile);
+	}
+
+	private static void remap(int[] ids, int[] remap) {
+		if (remap != null) {
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = remap[ids[i]];
+			}
+		}
+	}
+
+	private void readBinaryNodeActions(MappedFileReader in, int[] remap)
+			throws IOException {
+		int nNodes = in.readInt();
+		int[] nodes = in.readInts(nNodes);
+		remap(nodes, remap);
+		int[] offsets = in.readInts(nNodes + 1);
+		int[] actions = in.readInts(offsets[nNodes]);
+
+		// Same insertions as when computing it
+		nodeActions = new Int2ObjectOpenHashMap<IntOpenHashSet>();
+		for (int i = 0; i < nNodes; i++) {
+			IntOpenHashSet nodeActionSet = new IntOpenHashSet();
+			for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+				nodeActionSet.add(actions[j]);
+			}
+			nodeActions.put(nodes[i], nodeActionSet);
+		}
+		nodeActions.remove(Node.getDefaultStartNodeId());
+		nodeActionsInsertionOrder = nodes;
+	}
+
+	private void readBinaryActivationTimePerAction(MappedFileReader in,
+			int[] remap) throws IOException {
+		int nMaps = in.readInt();
+		int[] offsets = in.readInts(nMaps + 1);
+		int[] nodes = in.readInts(offsets[nMaps]);
+		remap(nodes, remap);
+		in.align(8);
+		long[] times = in.readLongs(offsets[nMaps]);
+		activationTimePerAction = new ObjectArrayList<Int2LongOpenHashMap>(
+				nMaps);
+		for (int action = 0; action < nMaps; action++) {
+			Int2LongOpenHashMap activationTime = new Int2LongOpenHashMap(
+					offsets[action + 1] - offsets[action]);
+			activationTime.defaultReturnValue(-1);
+			for (int i = offsets[action]; i < offsets[action + 1]; i++) {
+				activationTime.put(nodes[i], times[i]);
+			}
+			activationTimePerAction.add(activationTime);
+		}
+	}
+
+	/**
+	 * Reads the arcs written by {@link #writeBinaryArcs(BinaryFileWriter)}.
+	 *
+	 * @return the arc id in the social network of every arc of the file, -1
+	 *         if it is not in the social network; null if the arcs are those
+	 *         of the social network
+	 */
+	private int[] readBinaryArcs(MappedFileReader in, int[] remap)
+			throws IOException {
+		CSRGraph graph = sn.getGraph();
+		int nArcs = in.readInt();
+		int[] leaders = in.readInts(nArcs);
+		remap(leaders, remap);
+		int[] followers = in.readInts(nArcs);
+		remap(followers, remap);
+		boolean identity = (nArcs == graph.sizeArcs());
+		for (int i = 0; i < nArcs && identity; i++) {
+			identity = (leaders[i] == graph.getArcLeaderId(i) && followers[i] == graph
+					.getArcFollowerId(i));
+		}
+		if (identity) {
+			return null;
+		}
+		int[] arcIds = new int[nArcs];
+		for (int i = 0; i < nArcs; i++) {
+			arcIds[i] = graph.getArcId(leaders[i], followers[i]);
+		}
+		return arcIds;
+	}
+
+	/**
+	 * Reads Aplus or Aminus from a file of version 1, where the actions of
+	 * every arc were written sorted.
+	 */
+	private ArcActionLists readBinaryA(MappedFileReader in, int[] remap)
+			throws IOException {
+		int nArcs = in.readInt();
+		int[] parents = in.readInts(nArcs);
+		remap(parents, remap);
+		int[] children = in.readInts(nArcs);
+		remap(children, remap);
+		int[] offsets = in.readInts(nArcs + 1);
+		int[] actions = in.readInts(offsets[nArcs]);
+		int[] arcIds = new int[nArcs];
+		for (int i = 0; i < nArcs; i++) {
+			arcIds[i] = arcId(parents[i], children[i]);
+		}
+		ArcActionLists.Builder builder = new ArcActionLists.Builder(
+				sn.getGraph());
+		for (int i = 0; i < nArcs; i++) {
+			for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+				builder.count(arcIds[i], actions[j]);
+			}
+		}
+		for (int i = 0; i < nArcs; i++) {
+			for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+				builder.add(arcIds[i], actions[j]);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @return the id of an arc of the social network
+	 * @throws IllegalArgumentException
+	 *             if the arc is not in the social network
+	 */
+	private int arcId(int parentId, int childId) {
+		int arcId = sn.getGraph().getArcId(parentId, childId);
+		if (arcId == -1) {
+			throw new IllegalArgumentException("The arc ("
+					+ dictionary.getName(parentId) + ","
+					+ dictionary.getName(childId)
+					+ ") is not in the social network");
+		}
+		return arcId;
+	}
+
+	/**
+	 * Reads Bplus from a file of version 1 or 2, where it was stored by
+	 * action.
+	 */
+	private void readBinaryBplus(MappedFileReader in, int[] remap)
+			throws IOException {
+		int nMaps = in.readInt();
+		int[] keyOffsets = in.readInts(nMaps + 1);
+		int[] children = in.readInts(keyOffsets[nMaps]);
+		remap(children, remap);
+		int[] parentOffsets = in.readInts(children.length + 1);
+		int[] parents = in.readInts(parentOffsets[children.length]);
+		remap(parents, remap);
+		Bplus = new BplusIndex(sn.getGraph(), Aplus, nMaps, keyOffsets,
+				children, parentOffsets, parents);
+	}
+
+	private void readText(String basename) throws IOException {
 		FileInputStream in = new FileInputStream(new File(basename
 				+ FILE_SUFFIX_PROPERTIES));
 		Properties properties = new Properties();
@@ -728,69 +1119,57 @@ public class ICEstimateAuxiliary {
 		candidateSelectionPolicy = CandidateSelectionPolicy.fromSpec(properties
 				.getProperty(PROPERTIES_KEY_CANDIDATE_SELECTION_POLICY));
 
-		LineIterator itNodeActions = new LineIterator(new FastBufferedReader(
-				new FileReader(new File(basename + FILE_SUFFIX_NODE_ACTIONS))));
-		LineIterator itActivationTimePerAction = new LineIterator(
-				new FastBufferedReader(new FileReader(new File(basename
-						+ FILE_SUFFIX_ACTIVATION_TIME_PER_ACTION))));
-		LineIterator itAplus = new LineIterator(new FastBufferedReader(
-				new FileReader(new File(basename + FILE_SUFFIX_A_PLUS))));
-		LineIterator itAminus = new LineIterator(new FastBufferedReader(
-				new FileReader(new File(basename + FILE_SUFFIX_A_MINUS))));
-		LineIterator itBplus = new LineIterator(new FastBufferedReader(
-				new FileReader(new File(basename + FILE_SUFFIX_B_PLUS))));
-		read(itNodeActions, itActivationTimePerAction, itAplus, itAminus,
-				itBplus);
-	}
-
-	private void read(LineIterator inNodeActions,
-			LineIterator inActivationTimePerAction, LineIterator inAplus,
-			LineIterator inAminus, LineIterator inBplus) {
-		readNodeActions(inNodeActions);
-		readActivationTimePerAction(inActivationTimePerAction);
-		Aplus = readA(inAplus);
-		Aminus = readA(inAminus);
-		readBplus(inBplus);
-	}
-
-	private void readNodeActions(LineIterator in) {
+		readNodeActions(new File(basename + FILE_SUFFIX_NODE_ACTIONS));
+		readActivationTimePerAction(new File(basename
+				+ FILE_SUFFIX_ACTIVATION_TIME_PER_ACTION));
+		Aplus = readA(new File(basename + FILE_SUFFIX_A_PLUS));
+		Aminus = readA(new File(basename + FILE_SUFFIX_A_MINUS));
+		readBplus(new File(basename + FILE_SUFFIX_B_PLUS));
+	}
+
+	private void readNodeActions(File file) throws IOException {
 		nodeActions = new Int2ObjectOpenHashMap<IntOpenHashSet>();
-		String line;
-		while (in.hasNext()) {
-			line = in.next().toString();
-			String[] tokens = line.split("\t", 2);
-			int childId = Node.getId(tokens[0]);
-			int action = Integer.parseInt(tokens[1]);
-			if (!nodeActions.containsKey(childId)) {
-				nodeActions.put(childId, new IntOpenHashSet());
+		nodeActionsInsertionOrder = null;
+		TabSeparatedFileParser in = new TabSeparatedFileParser(file);
+		try {
+			while (in.nextLine()) {
+				int childId = in.internNode(0, dictionary);
+				int action = in.parseInt(1);
+				if (!nodeActions.containsKey(childId)) {
+					nodeActions.put(childId, new IntOpenHashSet());
+				}
+				nodeActions.get(childId).add(action);
 			}
-			nodeActions.get(childId).add(action);
+		} finally {
+			in.close();
 		}
 
 		// Remove node omega
-		nodeActions.remove(Node.DEFAULT_START_NODE.getId());
+		nodeActions.remove(Node.getDefaultStartNodeId());
 	}
 
-	private void readActivationTimePerAction(LineIterator in) {
+	private void readActivationTimePerAction(File file) throws IOException {
 		activationTimePerAction = new ObjectArrayList<Int2LongOpenHashMap>(
 				nActions);
-		String line;
 		int lastAction = -1;
 		Int2LongOpenHashMap activationTime = new Int2LongOpenHashMap();
 		activationTime.defaultReturnValue(-1);
-		while (in.hasNext()) {
-			line = in.next().toString();
-			String[] tokens = line.split("\t", 3);
-			int action = Integer.parseInt(tokens[0]);
-			int nodeId = Node.getId(tokens[1]);
-			long time = Long.parseLong(tokens[2]);
-			if (action != lastAction && lastAction != -1) {
-				activationTimePerAction.add(lastAction,
-						(Int2LongOpenHashMap) activationTime.clone());
-				activationTime.clear();
-			}
-			activationTime.put(nodeId, time);
-			lastAction = action;
+		TabSeparatedFileParser in = new TabSeparatedFileParser(file);
+		try {
+			while (in.nextLine()) {
+				int action = in.parseInt(0);
+				int nodeId = in.internNode(1, dictionary);
+				long time = in.parseLong(2);
+				if (action != lastAction && lastAction != -1) {
+					activationTimePerAction.add(lastAction,
+							(Int2LongOpenHashMap) activationTime.clone());
+					activationTime.clear();
+				}
+				activationTime.put(nodeId, time);
+				lastAction = action;
+			}
+		} finally {
+			in.close();
 		}
 		if (lastAction != -1) {
 			activationTimePerAction.add(lastAction,
@@ -798,59 +1177,133 @@ public class ICEstimateAuxiliary {
 		}
 	}
 
-	private SparseIntArrayListMatrix2D readA(LineIterator in) {
-		SparseIntArrayListMatrix2D A = Node.getSparseObjectMatrix();
-		String line;
+	private ArcActionLists readA(File file) throws IOException {
+		// The actions of every arc are sorted, and kept until all the arcs
+		// are known
+		IntArrayList arcIds = new IntArrayList();
+		ObjectArrayList<int[]> arcActions = new ObjectArrayList<int[]>();
 		int lastParent = -1;
 		int lastChild = -1;
 		IntOpenHashSet actions = new IntOpenHashSet();
-		while (in.hasNext()) {
-			line = in.next().toString();
-			String[] tokens = line.split("\t", 3);
-			int parentId = Node.getId(tokens[0]);
-			int childId = Node.getId(tokens[1]);
-			int action = Integer.parseInt(tokens[2]);
-			if (parentId != lastParent || childId != lastChild) {
-				A.setQuick(lastParent, lastChild, new IntArrayList(actions));
-				actions.clear();
-			}
-			actions.add(action);
-			lastParent = parentId;
-			lastChild = childId;
+		TabSeparatedFileParser in = new TabSeparatedFileParser(file);
+		try {
+			while (in.nextLine()) {
+				int parentId = in.internNode(0, dictionary);
+				int childId = in.internNode(1, dictionary);
+				int action = in.parseInt(2);
+				if ((parentId != lastParent || childId != lastChild)
+						&& actions.size() > 0) {
+					arcIds.add(arcId(lastParent, lastChild));
+					arcActions.add(sortedActions(actions));
+					actions.clear();
+				}
+				actions.add(action);
+				lastParent = parentId;
+				lastChild = childId;
+			}
+		} finally {
+			in.close();
 		}
 		if (lastParent != -1 && lastChild != -1 && actions.size() > 0) {
-			A.setQuick(lastParent, lastChild, new IntArrayList(actions));
+			arcIds.add(arcId(lastParent, lastChild));
+			arcActions.add(sortedActions(actions));
 		}
-		return A;
+
+		ArcActionLists.Builder builder = new ArcActionLists.Builder(
+				sn.getGraph());
+		for (int i = 0; i < arcIds.size(); i++) {
+			for (int action : arcActions.get(i)) {
+				builder.count(arcIds.getInt(i), action);
+			}
+		}
+		for (int i = 0; i < arcIds.size(); i++) {
+			for (int action : arcActions.get(i)) {
+				builder.add(arcIds.getInt(i), action);
+			}
+		}
+		return builder.build();
+	}
+
+	private static int[] sortedActions(IntOpenHashSet actions) {
+		int[] sorted = actions.toIntArray();
+		Arrays.sort(sorted);
+		return sorted;
 	}
 
-	private void readBplus(LineIterator in) {
-		Bplus = new ObjectArrayList<Int2ArrayOfIntMap>(nActions);
-		String line;
+	private void readBplus(File file) throws IOException {
+		// Entries by action, as in the binary format
+		IntArrayList actionSizes = new IntArrayList(nActions);
+		IntArrayList children = new IntArrayList();
+		IntArrayList childSizes = new IntArrayList();
+		IntArrayList parents = new IntArrayList();
 		int lastAction = -1;
 		Int2ObjectOpenHashMap<IntOpenHashSet> bAction = new Int2ObjectOpenHashMap<IntOpenHashSet>();
-		while (in.hasNext()) {
-			line = in.next().toString();
-			String[] tokens = line.split("\t", 3);
-			int action = Integer.parseInt(tokens[0]);
-			int childId = Node.getId(tokens[1]);
-			int parentId = Node.getId(tokens[2]);
-			if (action != lastAction && lastAction != -1) {
-				for (int i = Bplus.size(); i < lastAction; i++) {
-					// Pad with empty
-					Bplus.add(i, null);
+		TabSeparatedFileParser in = new TabSeparatedFileParser(file);
+		try {
+			while (in.nextLine()) {
+				int action = in.parseInt(0);
+				int childId = in.internNode(1, dictionary);
+				int parentId = in.internNode(2, dictionary);
+				if (action != lastAction && lastAction != -1) {
+					addBplusAction(lastAction, bAction, actionSizes, children,
+							childSizes, parents);
+					bAction.clear();
 				}
-				Bplus.add(lastAction, new Int2ArrayOfIntMap(bAction));
-				bAction.clear();
-			}
-			if (!bAction.containsKey(childId)) {
-				bAction.put(childId, new IntOpenHashSet());
+				if (!bAction.containsKey(childId)) {
+					bAction.put(childId, new IntOpenHashSet());
+				}
+				bAction.get(childId).add(parentId);
+				lastAction = action;
 			}
-			bAction.get(childId).add(parentId);
-			lastAction = action;
+		} finally {
+			in.close();
 		}
 		if (lastAction != -1 && bAction.size() > 0) {
-			Bplus.add(lastAction, new Int2ArrayOfIntMap(bAction));
+			addBplusAction(lastAction, bAction, actionSizes, children,
+					childSizes, parents);
+		}
+		while (actionSizes.size() < nActions) {
+			actionSizes.add(0);
+		}
+
+		int nMaps = actionSizes.size();
+		int[] actionOffsets = new int[nMaps + 1];
+		for (int action = 0; action < nMaps; action++) {
+			actionOffsets[action + 1] = actionOffsets[action]
+					+ actionSizes.getInt(action);
+		}
+		int[] childParentOffsets = new int[children.size() + 1];
+		for (int i = 0; i < children.size(); i++) {
+			childParentOffsets[i + 1] = childParentOffsets[i]
+					+ childSizes.getInt(i);
+		}
+		Bplus = new BplusIndex(sn.getGraph(), Aplus, nMaps, actionOffsets,
+				children.toIntArray(), childParentOffsets, parents.toIntArray());
+	}
+
+	/**
+	 * Appends the children of an action, and their parents, after those of
+	 * the previous actions; actions must be added in increasing order.
+	 */
+	private static void addBplusAction(int action,
+			Int2ObjectOpenHashMap<IntOpenHashSet> bAction,
+			IntArrayList actionSizes, IntArrayList children,
+			IntArrayList childSizes, IntArrayList parents) {
+		if (action < actionSizes.size()) {
+			throw new IllegalArgumentException("The actions of Bplus are not sorted: "
+					+ action + " after " + (actionSizes.size() - 1));
+		}
+		while (actionSizes.size() < action) {
+			// Pad with empty
+			actionSizes.add(0);
+		}
+		actionSizes.add(bAction.size());
+		for (int childId : bAction.keySet()) {
+			children.add(childId);
+			childSizes.add(bAction.get(childId).size());
+			for (int parentId : bAction.get(childId)) {
+				parents.add(parentId);
+			}
 		}
 	}
 
@@ -872,6 +1325,13 @@ public class ICEstimateAuxiliary {
 								JSAP.STRING_PARSER, JSAP.NO_DEFAULT,
 								JSAP.NOT_REQUIRED, 'o', "output-basename",
 								"The base output filename to write the auxiliary structure"),
+						new Switch("text", JSAP.NO_SHORTFLAG, "text",
+								"Write tab-separated text files instead of a binary file"),
+						new FlaggedOption("threads", JSAP.INTEGER_PARSER,
+								Integer.toString(DEFAULT_NUMBER_OF_THREADS),
+								JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG,
+								"threads",
+								"The number of threads (default: number of processors)"),
 						new FlaggedOption("input", JSAP.STRING_PARSER,
 								JSAP.NO_DEFAULT, JSAP.REQUIRED, 'i', "input",
 								"The file containing the observations"), });
@@ -883,11 +1343,13 @@ public class ICEstimateAuxiliary {
 
 		// Load social network and input
 		String snFilename = jsapResult.getString("social-network");
-		SocialNetwork socNet = new SocialNetwork(
-				Utilities.getIterator(snFilename));
+		NodeDictionary dictionary = new NodeDictionary();
+		SocialNetwork socNet = new SocialNetwork(dictionary,
+				new File(snFilename));
 		String obsFilename = jsapResult.getString("input");
 		ObservationsReader observationsReader = new ObservationsReader(
-				obsFilename);
+				dictionary, obsFilename, true);
+		dictionary.freeze();
 
 		LOGGER.info("Input data: nodes=" + socNet.sizeNodes() + ", arcs="
 				+ socNet.sizeArcs() + ", actions=" + observationsReader.size());
@@ -897,6 +1359,7 @@ public class ICEstimateAuxiliary {
 		LOGGER.info("Creating auxiliary data structure");
 		ICEstimateAuxiliary auxiliary = new ICEstimateAuxiliary(socNet,
 				observationsReader, new SelectByTimePrecedence());
+		auxiliary.setNumberOfThreads(jsapResult.getInt("threads"));
 		auxiliary.getNodeActions();
 		auxiliary.getActivationTimePerAction();
 		auxiliary.getAplus();
@@ -906,7 +1369,11 @@ public class ICEstimateAuxiliary {
 		LOGGER.info("Writing to file");
 		if (jsapResult.userSpecified("output-basename")) {
 			String basename = jsapResult.getString("output-basename");
-			auxiliary.write(basename);
+			if (jsapResult.getBoolean("text")) {
+				auxiliary.writeText(basename);
+			} else {
+				auxiliary.write(basename);
+			}
 		}
 	}
 }
@@ -1,23 +1,26 @@
 package edu.toronto.cs.propagation.ic;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.logging.ProgressLogger;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import org.apache.log4j.Logger;
 
-import cern.colt.function.IntIntDoubleFunction;
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
-import cern.colt.matrix.impl.SparseObjectMatrix2D;
 import edu.toronto.cs.propagation.SocialNetwork;
 import edu.toronto.cs.propagation.ic.candidate_selection.CandidateSelectionPolicy;
 import edu.toronto.cs.propagation.ic.candidate_selection.SelectByTimePrecedence;
-import edu.toronto.cs.propagation.util.Arc;
-import edu.toronto.cs.propagation.util.Int2ArrayOfIntMap;
+import edu.toronto.cs.propagation.util.ActiveSet;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
+import edu.toronto.cs.propagation.util.CSRGraph;
 import edu.toronto.cs.propagation.util.Iterative;
+import edu.toronto.cs.propagation.util.Multithreaded;
 import edu.toronto.cs.propagation.util.Node;
-import edu.toronto.cs.propagation.util.SparseIntArrayListMatrix2D;
+import edu.toronto.cs.propagation.util.ArcActionLists;
 import edu.toronto.cs.propagation.util.Utilities;
 
 /**
@@ -25,30 +28,28 @@ import edu.toronto.cs.propagation.util.Utilities;
  * activated each node, but just the social network and timestamps
  * 
  */
-public class ICEstimateEM extends ICEstimate implements Iterative {
+public class ICEstimateEM extends ICEstimate implements Iterative,
+		Multithreaded, ActiveSet {
 
 	public final static double INITIAL_PROBABILITY = 1.0;
 
-	private static double pAlpha(int v, int[] BactionV,
-			SparseDoubleMatrix2D currentProbs) {
-		double aux = 1.0;
-		for (int u : BactionV) {
-			aux *= (1.0 - currentProbs.getQuick(u,v));
-		}
-		return 1.0 - aux;
-	}
-
 	int nActions;
 
 	private int maxIterations = DEFAULT_MAX_ITERATIONS;
 
 	private double minDifference = DEFAULT_MIN_DIFFERENCE;
 
-	private SparseIntArrayListMatrix2D Aplus;
+	private int numberOfThreads = DEFAULT_NUMBER_OF_THREADS;
 
-	private SparseIntArrayListMatrix2D Aminus;
+	private double arcTolerance = DEFAULT_ARC_TOLERANCE;
 
-	private ObjectArrayList<Int2ArrayOfIntMap> Bplus;
+	private int fullSweepInterval = DEFAULT_FULL_SWEEP_INTERVAL;
+
+	private ArcActionLists Aplus;
+
+	private ArcActionLists Aminus;
+
+	private BplusIndex Bplus;
 
 	public ICEstimateEM(SocialNetwork sn) {
 		super(sn);
@@ -79,46 +80,50 @@ public class ICEstimateEM extends ICEstimate implements Iterative {
 		Bplus = auxiliary.getBplus();
 		
 		// Compute probabilities
-		SparseDoubleMatrix2D probs;
+		ArcProbabilities probs;
 		probs = iterate(logger, numOfChunks);
 
 		return new ICModelConstantWaitingTime(sn, probs);
 	}
 
-	public SparseObjectMatrix2D getAminus() {
+	public ArcActionLists getAminus() {
 		return Aminus;
 	}
 
-	public SparseObjectMatrix2D getAplus() {
+	public ArcActionLists getAplus() {
 		return Aplus;
 	}
 
-	SparseDoubleMatrix2D iterate(Logger logger) {
+	ArcProbabilities iterate(Logger logger) {
 		return iterate(logger, 1);
 	}
 
-	SparseDoubleMatrix2D iterate(Logger logger, int numOfChunks) {
+	ArcProbabilities iterate(final Logger logger, int numOfChunks) {
 
 		int[] allNodes = Utilities.getRandomArrayOfNodes(sn.getNodes().toArray(new Node[] {}));
 		ObjectOpenHashSet<IntOpenHashSet> nodeChunks = Utilities
 				.partitionIntoChunks(allNodes, numOfChunks);
 
-		// Initialize probabilities
-		ObjectOpenHashSet<SparseDoubleMatrix2D> currentProbsInChunks = new ObjectOpenHashSet<SparseDoubleMatrix2D>();
+		// Initialize probabilities; chunks are sets of followers, so each arc
+		// belongs to exactly one chunk
+		CSRGraph graph = sn.getGraph();
+		ArcProbabilities probEstimates = new ArcProbabilities(graph);
+		ObjectArrayList<int[]> arcsInChunks = new ObjectArrayList<int[]>();
 		for (IntOpenHashSet chunk : nodeChunks) {
-			SparseDoubleMatrix2D currentProbsOfChunk = Node.getSparseDoubleMatrix();
+			IntArrayList arcsOfChunk = new IntArrayList();
+			int[] leaderArcIds = graph.getLeaderArcIds();
 			for (int u : chunk) {
-				for (Arc inlink : sn.getLeaders(u)) {
-					int leaderId = inlink.getLeaderId();
-					int followerId = inlink.getFollowerId();
-					int aPlusSize = (Aplus.getQuick(leaderId, followerId) != null) ? Aplus.getQuick(leaderId, followerId).size() : 0;
+				int end = sn.getLeadersEnd(u);
+				for (int i = sn.getLeadersBegin(u); i < end; i++) {
+					int aPlusSize = Aplus.size(leaderArcIds[i]);
 					// ignore arcs that would get zero probability
 					if (aPlusSize > 0) {
-						currentProbsOfChunk.setQuick(leaderId, followerId, INITIAL_PROBABILITY);
+						probEstimates.set(leaderArcIds[i], INITIAL_PROBABILITY);
+						arcsOfChunk.add(leaderArcIds[i]);
 					}
 				}
 			}
-			currentProbsInChunks.add(currentProbsOfChunk);
+			arcsInChunks.add(arcsOfChunk.toIntArray());
 		}
 
 		nodeChunks.clear();
@@ -131,71 +136,103 @@ public class ICEstimateEM extends ICEstimate implements Iterative {
 			pl.start("Iterating EM method");
 		}
 
-		for (SparseDoubleMatrix2D currentProbsOfChunk : currentProbsInChunks) {
-
-			// Iterate up to maxIterations, -1 means infinity
-			for (int iteration = 0; (iteration < maxIterations || maxIterations == -1); iteration++) {
-				SparseDoubleMatrix2D newProbs = Node.getSparseDoubleMatrix();
-
-				for (Arc arc : Utilities.getSortedNonZeroArcs(currentProbsOfChunk)) {
-					int leaderId = arc.getLeaderId();
-					int followerId = arc.getFollowerId();
-
-					int aPlusSize = Aplus.getListSize(leaderId,followerId);
-					int aMinusSize = Aminus.getListSize(leaderId,followerId);
-
-					if (aPlusSize == 0) {
-						newProbs.setQuick(leaderId, followerId, 0.0);
-					} else {
-						double sumFactor = 0.0;
-						for (int action : Aplus.getQuick(leaderId,followerId)) {
-							sumFactor += 1.0 / pAlpha(followerId,
-									Bplus.get(action).get(followerId),
-									currentProbsOfChunk);
-						}
-
-						double prob = currentProbsOfChunk.getQuick(leaderId, followerId)
-								/ (double) (aPlusSize + aMinusSize);
-						prob *= sumFactor;
-
-						newProbs.setQuick(leaderId, followerId, prob);
-					}
-				}
-
-				if (logger != null) {
-					pl.update();
+		// Chunks share no arcs and the E-step of an arc only reads arcs into
+		// the same follower, so each chunk converges independently and
+		// writes its own positions of probEstimates: the result does not
+		// depend on the order in which the chunks run. Threads not needed to
+		// run chunks concurrently are used to update the arcs of each chunk
+		// in parallel.
+		final int threadsPerChunk = Math.max(1, numberOfThreads
+				/ Math.max(1, arcsInChunks.size()));
+		ObjectArrayList<Callable<Integer>> tasks = new ObjectArrayList<Callable<Integer>>();
+		for (final int[] arcsOfChunk : arcsInChunks) {
+			final ArcProbabilities chunkProbEstimates = probEstimates;
+			final ProgressLogger chunkPl = pl;
+			tasks.add(new Callable<Integer>() {
+				public Integer call() {
+					EMChunk chunk = new EMChunk(sn.getGraph(), arcsOfChunk,
+							chunkProbEstimates, Aplus, Aminus, Bplus);
+					int updates = iterateChunk(chunk, maxIterations,
+							minDifference, threadsPerChunk, logger, chunkPl);
+					chunk.copyTo(chunkProbEstimates);
+					return Integer.valueOf(updates);
 				}
-				if ((minDifference > 0)
-						&& (Utilities.l2sq(currentProbsOfChunk, newProbs) < minDifference)) {
-					if (logger != null) {
-						logger.info("Difference is "
-								+ Utilities.l2sq(currentProbsOfChunk, newProbs) + " < "
-								+ minDifference);
-					}
-					break;
-				}
-				Utilities.setToZero(currentProbsOfChunk);
-				currentProbsOfChunk.assign(newProbs);
-			}
+			});
 		}
-
-		// Join all partial matrices
-		final SparseDoubleMatrix2D probEstimates = Node.getSparseDoubleMatrix();
-		for (SparseDoubleMatrix2D probsOfChunk : currentProbsInChunks) {
-			probsOfChunk.forEachNonZero(new IntIntDoubleFunction() {
-				public double apply(int leader, int follower, double value) {
-					probEstimates.setQuick(leader, follower, value);
-					return value;
-				}});
+		if (logger != null && numberOfThreads > 1) {
+			logger.info("Iterating " + tasks.size() + " chunks on "
+					+ numberOfThreads + " threads");
 		}
+		List<Integer> updatesPerChunk = Utilities.runTasks(tasks,
+				numberOfThreads);
 
 		if (logger != null) {
 			pl.stop();
+			long totalUpdates = 0;
+			int maxUpdates = 0;
+			for (Integer updates : updatesPerChunk) {
+				totalUpdates += updates.intValue();
+				maxUpdates = Math.max(maxUpdates, updates.intValue());
+			}
+			logger.info("EM updates: " + totalUpdates + " in total, at most "
+					+ maxUpdates + " in a chunk");
 		}
 
 		return probEstimates;
 	}
 
+	/**
+	 * Iterates a chunk until its estimates converge; the estimates are read
+	 * from the chunk afterwards. With an arc tolerance, only the followers
+	 * whose arcs are still changing are updated, on a single thread.
+	 * Subclasses may override this to change the iteration, but the fixed
+	 * point must be the one of EM.
+	 *
+	 * @param chunk
+	 *            the chunk, with its initial estimates
+	 * @param maxIterations
+	 *            the maximum number of EM updates, -1 means infinity
+	 * @param minDifference
+	 *            iteration stops when the squared difference between two
+	 *            iterations is below this (0=ignore)
+	 * @param numberOfThreads
+	 *            the maximum number of threads for this chunk
+	 * @param logger
+	 *            a logger, or null
+	 * @param pl
+	 *            a progress logger shared by all chunks, or null
+	 * @return the number of EM updates computed
+	 */
+	int iterateChunk(EMChunk chunk, int maxIterations, double minDifference,
+			int numberOfThreads, Logger logger, ProgressLogger pl) {
+		if (arcTolerance > 0) {
+			return chunk.iterateActiveSet(maxIterations, minDifference,
+					arcTolerance, fullSweepInterval, logger, pl);
+		}
+		return chunk.iterate(maxIterations, minDifference, numberOfThreads,
+				logger, pl);
+	}
+
+	public void setArcTolerance(double arcTolerance) {
+		if (arcTolerance < 0) {
+			throw new IllegalArgumentException(
+					"The arc tolerance can not be negative");
+		}
+		this.arcTolerance = arcTolerance;
+	}
+
+	public void setFullSweepInterval(int fullSweepInterval) {
+		if (fullSweepInterval < 1) {
+			throw new IllegalArgumentException(
+					"The full sweep interval must be at least 1");
+		}
+		this.fullSweepInterval = fullSweepInterval;
+	}
+
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
+
 	public void setMaxIterations(int maxIterations) {
 		this.maxIterations = maxIterations;
 	}
@@ -0,0 +1,134 @@
+package edu.toronto.cs.propagation.ic;
+
+import it.unimi.dsi.logging.ProgressLogger;
+
+import org.apache.log4j.Logger;
+
+import edu.toronto.cs.propagation.SocialNetwork;
+
+/**
+ * An EM estimator accelerated by squared extrapolation (SQUAREM, scheme S3 of
+ * Varadhan and Roland).
+ * <p>
+ * Every cycle computes two EM updates <em>p1=F(p0)</em> and
+ * <em>p2=F(p1)</em>, extrapolates along <em>r=p1-p0</em> and
+ * <em>v=p2-2p1+p0</em> with step <em>alpha=-|r|/|v|</em>, and then applies
+ * one more EM update to the extrapolated point. Extrapolated values outside
+ * (0,1] are replaced by those of <em>p2</em>. The cycle is accepted only if
+ * the log-likelihood does not decrease; otherwise the step is moved towards
+ * -1, where the cycle is just two EM updates, which never decrease it.
+ * <p>
+ * The fixed points and the stopping criterion are those of
+ * {@link ICEstimateEM}, and the maximum number of iterations counts EM
+ * updates. Chunks are still iterated concurrently, but the arcs of a chunk
+ * are updated by a single thread, and all of them in every update: the arc
+ * tolerance of {@link ICEstimateEM} is ignored.
+ */
+public class ICEstimateEMAccelerated extends ICEstimateEM {
+
+	/**
+	 * Steps closer than this to -1 are replaced by plain EM updates.
+	 */
+	static final double MIN_STEP_DIFFERENCE = 0.01;
+
+	public ICEstimateEMAccelerated(SocialNetwork sn) {
+		super(sn);
+	}
+
+	@Override
+	int iterateChunk(EMChunk chunk, int maxIterations, double minDifference,
+			int numberOfThreads, Logger logger, ProgressLogger pl) {
+		int n = chunk.size();
+		double[] p0 = chunk.getEstimates();
+		double[] p1 = new double[n];
+		double[] p2 = new double[n];
+		double[] extrapolated = new double[n];
+		double[] stabilized = new double[n];
+		double logL0 = chunk.logLikelihood(p0);
+
+		int updates = 0;
+		while (maxIterations == -1 || updates < maxIterations) {
+			double l2sq = chunk.step(p0, p1);
+			updates++;
+			progress(pl);
+			if (converged(l2sq, minDifference, logger)) {
+				return updates;
+			}
+			if (updates == maxIterations) {
+				System.arraycopy(p1, 0, p0, 0, n);
+				return updates;
+			}
+
+			l2sq = chunk.step(p1, p2);
+			updates++;
+			progress(pl);
+			if (converged(l2sq, minDifference, logger)) {
+				System.arraycopy(p1, 0, p0, 0, n);
+				return updates;
+			}
+			if (updates == maxIterations) {
+				System.arraycopy(p2, 0, p0, 0, n);
+				return updates;
+			}
+
+			double sumR = 0.0;
+			double sumV = 0.0;
+			for (int pos = 0; pos < n; pos++) {
+				double r = p1[pos] - p0[pos];
+				double v = p2[pos] - p1[pos] - r;
+				sumR += r * r;
+				sumV += v * v;
+			}
+			double alpha = (sumV > 0.0) ? -Math.sqrt(sumR / sumV) : -1.0;
+
+			boolean accepted = false;
+			while (alpha < -1.0 - MIN_STEP_DIFFERENCE) {
+				for (int pos = 0; pos < n; pos++) {
+					double r = p1[pos] - p0[pos];
+					double v = p2[pos] - p1[pos] - r;
+					double p = p0[pos] - 2.0 * alpha * r + alpha * alpha * v;
+					extrapolated[pos] = (p <= 0.0 || p > 1.0) ? p2[pos] : p;
+				}
+				chunk.step(extrapolated, stabilized);
+				updates++;
+				progress(pl);
+				double logL = chunk.logLikelihood(stabilized);
+				if (logL >= logL0) {
+					System.arraycopy(stabilized, 0, p0, 0, n);
+					logL0 = logL;
+					accepted = true;
+					break;
+				}
+				if (updates == maxIterations) {
+					break;
+				}
+				alpha = (alpha - 1.0) / 2.0;
+			}
+			if (!accepted) {
+				// Two plain EM updates
+				System.arraycopy(p2, 0, p0, 0, n);
+				logL0 = chunk.logLikelihood(p0);
+			}
+		}
+		return updates;
+	}
+
+	private static void progress(ProgressLogger pl) {
+		if (pl != null) {
+			synchronized (pl) {
+				pl.update();
+			}
+		}
+	}
+
+	private static boolean converged(double l2sq, double minDifference,
+			Logger logger) {
+		if ((minDifference > 0) && (l2sq < minDifference)) {
+			if (logger != null) {
+				logger.info("Difference is " + l2sq + " < " + minDifference);
+			}
+			return true;
+		}
+		return false;
+	}
+}
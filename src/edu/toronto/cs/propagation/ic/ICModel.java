@@ -1,14 +1,13 @@
 package edu.toronto.cs.propagation.ic;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.io.LineIterator;
 import it.unimi.dsi.logging.ProgressLogger;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -17,12 +16,11 @@ import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.SplittableRandom;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
-
 import com.martiansoftware.jsap.FlaggedOption;
 import com.martiansoftware.jsap.JSAP;
 import com.martiansoftware.jsap.JSAPException;
@@ -37,8 +35,15 @@ import edu.toronto.cs.propagation.PropagationModel;
 import edu.toronto.cs.propagation.SocialNetwork;
 import edu.toronto.cs.propagation.ic.candidate_selection.CandidateSelectionPolicy;
 import edu.toronto.cs.propagation.util.Arc;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
 import edu.toronto.cs.propagation.util.ArcWithTimestamp;
+import edu.toronto.cs.propagation.util.CSRGraph;
+import edu.toronto.cs.propagation.util.Multithreaded;
 import edu.toronto.cs.propagation.util.Node;
+import edu.toronto.cs.propagation.util.NodeDictionary;
+import edu.toronto.cs.propagation.util.ProbabilitiesFileReader;
+import edu.toronto.cs.propagation.util.ProbabilitiesFileWriter;
+import edu.toronto.cs.propagation.util.TabSeparatedFileParser;
 import edu.toronto.cs.propagation.util.Utilities;
 
 /**
@@ -55,9 +60,10 @@ public class ICModel extends PropagationModel {
 	public static Class<ICModel> DEFAULT_MODEL = ICModel.class;
 
 	/**
-	 * The influence probabilities.
+	 * The influence probabilities, indexed by the arc ids of the social
+	 * network.
 	 */
-	SparseDoubleMatrix2D probs;
+	ArcProbabilities probs;
 
 	/**
 	 * Creates a model from a social network and a line iterator over a file
@@ -72,7 +78,8 @@ public class ICModel extends PropagationModel {
 		super(sn);
 
 		// Read probabilities from iterator
-		probs = Node.getSparseDoubleMatrix();
+		probs = new ArcProbabilities(sn.getGraph());
+		int arcsNotInNetwork = 0;
 		while (it.hasNext()) {
 			String str = it.next().toString();
 			if (str.startsWith("#")) {
@@ -85,25 +92,129 @@ public class ICModel extends PropagationModel {
 							"Deprecated: default probability must be zero");
 				}
 			} else {
-				Node src = new Node(tokens[0]);
-				Node dest = new Node(tokens[1]);
+				int srcId = sn.getNodeDictionary().getId(tokens[0]);
+				int destId = sn.getNodeDictionary().getId(tokens[1]);
 				double probability = Double.parseDouble(tokens[2]);
-				probs.setQuick(src.getId(), dest.getId(), probability);
+				int arcId = sn.getGraph().getArcId(srcId, destId);
+				if (arcId == -1) {
+					arcsNotInNetwork++;
+				} else {
+					probs.set(arcId, probability);
+				}
+			}
+		}
+		if (arcsNotInNetwork > 0) {
+			LOGGER.warn("Ignored the probabilities of " + arcsNotInNetwork
+					+ " arcs that are not in the social network");
+		}
+	}
+
+	/**
+	 * Creates a model from a social network and a file with influence
+	 * probabilities, either a text file read with a
+	 * {@link TabSeparatedFileParser} or a binary file written by
+	 * {@link #writeProbabilities(File)}.
+	 * 
+	 * @param sn
+	 *            the social network
+	 * @param file
+	 *            a file with a list of probabilities.
+	 */
+	public ICModel(SocialNetwork sn, File file) throws IOException {
+		super(sn);
+
+		probs = new ArcProbabilities(sn.getGraph());
+		int arcsNotInNetwork;
+		if (ProbabilitiesFileReader.isProbabilitiesFile(file)) {
+			arcsNotInNetwork = readBinaryProbabilities(file);
+		} else {
+			arcsNotInNetwork = readTextProbabilities(file);
+		}
+		if (arcsNotInNetwork > 0) {
+			LOGGER.warn("Ignored the probabilities of " + arcsNotInNetwork
+					+ " arcs that are not in the social network");
+		}
+	}
+
+	/**
+	 * @return the number of probabilities of arcs that are not in the social
+	 *         network
+	 */
+	private int readTextProbabilities(File file) throws IOException {
+		NodeDictionary dictionary = sn.getNodeDictionary();
+		int arcsNotInNetwork = 0;
+		TabSeparatedFileParser parser = new TabSeparatedFileParser(file);
+		try {
+			while (parser.nextLine()) {
+				if (parser.firstByte() == '#') {
+					continue;
+				}
+				if (parser.fieldEqualsIgnoreCase(0, "defaultProbability")) {
+					if (parser.parseDouble(1) > 0.0) {
+						throw new IllegalArgumentException(
+								"Deprecated: default probability must be zero");
+					}
+				} else {
+					int srcId = parser.getNodeId(0, dictionary);
+					int destId = parser.getNodeId(1, dictionary);
+					double probability = parser.parseDouble(2);
+					int arcId = sn.getGraph().getArcId(srcId, destId);
+					if (arcId == -1) {
+						arcsNotInNetwork++;
+					} else {
+						probs.set(arcId, probability);
+					}
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		return arcsNotInNetwork;
+	}
+
+	/**
+	 * @return the number of probabilities of arcs that are not in the social
+	 *         network
+	 */
+	private int readBinaryProbabilities(File file) throws IOException {
+		int arcsNotInNetwork = 0;
+		ProbabilitiesFileReader reader = new ProbabilitiesFileReader(file,
+				sn.getNodeDictionary(), false);
+		try {
+			int n = reader.size();
+			for (int i = 0; i < n; i++) {
+				int srcId = reader.getLeaderId(i);
+				int destId = reader.getFollowerId(i);
+				int arcId = (srcId == -1 || destId == -1) ? -1 : sn.getGraph()
+						.getArcId(srcId, destId);
+				if (arcId == -1) {
+					arcsNotInNetwork++;
+				} else {
+					probs.set(arcId, reader.getProbability(i));
+				}
 			}
+		} finally {
+			reader.close();
 		}
+		return arcsNotInNetwork;
 	}
 
 	/**
-	 * Creates a model from a social network and a matrix with influence
+	 * Creates a model from a social network and a set of influence
 	 * probabilities.
 	 * 
 	 * @param sn
 	 *            the social network.
 	 * @param probs
-	 *            the matrix containing influence probabilities.
+	 *            the influence probabilities, over the arcs of the social
+	 *            network.
 	 */
-	public ICModel(SocialNetwork sn, SparseDoubleMatrix2D probs) {
+	public ICModel(SocialNetwork sn, ArcProbabilities probs) {
 		super(sn);
+		if (probs.getGraph() != sn.getGraph()) {
+			throw new IllegalArgumentException(
+					"The probabilities are not defined over the arcs of this social network");
+		}
 		this.probs = probs;
 	}
 
@@ -113,6 +224,7 @@ public class ICModel extends PropagationModel {
 			throw new IllegalArgumentException(
 					"Start node does not belong to the social network");
 		}
+		NodeDictionary dictionary = sn.getNodeDictionary();
 		ObjectArrayList<ArcWithTimestamp> propagations = new ObjectArrayList<ArcWithTimestamp>();
 
 		int time = 0;
@@ -132,20 +244,22 @@ public class ICModel extends PropagationModel {
 			IntOpenHashSet oldActivations = activated.get(time - 1);
 			IntOpenHashSet newActivations = new IntOpenHashSet();
 
+			int[] followerIds = sn.getFollowerIds();
 			for (int parentId : oldActivations) {
-				for (Arc childArc : sn.getFollowers(parentId)) {
-					double prob = getProbability(childArc);
+				int end = sn.getFollowersEnd(parentId);
+				for (int i = sn.getFollowersBegin(parentId); i < end; i++) {
+					int childId = followerIds[i];
+					double prob = getProbability(parentId, childId);
 					if (prob <= 0) {
 						continue;
 					}
 
-					int childId = childArc.getFollowerId();
 					if (!everActivated.contains(childId)) {
 						if (Utilities.coinFlip(prob)) {
 							newActivations.add(childId);
 							everActivated.add(childId);
-							propagations.add(new ArcWithTimestamp(parentId,
-									childId, time));
+							propagations.add(new ArcWithTimestamp(dictionary,
+									parentId, childId, time));
 						}
 					}
 				}
@@ -166,6 +280,7 @@ public class ICModel extends PropagationModel {
 						+ " does not belong to the social network");
 			}
 		}
+		NodeDictionary dictionary = sn.getNodeDictionary();
 		ObjectArrayList<ArcWithTimestamp> propagations = new ObjectArrayList<ArcWithTimestamp>();
 
 		int time = 0;
@@ -187,21 +302,23 @@ public class ICModel extends PropagationModel {
 			IntOpenHashSet oldActivations = activated.get(time - 1);
 			IntOpenHashSet newActivations = new IntOpenHashSet();
 
+			int[] followerIds = sn.getFollowerIds();
 			for (int parentId : oldActivations) {
 
-				for (Arc childArc : sn.getFollowers(parentId)) {
-					double prob = getProbability(childArc);
+				int end = sn.getFollowersEnd(parentId);
+				for (int i = sn.getFollowersBegin(parentId); i < end; i++) {
+					int childId = followerIds[i];
+					double prob = getProbability(parentId, childId);
 					if (prob <= 0) {
 						continue;
 					}
 
-					int childId = childArc.getFollowerId();
 					if (!everActivated.contains(childId)) {
-						if (Utilities.coinFlip(getProbability(childArc))) {
+						if (Utilities.coinFlip(prob)) {
 							newActivations.add(childId);
 							everActivated.add(childId);
-							propagations.add(new ArcWithTimestamp(parentId,
-									childId, time));
+							propagations.add(new ArcWithTimestamp(dictionary,
+									parentId, childId, time));
 						}
 					}
 				}
@@ -213,206 +330,20 @@ public class ICModel extends PropagationModel {
 	}
 
 	/**
-	 * Computes log likelihood for a node across all actions.
-	 * 
-	 * @param v
-	 *            the node
-	 * @param vPlus
-	 *            the parents of the node that could have activated it
-	 * @param vMinus
-	 *            the parents of the node that certainly did not active it
-	 * @param selectedParents
-	 *            a sub-set of (vPlus union vMinus) to consider in the
-	 *            computation
-	 * @return
-	 */
-	public double blockLogLikelihoodUsingCplusCminus(int v,
-			Int2ObjectOpenHashMap<IntArrayList> vPlus,
-			Int2ObjectOpenHashMap<IntArrayList> vMinus,
-			IntOpenHashSet selectedParents) {
-
-		double blockLogL = 0.0;
-
-		if (vPlus != null) {
-			for (int action : vPlus.keySet()) {
-				double probA = 1.0;
-				for (int u : vPlus.get(action)) {
-					if (selectedParents.contains(u)) {
-						double p = probs.getQuick(u, v);
-						probA *= (1.0 - p);
-					}
-				}
-				probA = 1.0 - probA;
-				double logA = Math.log(probA);
-				blockLogL += logA;
-			}
-		}
-
-		if (vMinus != null) {
-			for (int action : vMinus.keySet()) {
-				double logA = 0.0;
-				for (int u : vMinus.get(action)) {
-					if (selectedParents.contains(u)) {
-						double p = probs.getQuick(u, v);
-						logA += Math.log(1.0 - p);
-					}
-				}
-				blockLogL += logA;
-			}
-		}
-		return blockLogL;
-	}
-
-	/**
-	 * Computes log likelihood for a node across all actions.
-	 * 
-	 * Same as
-	 * {@link #blockLogLikelihoodUsingCplusCminus(int, Int2ObjectOpenHashMap, Int2ObjectOpenHashMap, IntOpenHashSet)}
-	 * but using arcs.
-	 * 
-	 * @param v
-	 *            the node
-	 * @param vPlus
-	 *            the parents of the node that could have activated it
-	 * @param vMinus
-	 *            the parents of the node that certainly did not active it
-	 * @param selectedParents
-	 *            a sub-set of (vPlus union vMinus) expressed as arcs to
-	 *            consider in the computation
-	 * @return
-	 */
-	public double blockLogLikelihoodUsingCplusCminus(int v,
-			Int2ObjectOpenHashMap<IntArrayList> vPlus,
-			Int2ObjectOpenHashMap<IntArrayList> vMinus,
-			ObjectOpenHashSet<Arc> selectedParents) {
-
-		double blockLogL = 0.0;
-
-		if (vPlus != null) {
-			for (int action : vPlus.keySet()) {
-				double probA = 1.0;
-				for (int u : vPlus.get(action)) {
-					Arc arc = new Arc(u, v);
-					if (selectedParents.contains(arc)) {
-						double p = probs.getQuick(u, v);
-						probA *= (1.0 - p);
-					}
-				}
-				probA = 1.0 - probA;
-				double logA = Math.log(probA);
-				blockLogL += logA;
-			}
-		}
-		if (vMinus != null) {
-			for (int action : vMinus.keySet()) {
-				double logA = 0.0;
-				for (int u : vMinus.get(action)) {
-					Arc arc = new Arc(u, v);
-					if (selectedParents.contains(arc)) {
-						double p = probs.getQuick(u, v);
-						logA += Math.log(1.0 - p);
-					}
-				}
-				blockLogL += logA;
-			}
-		}
-
-		return blockLogL;
-	}
-
-	public double blockLogLikelihoodIncreaseUsingCplusCminus(int v,
-			Int2ObjectOpenHashMap<IntArrayList> vPlus,
-			Int2ObjectOpenHashMap<IntArrayList> vMinus,
-			ObjectOpenHashSet<Arc> alreadySelectedParents, int extraParentId) {
-
-		double increase = 0.0;
-
-		if (vPlus != null) {
-			for (int action : vPlus.keySet()) {
-				if (vPlus.get(action).contains(extraParentId)) {
-					double origProb = 1.0;
-					for (int u : vPlus.get(action)) {
-						Arc arc = new Arc(u, v);
-						if (alreadySelectedParents.contains(arc)) {
-							double p = probs.getQuick(u, v);
-							origProb *= (1.0 - p);
-						}
-					}
-					double xp = probs.getQuick(extraParentId, v);
-					double updProb = origProb * (1.0 - xp);
-					
-					origProb = 1.0 - origProb;
-					updProb = 1.0 - updProb;
-					
-					double origLog = Math.log(origProb);
-					double updLog = Math.log(updProb);
-					increase += (updLog - origLog);
-				}
-			}
-		}
-		if (vMinus != null) {
-			for (int action : vMinus.keySet()) {
-				if (vMinus.get(action).contains(extraParentId)) {
-					double xp = probs.getQuick(extraParentId, v);
-					increase += Math.log(1 - xp);
-				}
-			}
-		}
-
-		return increase;
-	}
-
-	/**
-	 * Computes log likelihood for a node across all actions.
-	 * 
-	 * Same as
-	 * {@link #blockLogLikelihoodUsingCplusCminus(int, Int2ObjectOpenHashMap, Int2ObjectOpenHashMap, IntOpenHashSet)}
-	 * but considering that all parents with non-zero influence on this node are
-	 * the selected parents.
+	 * Computes log likelihood for a node across all actions, considering that
+	 * all parents with non-zero influence on this node are the selected
+	 * parents.
 	 * 
 	 * @param v
 	 *            the node
-	 * @param auxiliary
-	 *            an auxiliary data structure
+	 * @param block
+	 *            a kernel for the blocks of this model
 	 * @return
 	 */
-	double computeBlockLogLikelihood(int v, ICEstimateAuxiliary auxiliary) {
-
-		Int2ObjectOpenHashMap<IntArrayList> vPlus = auxiliary.getCplusOnline(v);
-		Int2ObjectOpenHashMap<IntArrayList> vMinus = auxiliary
-				.getCminusOnline(v);
-
-		IntOpenHashSet candidateParents = new IntOpenHashSet();
-
-		// Add as candidateParents all parents in vPlus
-		if (vPlus != null) {
-			for (int action : vPlus.keySet()) {
-				for (int u : vPlus.get(action)) {
-					candidateParents.add(u);
-				}
-			}
-		}
-
-		// Add as candidateParents all parents in vMinus
-		if (vMinus != null) {
-			for (int action : vMinus.keySet()) {
-				for (int u : vMinus.get(action)) {
-					candidateParents.add(u);
-				}
-			}
-		}
-
-		// Add as selectedParents all candidateParents that have non-zero
-		// influence probability
-		IntOpenHashSet selectedParents = new IntOpenHashSet();
-		for (int u : candidateParents) {
-			if (probs.getQuick(u, v) > 0.0) {
-				selectedParents.add(u);
-			}
-		}
-
-		return blockLogLikelihoodUsingCplusCminus(v, vPlus, vMinus,
-				selectedParents);
+	double computeBlockLogLikelihood(int v, BlockLikelihood block) {
+		block.setBlock(v);
+		block.selectNonZero();
+		return block.logLikelihood();
 	}
 
 	public void dump() {
@@ -430,7 +361,8 @@ public class ICModel extends PropagationModel {
 				+ (printModel ? " (original, alternative)" : ""));
 
 		double l2sq = 0.0;
-		for (Arc arc : Utilities.getSortedNonZeroArcs(probs)) { // sorted by
+		for (Arc arc : Utilities.getSortedNonZeroArcs(sn.getNodeDictionary(),
+				probs)) { // sorted by
 																// arcs
 			double actual = probs.getQuick(arc.getLeaderId(),
 					arc.getFollowerId());
@@ -513,8 +445,9 @@ public class ICModel extends PropagationModel {
 		Int2ObjectOpenHashMap<IntOpenHashSet> nodeActions = auxiliary
 				.getNodeActions();
 		IntSet nodesInvolved = nodeActions.keySet();
+		BlockLikelihood block = new BlockLikelihood(this, auxiliary);
 		for (int v : nodesInvolved) {
-			double blockLogL = computeBlockLogLikelihood(v, auxiliary);
+			double blockLogL = computeBlockLogLikelihood(v, block);
 			logL += blockLogL;
 		}
 		return logL;
@@ -523,6 +456,26 @@ public class ICModel extends PropagationModel {
 	public double getTotalFraction(ObservationsReader observations) {
 		double propBFS = 0.0;
 		int totalSum = 0;
+		if (observations.isInMemory()) {
+			int[] actionOffsets = observations.getActionOffsets();
+			int[] leaderIds = observations.getLeaderIds();
+			int[] followerIds = observations.getFollowerIds();
+			for (int action = 0; action < observations.sizeActions(); action++) {
+				int begin = actionOffsets[action];
+				int end = actionOffsets[action + 1];
+				if (leaderIds[begin] != Node.getNullId()) {
+					throw new IllegalArgumentException(
+							"The leader of the first event must be null");
+				}
+				for (int i = begin + 1; i < end; i++) {
+					if (probs.getQuick(leaderIds[i], followerIds[i]) > 0.0) {
+						propBFS++;
+					}
+				}
+				totalSum += end - begin;
+			}
+			return propBFS / (double) (totalSum);
+		}
 		Iterator<PropagationHistory> iterator = observations.iterator();
 		while (iterator.hasNext()) {
 			PropagationHistory propagation = iterator.next();
@@ -655,7 +608,7 @@ public class ICModel extends PropagationModel {
 		return probs.getQuick(arc.getLeaderId(), arc.getFollowerId());
 	}
 
-	public SparseDoubleMatrix2D getProbs() {
+	public ArcProbabilities getProbs() {
 		return probs;
 	}
 
@@ -674,7 +627,8 @@ public class ICModel extends PropagationModel {
 	 */
 	public void dumpProbabilities(PrintWriter pw) {
 		pw.println("#Propagation probabilities");
-		for (Arc arc : Utilities.getSortedNonZeroArcs(probs)) { // sorted by
+		for (Arc arc : Utilities.getSortedNonZeroArcs(sn.getNodeDictionary(),
+				probs)) { // sorted by
 																// arcs
 			pw.println(arc.getLeaderName() + "\t" + arc.getFollowerName()
 					+ "\t"
@@ -682,6 +636,31 @@ public class ICModel extends PropagationModel {
 		}
 	}
 
+	/**
+	 * Writes the non-zero probabilities in binary, to be read by
+	 * {@link #ICModel(SocialNetwork, File)}.
+	 * 
+	 * @param file
+	 *            the output file.
+	 */
+	public void writeProbabilities(File file) throws IOException {
+		CSRGraph graph = sn.getGraph();
+		ProbabilitiesFileWriter writer = new ProbabilitiesFileWriter(file,
+				sn.getNodeDictionary());
+		try {
+			int nArcs = graph.sizeArcs();
+			for (int arcId = 0; arcId < nArcs; arcId++) {
+				double probability = probs.get(arcId);
+				if (probability != 0.0) {
+					writer.write(graph.getArcLeaderId(arcId),
+							graph.getArcFollowerId(arcId), probability);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
 	/**
 	 * Given a model, it extract a social network that consists of arcs that
 	 * exceed a probability threshold.
@@ -734,18 +713,28 @@ public class ICModel extends PropagationModel {
 								"The propagation model to use"),
 						new Switch("dump", 'd', "dump", "Dump the graph"),
 						new Switch("run", 'r', "run", "Run propagation"),
+						new Switch("simulate", JSAP.NO_SHORTFLAG, "simulate",
+								"Run many propagations and print their statistics: the number of propagations of each size, and the fraction of propagations activating each node"),
 						new Switch("likelihood", 'l', "likelihood",
 								"Compute log-likelihood given some observations"),
 						new FlaggedOption("input", JSAP.STRING_PARSER,
 								JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'i',
 								"input", "The file containing the observations"),
 						new FlaggedOption("start-node", JSAP.STRING_PARSER,
-								Node.DEFAULT_START_NODE.getName(),
+								NodeDictionary.DEFAULT_START_NODE_NAME,
 								JSAP.NOT_REQUIRED, 'n', "start-node",
 								"Node to start propagation from"),
 						new FlaggedOption("count", JSAP.INTEGER_PARSER, Integer
 								.toString(1), JSAP.NOT_REQUIRED, 'c', "count",
 								"Number of propagations to run"),
+						new FlaggedOption("threads", JSAP.INTEGER_PARSER, Integer
+								.toString(Multithreaded.DEFAULT_NUMBER_OF_THREADS),
+								JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "threads",
+								"Number of threads, to simulate propagations"),
+						new FlaggedOption("random-seed", JSAP.LONG_PARSER,
+								JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG, "random-seed",
+								"Seed of the random generator, to simulate propagations or run them with a timed model"),
 						new FlaggedOption("output", JSAP.STRING_PARSER,
 								JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'o',
 								"output", "File to write propagations to"), });
@@ -757,7 +746,7 @@ public class ICModel extends PropagationModel {
 
 		String snFilename = jsapResult.getString("social-network");
 		SocialNetwork socNet = new SocialNetwork(
-				Utilities.getIterator(snFilename));
+				new File(snFilename));
 		String probFilename = jsapResult.getString("probabilities");
 		String modelName = jsapResult.getString("model");
 
@@ -772,7 +761,7 @@ public class ICModel extends PropagationModel {
 		String output = jsapResult.userSpecified("output") ? jsapResult
 				.getString("output") : null;
 		PrintStream ps = output == null ? System.out : new PrintStream(
-				new FileOutputStream(new File(output)));
+				new BufferedOutputStream(new FileOutputStream(new File(output))));
 
 		if (jsapResult.getBoolean("dump")) {
 			model.dump();
@@ -782,26 +771,83 @@ public class ICModel extends PropagationModel {
 				ps.close();
 				return;
 			}
-			Node startNode = new Node(jsapResult.getString("start-node"));
+			String startNodeName = jsapResult.getString("start-node");
+			if (!socNet.containsNode(startNodeName)) {
+				System.err.println("Start node does not belong to the social network");
+				ps.close();
+				return;
+			}
+			Node startNode = new Node(socNet.getNodeDictionary(), startNodeName);
+			socNet.getNodeDictionary().freeze();
 			int count = jsapResult.getInt("count");
 			ProgressLogger pl = new ProgressLogger(LOGGER,
 					ProgressLogger.TEN_SECONDS, "actions");
 			pl.expectedUpdates = count;
 			pl.start();
-			for (int i = 0; i < count; i++) {
-				PropagationHistory history = model.runModel(startNode);
-				if (output == null) {
-					history.dump();
-				} else {
-					history.saveTo(ps);
+			if (model instanceof ICModelTime) {
+				// Write the events straight from the buffer of the simulator
+				TimedCascadeSimulator simulator = new TimedCascadeSimulator(
+						(ICModelTime) model);
+				long randomSeed = jsapResult.userSpecified("random-seed") ? jsapResult
+						.getLong("random-seed") : System.nanoTime();
+				LOGGER.info("Random seed: " + randomSeed);
+				SplittableRandom random = new SplittableRandom(randomSeed);
+				PrintStream target = output == null ? System.err : ps;
+				for (int i = 0; i < count; i++) {
+					simulator.run(startNode.getId(), random).saveTo(target,
+							socNet.getNodeDictionary());
+					pl.update();
+				}
+			} else {
+				for (int i = 0; i < count; i++) {
+					PropagationHistory history = model.runModel(startNode);
+					if (output == null) {
+						history.dump();
+					} else {
+						history.saveTo(ps);
+					}
+					pl.update();
 				}
-				pl.update();
 			}
 			pl.stop();
+			ps.flush();
+		} else if (jsapResult.getBoolean("simulate")) {
+			String startNodeName = jsapResult.getString("start-node");
+			if (!socNet.containsNode(startNodeName)) {
+				System.err.println("Start node does not belong to the social network");
+				ps.close();
+				return;
+			}
+			Node startNode = new Node(socNet.getNodeDictionary(), startNodeName);
+			socNet.getNodeDictionary().freeze();
+			long randomSeed = jsapResult.userSpecified("random-seed") ? jsapResult
+					.getLong("random-seed") : System.nanoTime();
+			LOGGER.info("Random seed: " + randomSeed);
+			CascadeSimulator simulator = new CascadeSimulator(model);
+			simulator.setNumberOfThreads(jsapResult.getInt("threads"));
+			CascadeStatistics statistics = simulator.simulate(
+					new int[] { startNode.getId() }, jsapResult.getInt("count"),
+					randomSeed);
+			ps.println("#Number of propagations of each size");
+			for (int spread = 1; spread <= statistics.getMaxSpread(); spread++) {
+				if (statistics.getSpreadCount(spread) > 0) {
+					ps.println(spread + "\t" + statistics.getSpreadCount(spread));
+				}
+			}
+			ps.println("#Fraction of propagations activating each node");
+			NodeDictionary dictionary = socNet.getNodeDictionary();
+			for (int nodeId = 0; nodeId < statistics.getNumberOfNodes(); nodeId++) {
+				if (statistics.getActivationCount(nodeId) > 0) {
+					ps.println(dictionary.getName(nodeId) + "\t"
+							+ statistics.getActivationProbability(nodeId));
+				}
+			}
+			ps.flush();
 		} else if (jsapResult.getBoolean("likelihood")) {
 			String obsFilename = jsapResult.getString("input");
 			ObservationsReader observations = new ObservationsReader(
-					obsFilename);
+					socNet.getNodeDictionary(), obsFilename);
+			socNet.getNodeDictionary().freeze();
 			double logLikelihood = model
 					.getLogLikelihoodIgnoringParentInformation(observations);
 			LOGGER.info("log likelihood (ignoring parent information)="
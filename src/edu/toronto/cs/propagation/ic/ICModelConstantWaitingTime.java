@@ -1,8 +1,8 @@
 package edu.toronto.cs.propagation.ic;
 
 import it.unimi.dsi.io.LineIterator;
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
 import edu.toronto.cs.propagation.SocialNetwork;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
 import edu.toronto.cs.propagation.util.distribution.ConstantDistribution;
 
 /**
@@ -19,7 +19,7 @@ public class ICModelConstantWaitingTime extends ICModelTime {
 		repostWaitingTimeDistribution = new ConstantDistribution(WAITING_TIME);
 	}
 	
-	public ICModelConstantWaitingTime(SocialNetwork sn, SparseDoubleMatrix2D probs) {
+	public ICModelConstantWaitingTime(SocialNetwork sn, ArcProbabilities probs) {
 		super(sn, probs);
 		initWaitingTimeDistributions();
 	}
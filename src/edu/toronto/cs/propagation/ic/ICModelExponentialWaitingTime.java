@@ -1,8 +1,8 @@
 package edu.toronto.cs.propagation.ic;
 
 import it.unimi.dsi.io.LineIterator;
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
 import edu.toronto.cs.propagation.SocialNetwork;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
 import edu.toronto.cs.propagation.util.distribution.ExponentialDistribution;
 
 public class ICModelExponentialWaitingTime extends ICModelTime {
@@ -25,7 +25,7 @@ public class ICModelExponentialWaitingTime extends ICModelTime {
 		repostWaitingTimeDistribution = new ExponentialDistribution(1.0 / MEAN_REPOST_WAITING_TIME);
 	}
 
-	public ICModelExponentialWaitingTime(SocialNetwork sn, SparseDoubleMatrix2D probs) {
+	public ICModelExponentialWaitingTime(SocialNetwork sn, ArcProbabilities probs) {
 		super(sn, probs);
 		initWaitingTimeDistributions();
 	}
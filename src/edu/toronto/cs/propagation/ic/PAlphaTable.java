@@ -0,0 +1,273 @@
+package edu.toronto.cs.propagation.ic;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+import java.util.Arrays;
+
+import edu.toronto.cs.propagation.util.CSRGraph;
+
+/**
+ * The probabilities used in the E-step of {@link ICEstimateEM}, for a set of
+ * arcs.
+ * <p>
+ * For an action <em>a</em> and a follower <em>v</em>, the probability
+ * <em>pAlpha(a,v)</em> that <em>v</em> was activated by any of its candidate
+ * parents <em>Bplus(a,v)</em> is shared by all the arcs into <em>v</em> that
+ * have <em>a</em> in <em>Aplus</em>. This table numbers the distinct
+ * (action,follower) pairs of the arcs, so each <em>pAlpha(a,v)</em> is
+ * computed once per iteration by {@link #update(double[], int, int)} and then
+ * read for every arc by {@link #sumOfInverses(int)}.
+ * <p>
+ * All the structures are arrays of primitives. Arcs are identified by their
+ * position in the array given to the constructor, and probabilities are
+ * passed as arrays indexed by that position.
+ */
+class PAlphaTable {
+
+	/**
+	 * For the arc in position <em>pos</em>, the slots of its actions are in
+	 * {@link #arcSlots}[arcSlotOffsets[pos] .. arcSlotOffsets[pos+1]-1].
+	 */
+	private final int[] arcSlotOffsets;
+
+	private final int[] arcSlots;
+
+	/**
+	 * For every slot, the positions of the arcs from its candidate parents
+	 * are in {@link #slotParents}[slotParentOffsets[slot] ..
+	 * slotParentOffsets[slot+1]-1].
+	 */
+	private final int[] slotParentOffsets;
+
+	private final int[] slotParents;
+
+	/**
+	 * The arcs into the <em>f</em>-th follower of the set are in positions
+	 * followerArcOffsets[f] .. followerArcOffsets[f+1]-1, and its slots are
+	 * followerSlotOffsets[f] .. followerSlotOffsets[f+1]-1.
+	 */
+	private final int[] followerArcOffsets;
+
+	private final int[] followerSlotOffsets;
+
+	/**
+	 * The value of pAlpha for every slot, as of the last update.
+	 */
+	private final double[] pAlpha;
+
+	/**
+	 * Creates a table for a set of arcs. Arcs into the same follower must be
+	 * contiguous, and must include every arc into that follower with a
+	 * non-empty <em>Aplus</em>.
+	 *
+	 * @param graph
+	 *            the graph defining the arc ids
+	 * @param arcIds
+	 *            the arcs
+	 * @param Bplus
+	 *            for every action and child, the parents that may have
+	 *            activated the child, with the slot of every action of
+	 *            <em>Aplus</em> already resolved
+	 */
+	PAlphaTable(CSRGraph graph, int[] arcIds, BplusIndex Bplus) {
+		arcSlotOffsets = new int[arcIds.length + 1];
+		IntArrayList arcSlotList = new IntArrayList();
+		IntArrayList slotParentOffsetList = new IntArrayList();
+		IntArrayList slotParentList = new IntArrayList();
+		IntArrayList followerArcOffsetList = new IntArrayList();
+		IntArrayList followerSlotOffsetList = new IntArrayList();
+		slotParentOffsetList.add(0);
+
+		// Local slots of the slots of Bplus, relative to the first slot of
+		// the current follower, and positions of its leaders
+		int[] localSlots = IntArrays.EMPTY_ARRAY;
+		int firstSlot = 0;
+		Int2IntOpenHashMap leader2pos = new Int2IntOpenHashMap();
+		leader2pos.defaultReturnValue(-1);
+		int lastFollowerId = -1;
+		for (int pos = 0; pos < arcIds.length; pos++) {
+			int followerId = graph.getArcFollowerId(arcIds[pos]);
+			if (followerId != lastFollowerId) {
+				firstSlot = Bplus.getSlotsBegin(followerId);
+				int nSlots = Bplus.getSlotsEnd(followerId) - firstSlot;
+				localSlots = IntArrays.ensureCapacity(localSlots, nSlots);
+				Arrays.fill(localSlots, 0, nSlots, -1);
+				leader2pos.clear();
+				followerArcOffsetList.add(pos);
+				followerSlotOffsetList.add(slotParentOffsetList.size() - 1);
+				for (int next = pos; next < arcIds.length
+						&& graph.getArcFollowerId(arcIds[next]) == followerId; next++) {
+					leader2pos.put(graph.getArcLeaderId(arcIds[next]), next);
+				}
+				lastFollowerId = followerId;
+			}
+			int end = Bplus.getArcSlotsEnd(arcIds[pos]);
+			for (int i = Bplus.getArcSlotsBegin(arcIds[pos]); i < end; i++) {
+				int bPlusSlot = Bplus.getArcSlot(i);
+				int slot = localSlots[bPlusSlot - firstSlot];
+				if (slot == -1) {
+					slot = slotParentOffsetList.size() - 1;
+					localSlots[bPlusSlot - firstSlot] = slot;
+					int parentsEnd = Bplus.getParentsEnd(bPlusSlot);
+					for (int j = Bplus.getParentsBegin(bPlusSlot); j < parentsEnd; j++) {
+						int parentPos = leader2pos.get(Bplus.getParent(j));
+						// parents outside the set have probability zero
+						if (parentPos != -1) {
+							slotParentList.add(parentPos);
+						}
+					}
+					slotParentOffsetList.add(slotParentList.size());
+				}
+				arcSlotList.add(slot);
+			}
+			arcSlotOffsets[pos + 1] = arcSlotList.size();
+		}
+		followerArcOffsetList.add(arcIds.length);
+		followerSlotOffsetList.add(slotParentOffsetList.size() - 1);
+		arcSlots = arcSlotList.toIntArray();
+		followerArcOffsets = followerArcOffsetList.toIntArray();
+		followerSlotOffsets = followerSlotOffsetList.toIntArray();
+		slotParentOffsets = slotParentOffsetList.toIntArray();
+		slotParents = slotParentList.toIntArray();
+		pAlpha = new double[slotParentOffsets.length - 1];
+	}
+
+	/**
+	 * @return the number of distinct (action,follower) pairs
+	 */
+	int sizeSlots() {
+		return pAlpha.length;
+	}
+
+	/**
+	 * @return the number of distinct followers
+	 */
+	int sizeFollowers() {
+		return followerArcOffsets.length - 1;
+	}
+
+	/**
+	 * Gets the first position of the arcs into a follower; the arcs into the
+	 * <em>f</em>-th follower are in positions followerArcOffset(f) ..
+	 * followerArcOffset(f+1)-1.
+	 *
+	 * @param follower
+	 *            the index of the follower, from 0 to {@link #sizeFollowers()}
+	 * @return the position
+	 */
+	int followerArcOffset(int follower) {
+		return followerArcOffsets[follower];
+	}
+
+	/**
+	 * Gets the first slot of a follower; the slots of the <em>f</em>-th
+	 * follower are followerSlotOffset(f) .. followerSlotOffset(f+1)-1.
+	 *
+	 * @param follower
+	 *            the index of the follower, from 0 to {@link #sizeFollowers()}
+	 * @return the slot
+	 */
+	int followerSlotOffset(int follower) {
+		return followerSlotOffsets[follower];
+	}
+
+	/**
+	 * Recomputes pAlpha for a range of (action,follower) pairs.
+	 *
+	 * @param currentProbs
+	 *            the current probability of every arc, by position
+	 * @param fromSlot
+	 *            the first slot (inclusive)
+	 * @param toSlot
+	 *            the last slot (exclusive)
+	 */
+	void update(double[] currentProbs, int fromSlot, int toSlot) {
+		for (int slot = fromSlot; slot < toSlot; slot++) {
+			double aux = 1.0;
+			int end = slotParentOffsets[slot + 1];
+			for (int i = slotParentOffsets[slot]; i < end; i++) {
+				aux *= (1.0 - currentProbs[slotParents[i]]);
+			}
+			pAlpha[slot] = 1.0 - aux;
+		}
+	}
+
+	/**
+	 * Gets the sum of 1/pAlpha over the actions of an arc, as of the last
+	 * update of its slots.
+	 *
+	 * @param pos
+	 *            the position of the arc in the array given to the
+	 *            constructor
+	 * @return the sum
+	 */
+	double sumOfInverses(int pos) {
+		double sumFactor = 0.0;
+		int end = arcSlotOffsets[pos + 1];
+		for (int i = arcSlotOffsets[pos]; i < end; i++) {
+			sumFactor += 1.0 / pAlpha[arcSlots[i]];
+		}
+		return sumFactor;
+	}
+
+	/**
+	 * Gets the sum of log(pAlpha) over all the (action,follower) pairs, as of
+	 * the last update of all the slots.
+	 *
+	 * @return the sum
+	 */
+	double sumOfLogs() {
+		double sum = 0.0;
+		for (int slot = 0; slot < pAlpha.length; slot++) {
+			sum += Math.log(pAlpha[slot]);
+		}
+		return sum;
+	}
+
+	/**
+	 * Splits the arcs into contiguous ranges of similar cost for
+	 * {@link #sumOfInverses(int)}.
+	 *
+	 * @param parts
+	 *            the number of ranges
+	 * @return the first position of every range, followed by the number of
+	 *         arcs
+	 */
+	int[] splitArcs(int parts) {
+		return split(arcSlotOffsets, parts);
+	}
+
+	/**
+	 * Splits the slots into contiguous ranges of similar cost for
+	 * {@link #update(double[], int, int)}.
+	 *
+	 * @param parts
+	 *            the number of ranges
+	 * @return the first slot of every range, followed by the number of slots
+	 */
+	int[] splitSlots(int parts) {
+		return split(slotParentOffsets, parts);
+	}
+
+	/**
+	 * Splits a list of variable-length items, counting every item as its
+	 * length plus one.
+	 */
+	private static int[] split(int[] offsets, int parts) {
+		int n = offsets.length - 1;
+		long total = (long) offsets[n] + n;
+		int[] splits = new int[parts + 1];
+		int item = 0;
+		for (int part = 1; part < parts; part++) {
+			long target = total * part / parts;
+			while (item < n && (long) offsets[item] + item < target) {
+				item++;
+			}
+			splits[part] = item;
+		}
+		splits[parts] = n;
+		return splits;
+	}
+}
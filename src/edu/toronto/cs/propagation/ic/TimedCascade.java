@@ -0,0 +1,90 @@
+package edu.toronto.cs.propagation.ic;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.io.PrintStream;
+
+import edu.toronto.cs.propagation.PropagationHistory;
+import edu.toronto.cs.propagation.util.ArcWithTimestamp;
+import edu.toronto.cs.propagation.util.Node;
+import edu.toronto.cs.propagation.util.NodeDictionary;
+
+/**
+ * The events of a cascade, in order of activation, stored as parallel arrays
+ * of leaders, followers and timestamps. The first event has leader
+ * {@link Node#getNullId()}. A buffer is reused from cascade to cascade by a
+ * {@link TimedCascadeSimulator}.
+ */
+public class TimedCascade {
+
+	private int[] leaderIds = new int[16];
+
+	private int[] followerIds = new int[16];
+
+	private long[] timestamps = new long[16];
+
+	private int size = 0;
+
+	void clear() {
+		size = 0;
+	}
+
+	void add(int leaderId, int followerId, long timestamp) {
+		if (size == leaderIds.length) {
+			leaderIds = IntArrays.grow(leaderIds, size + 1);
+			followerIds = IntArrays.grow(followerIds, size + 1);
+			timestamps = LongArrays.grow(timestamps, size + 1);
+		}
+		leaderIds[size] = leaderId;
+		followerIds[size] = followerId;
+		timestamps[size] = timestamp;
+		size++;
+	}
+
+	/**
+	 * @return the number of events, i.e., of activated nodes
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getLeaderId(int i) {
+		return leaderIds[i];
+	}
+
+	public int getFollowerId(int i) {
+		return followerIds[i];
+	}
+
+	public long getTimestamp(int i) {
+		return timestamps[i];
+	}
+
+	/**
+	 * Prints the events in the same format as
+	 * {@link PropagationHistory#saveTo(PrintStream)}.
+	 */
+	public void saveTo(PrintStream ps, NodeDictionary dictionary) {
+		for (int i = 0; i < size; i++) {
+			String leaderName = dictionary.getName(leaderIds[i]);
+			ps.print(leaderName == null ? "" : leaderName);
+			ps.print('\t');
+			ps.print(dictionary.getName(followerIds[i]));
+			ps.print('\t');
+			ps.println(timestamps[i]);
+		}
+	}
+
+	/**
+	 * @return a copy of the events, as a propagation history
+	 */
+	public PropagationHistory toPropagationHistory(NodeDictionary dictionary) {
+		ObjectArrayList<ArcWithTimestamp> events = new ObjectArrayList<ArcWithTimestamp>(size);
+		for (int i = 0; i < size; i++) {
+			events.add(new ArcWithTimestamp(dictionary, leaderIds[i], followerIds[i], timestamps[i]));
+		}
+		return new PropagationHistory(events);
+	}
+}
@@ -0,0 +1,171 @@
+package edu.toronto.cs.propagation.ic;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+
+import java.util.SplittableRandom;
+
+import edu.toronto.cs.propagation.util.ArcProbabilities;
+import edu.toronto.cs.propagation.util.CSRGraph;
+import edu.toronto.cs.propagation.util.Node;
+import edu.toronto.cs.propagation.util.distribution.TimeDistribution;
+
+/**
+ * Runs cascades of an independent cascade model with waiting times, such as
+ * {@link ICModelExponentialWaitingTime} or {@link ICModelConstantWaitingTime},
+ * in continuous time.
+ * <p>
+ * The pending activation attempts are a binary heap of (time, arc id) pairs
+ * stored in primitive arrays; attempts at the same time are dequeued by arc
+ * id, i.e., by leader and then by follower id. The activated nodes are a
+ * bitset, cleared after every cascade using the events of the cascade, and
+ * the events are written into a reusable {@link TimedCascade}. An instance is
+ * not thread-safe; use one instance per thread.
+ */
+public class TimedCascadeSimulator {
+
+	private final CSRGraph graph;
+
+	private final ArcProbabilities probs;
+
+	private final TimeDistribution postWaitingTimeDistribution;
+
+	private final TimeDistribution repostWaitingTimeDistribution;
+
+	private long[] activated;
+
+	private long[] heapTimes = new long[16];
+
+	private int[] heapArcs = new int[16];
+
+	private int heapSize = 0;
+
+	private final TimedCascade cascade = new TimedCascade();
+
+	/**
+	 * Creates a simulator for a model. The probabilities of the model must not
+	 * change while simulating.
+	 *
+	 * @param model
+	 *            the model
+	 */
+	public TimedCascadeSimulator(ICModelTime model) {
+		this.probs = model.getProbs();
+		this.graph = probs.getGraph();
+		this.postWaitingTimeDistribution = model.postWaitingTimeDistribution;
+		this.repostWaitingTimeDistribution = model.repostWaitingTimeDistribution;
+		this.activated = new long[(graph.getMaxNodeId() >>> 6) + 1];
+	}
+
+	/**
+	 * Runs a cascade.
+	 *
+	 * @param startNodeId
+	 *            the node active at time 0
+	 * @param random
+	 *            the random generator
+	 * @return the events of the cascade, which are overwritten by the next
+	 *         cascade
+	 */
+	public TimedCascade run(int startNodeId, SplittableRandom random) {
+		if (startNodeId <= Node.getNullId()) {
+			throw new IllegalArgumentException("Invalid start node id: " + startNodeId);
+		}
+		if ((startNodeId >>> 6) >= activated.length) {
+			activated = LongArrays.grow(activated, (startNodeId >>> 6) + 1);
+		}
+		for (int i = 0; i < cascade.size(); i++) {
+			int nodeId = cascade.getFollowerId(i);
+			activated[nodeId >>> 6] &= ~(1L << (nodeId & 63));
+		}
+		cascade.clear();
+		heapSize = 0;
+
+		activate(startNodeId);
+		cascade.add(Node.getNullId(), startNodeId, 0);
+		insertPropagationAttempts(0, startNodeId, postWaitingTimeDistribution, random);
+
+		int[] followerIds = graph.getFollowerIds();
+		while (heapSize > 0) {
+			long time = heapTimes[0];
+			int arcId = heapArcs[0];
+			dequeue();
+			int followerId = followerIds[arcId];
+			if (!isActivated(followerId)) {
+				activate(followerId);
+				cascade.add(graph.getArcLeaderId(arcId), followerId, time);
+				insertPropagationAttempts(time, followerId, repostWaitingTimeDistribution, random);
+			}
+		}
+		return cascade;
+	}
+
+	private boolean isActivated(int nodeId) {
+		return (activated[nodeId >>> 6] & (1L << (nodeId & 63))) != 0;
+	}
+
+	private void activate(int nodeId) {
+		activated[nodeId >>> 6] |= 1L << (nodeId & 63);
+	}
+
+	private void insertPropagationAttempts(long currentTime, int leaderId, TimeDistribution waitingTimeDistribution, SplittableRandom random) {
+		if (leaderId > graph.getMaxNodeId()) {
+			return;
+		}
+		int[] followerIds = graph.getFollowerIds();
+		int end = graph.getFollowersEnd(leaderId);
+		for (int arcId = graph.getFollowersBegin(leaderId); arcId < end; arcId++) {
+			if (!isActivated(followerIds[arcId]) && random.nextDouble() < probs.get(arcId)) {
+				long activationTime = currentTime + (long) waitingTimeDistribution.sample(random);
+				enqueue(activationTime, arcId);
+			}
+		}
+	}
+
+	private static boolean less(long time1, int arc1, long time2, int arc2) {
+		return time1 < time2 || (time1 == time2 && arc1 < arc2);
+	}
+
+	private void enqueue(long time, int arcId) {
+		if (heapSize == heapTimes.length) {
+			heapTimes = LongArrays.grow(heapTimes, heapSize + 1);
+			heapArcs = IntArrays.grow(heapArcs, heapSize + 1);
+		}
+		int pos = heapSize++;
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (!less(time, arcId, heapTimes[parent], heapArcs[parent])) {
+				break;
+			}
+			heapTimes[pos] = heapTimes[parent];
+			heapArcs[pos] = heapArcs[parent];
+			pos = parent;
+		}
+		heapTimes[pos] = time;
+		heapArcs[pos] = arcId;
+	}
+
+	private void dequeue() {
+		heapSize--;
+		long time = heapTimes[heapSize];
+		int arcId = heapArcs[heapSize];
+		int pos = 0;
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && less(heapTimes[child + 1], heapArcs[child + 1], heapTimes[child], heapArcs[child])) {
+				child++;
+			}
+			if (!less(heapTimes[child], heapArcs[child], time, arcId)) {
+				break;
+			}
+			heapTimes[pos] = heapTimes[child];
+			heapArcs[pos] = heapArcs[child];
+			pos = child;
+		}
+		heapTimes[pos] = time;
+		heapArcs[pos] = arcId;
+	}
+}
@@ -0,0 +1,336 @@
+package edu.toronto.cs.propagation.ic.influence;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPException;
+import com.martiansoftware.jsap.JSAPResult;
+import com.martiansoftware.jsap.Parameter;
+import com.martiansoftware.jsap.SimpleJSAP;
+import com.martiansoftware.jsap.Switch;
+
+import edu.toronto.cs.propagation.SocialNetwork;
+import edu.toronto.cs.propagation.ic.CascadeSimulator;
+import edu.toronto.cs.propagation.ic.CascadeStatistics;
+import edu.toronto.cs.propagation.ic.ICModel;
+import edu.toronto.cs.propagation.util.Multithreaded;
+import edu.toronto.cs.propagation.util.Node;
+import edu.toronto.cs.propagation.util.NodeDictionary;
+
+/**
+ * Selects the <em>k</em> seeds of largest expected spread in an independent
+ * cascade model, using the IMM algorithm of Tang, Shi and Xiao (SIGMOD 2015).
+ * <p>
+ * IMM samples {@link ReverseReachableSets} in two phases: first, with an
+ * increasing number of sets, until greedy maximum coverage certifies a lower
+ * bound on the optimal spread; then, as many sets as that bound requires.
+ * Greedy maximum coverage on the final sets returns seeds whose spread is at
+ * least (1-1/e-&epsilon;) times the optimal, with probability at least
+ * 1-1/n<sup>&#8467;</sup>.
+ * <p>
+ * The cost is dominated by the total size of the sets, which decreases when
+ * the model has fewer arcs, e.g., after sparsification; {@link #main(String[])}
+ * compares the seeds found on an original and on a sparsified model.
+ */
+public class InfluenceMaximization implements Multithreaded {
+
+	private static final Logger LOGGER = Logger.getLogger(InfluenceMaximization.class);
+
+	public static final double DEFAULT_EPSILON = 0.1;
+
+	public static final double DEFAULT_ELL = 1.0;
+
+	private final ReverseReachableSets sets;
+
+	private final boolean[] excluded;
+
+	private double epsilon = DEFAULT_EPSILON;
+
+	private double ell = DEFAULT_ELL;
+
+	/**
+	 * The fraction of sets covered by the last seeds returned by
+	 * {@link #maxCoverage(int)}.
+	 */
+	private double coveredFraction = 0.0;
+
+	/**
+	 * Creates an instance for a model. The probabilities of the model must not
+	 * change while selecting seeds.
+	 *
+	 * @param model
+	 *            the model
+	 * @param excludedNodes
+	 *            the ids of the nodes that can not be seeds
+	 * @param randomSeed
+	 *            the seed of the random generators
+	 */
+	public InfluenceMaximization(ICModel model, int[] excludedNodes, long randomSeed) {
+		this.sets = new ReverseReachableSets(model, excludedNodes, randomSeed);
+		int numberOfNodes = sets.getNumberOfNodes();
+		this.excluded = new boolean[numberOfNodes + 1];
+		excluded[Node.getNullId()] = true;
+		for (int nodeId : excludedNodes) {
+			if (nodeId >= 0 && nodeId <= numberOfNodes) {
+				excluded[nodeId] = true;
+			}
+		}
+	}
+
+	public void setNumberOfThreads(int numberOfThreads) {
+		sets.setNumberOfThreads(numberOfThreads);
+	}
+
+	/**
+	 * @param epsilon
+	 *            the approximation error, in (0,1)
+	 */
+	public void setEpsilon(double epsilon) {
+		if (!(epsilon > 0.0 && epsilon < 1.0)) {
+			throw new IllegalArgumentException("Epsilon must be in (0,1): " + epsilon);
+		}
+		this.epsilon = epsilon;
+	}
+
+	/**
+	 * @param ell
+	 *            the guarantee holds with probability at least 1-1/n^ell
+	 */
+	public void setEll(double ell) {
+		if (!(ell > 0.0)) {
+			throw new IllegalArgumentException("Ell must be positive: " + ell);
+		}
+		this.ell = ell;
+	}
+
+	/**
+	 * @return the sampled sets
+	 */
+	public ReverseReachableSets getReverseReachableSets() {
+		return sets;
+	}
+
+	/**
+	 * @return the expected spread of the last seeds selected, estimated on the
+	 *         sampled sets
+	 */
+	public double getEstimatedSpread() {
+		return coveredFraction * sets.getNumberOfNodes();
+	}
+
+	/**
+	 * Selects seeds with IMM.
+	 *
+	 * @param k
+	 *            the number of seeds
+	 * @return the ids of the seeds, in order of selection; fewer than k if there
+	 *         are fewer candidate nodes
+	 */
+	public int[] selectSeeds(int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("The number of seeds must be at least 1");
+		}
+		double n = sets.getNumberOfNodes();
+		if (n < 2) {
+			return maxCoverage(k);
+		}
+		double logN = Math.log(n);
+		double l = ell * (1.0 + Math.log(2) / logN);
+		double logBinomial = logBinomial(sets.getNumberOfNodes(), Math.min(k, sets.getNumberOfNodes()));
+
+		// Phase 1: a lower bound on the optimal spread
+		double epsilonPrime = Math.sqrt(2.0) * epsilon;
+		double lambdaPrime = (2.0 + 2.0 / 3.0 * epsilonPrime)
+				* (logBinomial + l * logN + Math.log(Math.log(n) / Math.log(2)))
+				* n / (epsilonPrime * epsilonPrime);
+		double lowerBound = 1.0;
+		int rounds = (int) Math.ceil(Math.log(n) / Math.log(2)) - 1;
+		for (int i = 1; i <= rounds; i++) {
+			double x = n / Math.pow(2, i);
+			sets.sampleUntil((long) Math.ceil(lambdaPrime / x));
+			maxCoverage(k);
+			double spread = n * coveredFraction;
+			LOGGER.debug("Round " + i + ": " + sets.size() + " sets, estimated spread " + spread);
+			if (spread >= (1.0 + epsilonPrime) * x) {
+				lowerBound = spread / (1.0 + epsilonPrime);
+				break;
+			}
+		}
+
+		// Phase 2: enough sets for the guarantee
+		double alpha = Math.sqrt(l * logN + Math.log(2));
+		double beta = Math.sqrt((1.0 - 1.0 / Math.E) * (logBinomial + l * logN + Math.log(2)));
+		double lambdaStar = 2.0 * n * Math.pow((1.0 - 1.0 / Math.E) * alpha + beta, 2) / (epsilon * epsilon);
+		sets.sampleUntil((long) Math.ceil(lambdaStar / lowerBound));
+		LOGGER.info("Sampled " + sets.size() + " sets with " + sets.sizeMembers() + " nodes (lower bound on spread " + lowerBound + ")");
+		return maxCoverage(k);
+	}
+
+	/**
+	 * Greedy maximum coverage on the sets sampled so far: repeatedly picks the
+	 * node in the most uncovered sets, breaking ties by smaller id.
+	 *
+	 * @param k
+	 *            the number of seeds
+	 * @return the ids of the seeds
+	 */
+	int[] maxCoverage(int k) {
+		int numberOfNodes = sets.getNumberOfNodes();
+		int numberOfSets = sets.size();
+		int[] setOffsets = sets.getOffsets();
+		int[] members = sets.getMembers();
+		int[] indexOffsets = sets.getIndexOffsets();
+		int[] indexSetIds = sets.getIndexSetIds();
+
+		// The number of uncovered sets containing each node, -1 if not a candidate
+		int[] counts = new int[numberOfNodes + 1];
+		for (int v = 0; v <= numberOfNodes; v++) {
+			counts[v] = excluded[v] ? -1 : indexOffsets[v + 1] - indexOffsets[v];
+		}
+		boolean[] covered = new boolean[numberOfSets];
+		int coveredSets = 0;
+		int[] seeds = new int[k];
+		int numberOfSeeds = 0;
+		while (numberOfSeeds < k) {
+			int best = -1;
+			int bestCount = -1;
+			for (int v = 1; v <= numberOfNodes; v++) {
+				if (counts[v] > bestCount) {
+					best = v;
+					bestCount = counts[v];
+				}
+			}
+			if (best == -1) {
+				break;
+			}
+			seeds[numberOfSeeds++] = best;
+			coveredSets += bestCount;
+			counts[best] = -1;
+			for (int i = indexOffsets[best]; i < indexOffsets[best + 1]; i++) {
+				int s = indexSetIds[i];
+				if (covered[s]) {
+					continue;
+				}
+				covered[s] = true;
+				for (int j = setOffsets[s]; j < setOffsets[s + 1]; j++) {
+					if (counts[members[j]] > 0) {
+						counts[members[j]]--;
+					}
+				}
+			}
+		}
+		coveredFraction = numberOfSets == 0 ? 0.0 : (double) coveredSets / (double) numberOfSets;
+		return IntArrays.trim(seeds, numberOfSeeds);
+	}
+
+	/**
+	 * @return the natural logarithm of n choose k
+	 */
+	static double logBinomial(int n, int k) {
+		double result = 0.0;
+		for (int i = 0; i < k; i++) {
+			result += Math.log((double) (n - i) / (double) (i + 1));
+		}
+		return result;
+	}
+
+	/**
+	 * Selects seeds on a model, and optionally on a sparsified version of it,
+	 * and evaluates both sets of seeds on the original model by simulation.
+	 */
+	public static void main(String[] args) throws JSAPException, IOException {
+		final SimpleJSAP jsap = new SimpleJSAP(
+				InfluenceMaximization.class.getName(),
+				"Selects the seeds of largest expected spread in an independent cascade model, optionally comparing them to the seeds selected on a sparsified model.",
+				new Parameter[] {
+						new FlaggedOption("social-network", JSAP.STRING_PARSER,
+								JSAP.NO_DEFAULT, JSAP.REQUIRED, 's',
+								"social-network",
+								"The file containing the social network graph"),
+						new FlaggedOption("probabilities", JSAP.STRING_PARSER,
+								JSAP.NO_DEFAULT, JSAP.REQUIRED, 'p',
+								"probabilities",
+								"The file containing the propagation probabilities"),
+						new FlaggedOption("sparsified-probabilities", JSAP.STRING_PARSER,
+								JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'q',
+								"sparsified-probabilities",
+								"The file containing the propagation probabilities of a sparsified model"),
+						new FlaggedOption("seeds", JSAP.INTEGER_PARSER,
+								"10", JSAP.NOT_REQUIRED, 'k', "seeds",
+								"Number of seeds to select"),
+						new FlaggedOption("epsilon", JSAP.DOUBLE_PARSER,
+								Double.toString(DEFAULT_EPSILON), JSAP.NOT_REQUIRED,
+								'e', "epsilon", "Approximation error"),
+						new FlaggedOption("evaluation-count", JSAP.INTEGER_PARSER,
+								"10000", JSAP.NOT_REQUIRED, 'c', "evaluation-count",
+								"Number of propagations to evaluate the seeds on the original model, 0 to skip"),
+						new Switch("include-start-node", JSAP.NO_SHORTFLAG,
+								"include-start-node",
+								"Allow the default start node '" + NodeDictionary.DEFAULT_START_NODE_NAME + "' to be a seed"),
+						new FlaggedOption("threads", JSAP.INTEGER_PARSER, Integer
+								.toString(Multithreaded.DEFAULT_NUMBER_OF_THREADS),
+								JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "threads",
+								"Number of threads"),
+						new FlaggedOption("random-seed", JSAP.LONG_PARSER,
+								JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG, "random-seed",
+								"Seed of the random generator"), });
+
+		final JSAPResult jsapResult = jsap.parse(args);
+		if (jsap.messagePrinted()) {
+			return;
+		}
+
+		SocialNetwork socNet = new SocialNetwork(
+				new File(jsapResult.getString("social-network")));
+		ICModel model = new ICModel(socNet,
+				new File(jsapResult.getString("probabilities")));
+		ICModel sparsifiedModel = jsapResult.userSpecified("sparsified-probabilities") ? new ICModel(
+				socNet, new File(jsapResult.getString("sparsified-probabilities")))
+				: null;
+		socNet.getNodeDictionary().freeze();
+		NodeDictionary dictionary = socNet.getNodeDictionary();
+
+		int[] excludedNodes = jsapResult.getBoolean("include-start-node") ? new int[0]
+				: new int[] { Node.getDefaultStartNodeId() };
+		int k = jsapResult.getInt("seeds");
+		int threads = jsapResult.getInt("threads");
+		long randomSeed = jsapResult.userSpecified("random-seed") ? jsapResult
+				.getLong("random-seed") : System.nanoTime();
+		LOGGER.info("Random seed: " + randomSeed);
+
+		ICModel[] models = sparsifiedModel == null ? new ICModel[] { model }
+				: new ICModel[] { model, sparsifiedModel };
+		String[] labels = { "original", "sparsified" };
+		for (int m = 0; m < models.length; m++) {
+			InfluenceMaximization im = new InfluenceMaximization(models[m], excludedNodes, randomSeed);
+			im.setNumberOfThreads(threads);
+			im.setEpsilon(jsapResult.getDouble("epsilon"));
+			long start = System.currentTimeMillis();
+			int[] seeds = im.selectSeeds(k);
+			long elapsed = System.currentTimeMillis() - start;
+
+			System.out.println("#Model: " + labels[m] + " (" + models[m].getProbs().cardinality() + " arcs with positive probability)");
+			System.out.println("#Time (ms): " + elapsed);
+			System.out.println("#RR sets: " + im.getReverseReachableSets().size() + " with "
+					+ im.getReverseReachableSets().sizeMembers() + " nodes");
+			System.out.println("#Estimated spread: " + im.getEstimatedSpread());
+			if (jsapResult.getInt("evaluation-count") > 0 && seeds.length > 0) {
+				CascadeSimulator simulator = new CascadeSimulator(model);
+				simulator.setNumberOfThreads(threads);
+				CascadeStatistics statistics = simulator.simulate(seeds,
+						jsapResult.getInt("evaluation-count"), randomSeed);
+				System.out.println("#Spread on the original model: " + statistics.getMeanSpread());
+			}
+			for (int seed : seeds) {
+				System.out.println(dictionary.getName(seed));
+			}
+		}
+	}
+}
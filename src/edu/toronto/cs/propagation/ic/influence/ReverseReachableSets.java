@@ -0,0 +1,287 @@
+package edu.toronto.cs.propagation.ic.influence;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+
+import edu.toronto.cs.propagation.ic.ICModel;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
+import edu.toronto.cs.propagation.util.CSRGraph;
+import edu.toronto.cs.propagation.util.Multithreaded;
+import edu.toronto.cs.propagation.util.Utilities;
+
+/**
+ * A growing collection of random reverse-reachable (RR) sets of an independent
+ * cascade model.
+ * <p>
+ * An RR set is sampled by choosing a root node uniformly at random, and
+ * collecting the nodes that reach it through arcs that are kept, each with
+ * its probability. The probability that a set of seeds intersects a random RR
+ * set is its expected spread divided by the number of nodes.
+ * <p>
+ * The sets are stored one after the other in a single array of node ids, in
+ * compressed sparse row format. They are sampled in batches of
+ * {@link #BATCH_SIZE}, each with its own {@link SplittableRandom} split from
+ * the random seed, on many threads; batches are appended in order, so the sets
+ * only depend on the random seed and not on the number of threads.
+ * <p>
+ * The inverted index, from every node to the sets that contain it, is built
+ * with a counting sort the first time it is needed after sampling.
+ */
+public class ReverseReachableSets implements Multithreaded {
+
+	/**
+	 * The number of sets sampled with the same generator.
+	 */
+	public static final int BATCH_SIZE = 4096;
+
+	private final CSRGraph graph;
+
+	private final ArcProbabilities probs;
+
+	/**
+	 * The roots are chosen in 1..numberOfNodes.
+	 */
+	private final int numberOfNodes;
+
+	/**
+	 * Nodes that are never stored in a set, as they can not be seeds.
+	 */
+	private final boolean[] excluded;
+
+	private final SplittableRandom root;
+
+	/**
+	 * The nodes of set <em>i</em> are in
+	 * {@link #members}[offsets[i] .. offsets[i+1]-1].
+	 */
+	private final IntArrayList offsets;
+
+	private final IntArrayList members;
+
+	/**
+	 * The sets containing node <em>v</em> are in
+	 * {@link #indexSetIds}[indexOffsets[v] .. indexOffsets[v+1]-1], in
+	 * increasing order; null if the index must be rebuilt.
+	 */
+	private int[] indexOffsets;
+
+	private int[] indexSetIds;
+
+	private int numberOfThreads = DEFAULT_NUMBER_OF_THREADS;
+
+	/**
+	 * Creates an empty collection.
+	 *
+	 * @param model
+	 *            the model
+	 * @param excludedNodes
+	 *            the ids of the nodes that can not be seeds
+	 * @param randomSeed
+	 *            the seed of the random generators
+	 */
+	public ReverseReachableSets(ICModel model, int[] excludedNodes, long randomSeed) {
+		this.probs = model.getProbs();
+		this.graph = probs.getGraph();
+		this.numberOfNodes = graph.getMaxNodeId();
+		this.excluded = new boolean[numberOfNodes + 1];
+		for (int nodeId : excludedNodes) {
+			if (nodeId >= 0 && nodeId <= numberOfNodes) {
+				excluded[nodeId] = true;
+			}
+		}
+		this.root = new SplittableRandom(randomSeed);
+		this.offsets = new IntArrayList();
+		this.offsets.add(0);
+		this.members = new IntArrayList();
+	}
+
+	public void setNumberOfThreads(int numberOfThreads) {
+		if (numberOfThreads < 1) {
+			throw new IllegalArgumentException("The number of threads must be at least 1");
+		}
+		this.numberOfThreads = numberOfThreads;
+	}
+
+	/**
+	 * @return the number of nodes in which the roots are chosen
+	 */
+	public int getNumberOfNodes() {
+		return numberOfNodes;
+	}
+
+	/**
+	 * @return the number of sets
+	 */
+	public int size() {
+		return offsets.size() - 1;
+	}
+
+	/**
+	 * @return the total number of nodes in the sets
+	 */
+	public long sizeMembers() {
+		return members.size();
+	}
+
+	public int sizeSet(int i) {
+		return offsets.getInt(i + 1) - offsets.getInt(i);
+	}
+
+	/**
+	 * @return the <em>j</em>-th node of set <em>i</em>
+	 */
+	public int getMember(int i, int j) {
+		return members.getInt(offsets.getInt(i) + j);
+	}
+
+	/**
+	 * Samples sets until there are at least a number of them.
+	 *
+	 * @param numberOfSets
+	 *            the number of sets
+	 */
+	public void sampleUntil(long numberOfSets) {
+		if (numberOfSets > Integer.MAX_VALUE - 1) {
+			throw new IllegalArgumentException("Too many sets: " + numberOfSets);
+		}
+		int missing = (int) numberOfSets - size();
+		if (missing <= 0) {
+			return;
+		}
+		int numberOfBatches = (missing + BATCH_SIZE - 1) / BATCH_SIZE;
+		ObjectArrayList<Callable<Batch>> tasks = new ObjectArrayList<Callable<Batch>>(numberOfBatches);
+		for (int b = 0; b < numberOfBatches; b++) {
+			final SplittableRandom random = root.split();
+			final int batchSize = Math.min(BATCH_SIZE, missing - b * BATCH_SIZE);
+			tasks.add(new Callable<Batch>() {
+				public Batch call() {
+					return sampleBatch(batchSize, random);
+				}
+			});
+		}
+		List<Batch> batches = Utilities.runTasks(tasks, numberOfThreads);
+		for (Batch batch : batches) {
+			int base = members.size();
+			for (int i = 1; i < batch.offsets.size(); i++) {
+				offsets.add(base + batch.offsets.getInt(i));
+			}
+			members.addAll(batch.members);
+		}
+		indexOffsets = null;
+		indexSetIds = null;
+	}
+
+	/**
+	 * @return the offsets of the sets in {@link #getMembers()}; there are
+	 *         {@link #size()}+1 of them, but the array may be longer
+	 */
+	int[] getOffsets() {
+		return offsets.elements();
+	}
+
+	/**
+	 * @return the nodes of all the sets, one set after the other; the array may
+	 *         be longer than {@link #sizeMembers()}
+	 */
+	int[] getMembers() {
+		return members.elements();
+	}
+
+	/**
+	 * @return the offsets of the nodes in {@link #getIndexSetIds()}, of length
+	 *         {@link #getNumberOfNodes()}+2
+	 */
+	int[] getIndexOffsets() {
+		buildIndex();
+		return indexOffsets;
+	}
+
+	/**
+	 * @return the ids of the sets containing each node, one node after the
+	 *         other
+	 */
+	int[] getIndexSetIds() {
+		buildIndex();
+		return indexSetIds;
+	}
+
+	/**
+	 * @return the number of sets that contain a node
+	 */
+	public int getDegree(int nodeId) {
+		buildIndex();
+		return indexOffsets[nodeId + 1] - indexOffsets[nodeId];
+	}
+
+	private void buildIndex() {
+		if (indexOffsets != null) {
+			return;
+		}
+		int[] setOffsets = offsets.elements();
+		int[] nodeIds = members.elements();
+		int numberOfMembers = members.size();
+		int[] begin = new int[numberOfNodes + 2];
+		for (int i = 0; i < numberOfMembers; i++) {
+			begin[nodeIds[i] + 1]++;
+		}
+		for (int v = 1; v < begin.length; v++) {
+			begin[v] += begin[v - 1];
+		}
+		int[] setIds = new int[numberOfMembers];
+		int[] next = begin.clone();
+		int numberOfSets = size();
+		for (int s = 0; s < numberOfSets; s++) {
+			for (int i = setOffsets[s]; i < setOffsets[s + 1]; i++) {
+				setIds[next[nodeIds[i]]++] = s;
+			}
+		}
+		indexOffsets = begin;
+		indexSetIds = setIds;
+	}
+
+	/**
+	 * Sets sampled by one task.
+	 */
+	private static class Batch {
+		final IntArrayList offsets = new IntArrayList();
+
+		final IntArrayList members = new IntArrayList();
+	}
+
+	private Batch sampleBatch(int batchSize, SplittableRandom random) {
+		Batch batch = new Batch();
+		batch.offsets.add(0);
+
+		int[] leaderIds = graph.getLeaderIds();
+		int[] leaderArcIds = graph.getLeaderArcIds();
+		// Nodes are marked with the number of the set that reached them
+		int[] reachedIn = new int[numberOfNodes + 1];
+		IntArrayList queue = new IntArrayList();
+		for (int s = 1; s <= batchSize; s++) {
+			int rootId = 1 + random.nextInt(numberOfNodes);
+			queue.clear();
+			queue.add(rootId);
+			reachedIn[rootId] = s;
+			for (int q = 0; q < queue.size(); q++) {
+				int v = queue.getInt(q);
+				if (!excluded[v]) {
+					batch.members.add(v);
+				}
+				int end = graph.getLeadersEnd(v);
+				for (int pos = graph.getLeadersBegin(v); pos < end; pos++) {
+					int u = leaderIds[pos];
+					if (reachedIn[u] != s && random.nextDouble() < probs.get(leaderArcIds[pos])) {
+						reachedIn[u] = s;
+						queue.add(u);
+					}
+				}
+			}
+			batch.offsets.add(batch.members.size());
+		}
+		return batch;
+	}
+}
@@ -0,0 +1,114 @@
+package edu.toronto.cs.propagation.sparse;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import edu.toronto.cs.propagation.ic.BlockLikelihood;
+import edu.toronto.cs.propagation.ic.ICEstimateAuxiliary;
+import edu.toronto.cs.propagation.ic.ICModel;
+
+/**
+ * Keeps the log-likelihood of every block of a model that is being changed,
+ * so that after a change only the block of the follower of the changed arc
+ * is evaluated again.
+ * <p>
+ * The log-likelihood of the model is kept as a running total of the finite
+ * blocks, so it is read in constant time. It is computed first in the same
+ * order as
+ * {@link ICModel#getLogLikelihoodIgnoringParentInformation(ICEstimateAuxiliary)},
+ * and then only differs from it by the rounding of the updates.
+ */
+class BlockLogLikelihoods {
+
+	private final BlockLikelihood block;
+
+	/**
+	 * The child nodes of the blocks, in order.
+	 */
+	private final int[] blocks;
+
+	/**
+	 * For every child node, its position in {@link #blocks}, or -1.
+	 */
+	private final Int2IntOpenHashMap positions;
+
+	private final double[] blockLogL;
+
+	/**
+	 * The sum of the finite values of {@link #blockLogL}.
+	 */
+	private double finiteLogL;
+
+	/**
+	 * The number of values of {@link #blockLogL} that are not finite; while
+	 * there are any, the total is computed again from all the blocks.
+	 */
+	private int nonFinite;
+
+	/**
+	 * Evaluates every block of a model.
+	 *
+	 * @param model
+	 *            the model, whose probabilities will be changed
+	 * @param auxiliary
+	 *            the auxiliary variables of the observations
+	 */
+	BlockLogLikelihoods(ICModel model, ICEstimateAuxiliary auxiliary) {
+		this.block = new BlockLikelihood(model, auxiliary);
+		this.blocks = auxiliary.getNodeActions().keySet().toIntArray();
+		this.positions = new Int2IntOpenHashMap(blocks.length);
+		this.positions.defaultReturnValue(-1);
+		this.blockLogL = new double[blocks.length];
+		for (int i = 0; i < blocks.length; i++) {
+			positions.put(blocks[i], i);
+			blockLogL[i] = evaluate(blocks[i]);
+			add(blockLogL[i], 1);
+		}
+	}
+
+	/**
+	 * Adds a block to the total, or removes it if sign is -1.
+	 */
+	private void add(double logL, int sign) {
+		if (Double.isInfinite(logL) || Double.isNaN(logL)) {
+			nonFinite += sign;
+		} else {
+			finiteLogL += sign * logL;
+		}
+	}
+
+	private double evaluate(int v) {
+		block.setBlock(v);
+		block.selectNonZero();
+		return block.logLikelihood();
+	}
+
+	/**
+	 * Evaluates again the block of a child node, after the probability of one
+	 * of its incoming arcs changed.
+	 *
+	 * @param v
+	 *            the child node
+	 */
+	void update(int v) {
+		int i = positions.get(v);
+		if (i != -1) {
+			add(blockLogL[i], -1);
+			blockLogL[i] = evaluate(v);
+			add(blockLogL[i], 1);
+		}
+	}
+
+	/**
+	 * @return the log-likelihood of the model
+	 */
+	double getLogLikelihood() {
+		if (nonFinite == 0) {
+			return finiteLogL;
+		}
+		double logL = 0;
+		for (double blockLogLikelihood : blockLogL) {
+			logL += blockLogLikelihood;
+		}
+		return logL;
+	}
+}
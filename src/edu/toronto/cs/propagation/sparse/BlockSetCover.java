@@ -0,0 +1,176 @@
+package edu.toronto.cs.propagation.sparse;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.Arrays;
+
+import edu.toronto.cs.propagation.ic.BlockLikelihood;
+import edu.toronto.cs.propagation.ic.ChildActions;
+
+/**
+ * Finds, for a block (a child node and its parents), a 'base' subset of
+ * parents for which the log-likelihood of the block is not -Infinity, using
+ * the greedy set-cover heuristic: the parent covering the largest number of
+ * uncovered actions of <em>Cplus</em> is chosen first, until the
+ * log-likelihood of the block is finite.
+ * <p>
+ * The uncovered actions are a bitset, and the parents are kept in a bucket
+ * queue by their number of uncovered actions, so choosing a parent only
+ * updates the parents sharing an action with it. Ties are broken by the order
+ * of the buckets, which only depends on the block. The log-likelihood is only
+ * computed once every action is covered, as it is -Infinity before.
+ * <p>
+ * An instance reuses its arrays from block to block; it is not thread-safe.
+ */
+class BlockSetCover {
+
+	private final BlockLikelihood block;
+
+	/**
+	 * The uncovered actions, by position in <em>Cplus</em>.
+	 */
+	private long[] uncovered = new long[0];
+
+	/**
+	 * For every block-local index, the number of uncovered actions.
+	 */
+	private int[] count = new int[0];
+
+	/**
+	 * For every block-local index, whether the parent is in the bucket queue.
+	 */
+	private boolean[] queued = new boolean[0];
+
+	private int[] next = new int[0];
+
+	private int[] prev = new int[0];
+
+	/**
+	 * For every number of uncovered actions, the first parent of the bucket,
+	 * or -1.
+	 */
+	private int[] head = new int[0];
+
+	private double logL;
+
+	BlockSetCover(BlockLikelihood block) {
+		this.block = block;
+	}
+
+	/**
+	 * Chooses the base parents of a block.
+	 *
+	 * @param v
+	 *            the child node of the block
+	 * @return the chosen parents, in order of choice
+	 */
+	int[] cover(int v) {
+		block.setBlock(v);
+		ChildActions cPlus = block.getCplus();
+		int nActions = cPlus.size();
+		int nLeaders = cPlus.sizeLeaders();
+
+		int words = (nActions + 63) >>> 6;
+		if (uncovered.length < words) {
+			uncovered = new long[Math.max(words, 2 * uncovered.length)];
+		}
+		Arrays.fill(uncovered, 0, words, -1L);
+		if ((nActions & 63) != 0) {
+			uncovered[words - 1] = (1L << (nActions & 63)) - 1;
+		}
+		int nUncovered = nActions;
+
+		if (count.length < nLeaders) {
+			int size = Math.max(nLeaders, 2 * count.length);
+			count = new int[size];
+			queued = new boolean[size];
+			next = new int[size];
+			prev = new int[size];
+		}
+		if (head.length < nActions + 1) {
+			head = new int[Math.max(nActions + 1, 2 * head.length)];
+		}
+		Arrays.fill(head, 0, nActions + 1, -1);
+
+		// The candidate parents are the parents of some action of Cplus
+		int nQueued = 0;
+		int top = 0;
+		for (int k = nLeaders - 1; k >= 0; k--) {
+			count[k] = cPlus.sizeActionsOfParent(k);
+			queued[k] = (count[k] > 0);
+			if (queued[k]) {
+				link(k);
+				nQueued++;
+				top = Math.max(top, count[k]);
+			}
+		}
+
+		IntArrayList chosen = new IntArrayList();
+		logL = (nUncovered == 0) ? block.logLikelihood() : Double.NEGATIVE_INFINITY;
+		while (logL == Double.NEGATIVE_INFINITY && nQueued > 0) {
+			while (head[top] == -1) {
+				top--;
+			}
+			int u = head[top];
+			unlink(u);
+			queued[u] = false;
+			nQueued--;
+			chosen.add(cPlus.getLeader(u));
+			block.select(cPlus.getLeader(u));
+
+			// Cover the actions of u, and update the parents sharing them
+			int n = cPlus.sizeActionsOfParent(u);
+			for (int m = 0; m < n; m++) {
+				int i = cPlus.getActionOfParent(u, m);
+				long bit = 1L << (i & 63);
+				if ((uncovered[i >>> 6] & bit) == 0) {
+					continue;
+				}
+				uncovered[i >>> 6] &= ~bit;
+				nUncovered--;
+				for (int j = 0; j < cPlus.sizeParents(i); j++) {
+					int k = cPlus.getParentIndex(i, j);
+					if (queued[k]) {
+						unlink(k);
+						count[k]--;
+						link(k);
+					}
+				}
+			}
+
+			if (nUncovered == 0) {
+				logL = block.logLikelihood();
+			}
+		}
+		return chosen.toIntArray();
+	}
+
+	/**
+	 * @return the log-likelihood of the last block covered, with its chosen
+	 *         parents, possibly -Infinity
+	 */
+	double getLogLikelihood() {
+		return logL;
+	}
+
+	private void link(int k) {
+		int first = head[count[k]];
+		next[k] = first;
+		prev[k] = -1;
+		if (first != -1) {
+			prev[first] = k;
+		}
+		head[count[k]] = k;
+	}
+
+	private void unlink(int k) {
+		if (prev[k] == -1) {
+			head[count[k]] = next[k];
+		} else {
+			next[prev[k]] = next[k];
+		}
+		if (next[k] != -1) {
+			prev[next[k]] = prev[k];
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package edu.toronto.cs.propagation.sparse;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.logging.ProgressLogger;
+
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+import edu.toronto.cs.propagation.ObservationsReader;
+import edu.toronto.cs.propagation.PropagationHistory;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
+import edu.toronto.cs.propagation.util.ArcWithTimestamp;
+import edu.toronto.cs.propagation.util.CSRGraph;
+import edu.toronto.cs.propagation.util.Node;
+
+/**
+ * Keeps the fraction of covered propagations of a set of probabilities up to
+ * date as arcs are added or removed, i.e., the same value as
+ * {@link edu.toronto.cs.propagation.ic.ICModel#getTotalFraction(ObservationsReader)}
+ * without reading the observations again.
+ * <p>
+ * The observations are read once, counting for every arc of the graph the
+ * number of events it explains. The tracker then follows one
+ * {@link ArcProbabilities}: every change of the probability of an arc must be
+ * reported with {@link #update(ArcProbabilities, int, int)}, which takes
+ * constant time. Asking for the fraction of another store re-synchronizes the
+ * tracker with it, in time linear in the number of arcs.
+ */
+public class FractionOfPropagationsTracker {
+
+	private static final Logger LOGGER = Logger.getLogger(FractionOfPropagationsTracker.class);
+
+	private final ObservationsReader observations;
+
+	private final CSRGraph graph;
+
+	/**
+	 * For every arc, the number of events explained by the arc.
+	 */
+	private final int[] eventsPerArc;
+
+	/**
+	 * The total size of the propagations.
+	 */
+	private final long totalEvents;
+
+	/**
+	 * The probabilities being followed, or null.
+	 */
+	private ArcProbabilities tracked;
+
+	/**
+	 * For every arc, whether it has non-zero probability in {@link #tracked}.
+	 */
+	private final boolean[] covered;
+
+	/**
+	 * The number of events explained by the arcs in {@link #covered}.
+	 */
+	private long coveredEvents;
+
+	/**
+	 * Indexes a set of observations.
+	 *
+	 * @param observations
+	 *            the observations
+	 * @param graph
+	 *            the graph of the probabilities to follow
+	 */
+	public FractionOfPropagationsTracker(ObservationsReader observations, CSRGraph graph) {
+		this.observations = observations;
+		this.graph = graph;
+		this.eventsPerArc = new int[graph.sizeArcs()];
+		this.covered = new boolean[graph.sizeArcs()];
+
+		ProgressLogger pl = new ProgressLogger(LOGGER, ProgressLogger.TEN_SECONDS, "propagations");
+		pl.start("Begin indexing the events explained by every arc");
+		long total = 0;
+		if (observations.isInMemory()) {
+			int[] actionOffsets = observations.getActionOffsets();
+			int[] leaderIds = observations.getLeaderIds();
+			int[] followerIds = observations.getFollowerIds();
+			for (int action = 0; action < observations.sizeActions(); action++) {
+				pl.update();
+				int begin = actionOffsets[action];
+				int end = actionOffsets[action + 1];
+				if (leaderIds[begin] != Node.getNullId()) {
+					throw new IllegalArgumentException("The leader of the first event must be null");
+				}
+				for (int i = begin + 1; i < end; i++) {
+					int arcId = graph.getArcId(leaderIds[i], followerIds[i]);
+					if (arcId != -1) {
+						eventsPerArc[arcId]++;
+					}
+				}
+				total += end - begin;
+			}
+		} else {
+			Iterator<PropagationHistory> iterator = observations.iterator();
+			while (iterator.hasNext()) {
+				pl.update();
+				PropagationHistory propagation = iterator.next();
+				ObjectArrayList<ArcWithTimestamp> events = propagation.getEvents();
+				if (events.get(0).getLeaderId() != Node.getNullId()) {
+					throw new IllegalArgumentException("The leader of the first event must be null");
+				}
+				for (int eventNum = 1; eventNum < events.size(); eventNum++) {
+					ArcWithTimestamp arc = events.get(eventNum);
+					int arcId = graph.getArcId(arc.getLeaderId(), arc.getFollowerId());
+					if (arcId != -1) {
+						eventsPerArc[arcId]++;
+					}
+				}
+				total += propagation.size();
+			}
+		}
+		this.totalEvents = total;
+		pl.stop("Done indexing: " + totalEvents + " events");
+	}
+
+	/**
+	 * @return the observations that were indexed
+	 */
+	public ObservationsReader getObservations() {
+		return observations;
+	}
+
+	/**
+	 * Reports a change in the probability of an arc. Does nothing if the
+	 * probabilities are not the ones being followed, as they will be
+	 * re-synchronized when needed.
+	 *
+	 * @param probs
+	 *            the probabilities, after the change
+	 * @param leaderId
+	 *            the leader of the arc
+	 * @param followerId
+	 *            the follower of the arc
+	 */
+	public void update(ArcProbabilities probs, int leaderId, int followerId) {
+		if (probs != tracked) {
+			return;
+		}
+		int arcId = graph.getArcId(leaderId, followerId);
+		if (arcId == -1) {
+			return;
+		}
+		boolean isCovered = probs.get(arcId) > 0.0;
+		if (isCovered != covered[arcId]) {
+			covered[arcId] = isCovered;
+			coveredEvents += isCovered ? eventsPerArc[arcId] : -eventsPerArc[arcId];
+		}
+	}
+
+	/**
+	 * Gets the fraction of covered propagations.
+	 *
+	 * @param probs
+	 *            the probabilities, which become the ones being followed
+	 * @return the number of events explained by an arc with non-zero
+	 *         probability, divided by the total size of the propagations
+	 */
+	public double getFraction(ArcProbabilities probs) {
+		if (probs != tracked) {
+			if (probs.getGraph() != graph) {
+				throw new IllegalArgumentException("The probabilities are defined over a different graph");
+			}
+			tracked = probs;
+			coveredEvents = 0;
+			for (int arcId = 0; arcId < covered.length; arcId++) {
+				covered[arcId] = probs.get(arcId) > 0.0;
+				if (covered[arcId]) {
+					coveredEvents += eventsPerArc[arcId];
+				}
+			}
+		}
+		return (double) coveredEvents / (double) totalEvents;
+	}
+}
@@ -2,19 +2,26 @@ package edu.toronto.cs.propagation.sparse;
 
 import gnu.trove.TIntDoubleHashMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.logging.ProgressLogger;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
 import edu.toronto.cs.propagation.ObservationsReader;
+import edu.toronto.cs.propagation.ic.BlockLikelihood;
 import edu.toronto.cs.propagation.ic.ICModel;
 import edu.toronto.cs.propagation.util.Arc;
-import edu.toronto.cs.propagation.util.Node;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
 import edu.toronto.cs.propagation.util.NodeScoreEntry;
 import edu.toronto.cs.propagation.util.Utilities;
 
@@ -22,6 +29,12 @@ public class GreedySparsifier extends Sparsifier {
 
 	boolean incrementalLikelihoodComputation = false;
 
+	/**
+	 * With more than one thread, the number of blocks per thread whose next
+	 * arc is computed ahead, in the background.
+	 */
+	private static final int BLOCKS_AHEAD_PER_THREAD = 4;
+
 	public GreedySparsifier(ICModel model) {
 		super(model);
 	}
@@ -36,7 +49,6 @@ public class GreedySparsifier extends Sparsifier {
 
 	@Override
 	ICModel sparsify(int k, int numOfChunks, ObservationsReader observations, boolean reportPartial) {
-
 		int[] allNodes = Utilities.getRandomArrayOfNodes(new IntOpenHashSet(auxiliary.getNodeActions().keySet()));
 		ObjectOpenHashSet<IntOpenHashSet> nodeChunks = Utilities.partitionIntoChunks(allNodes, numOfChunks);
 
@@ -81,11 +93,11 @@ public class GreedySparsifier extends Sparsifier {
 			storePartialResult(Measure.LOG_L, numOfBaseArcs, totalLogL);
 		}
 
-		SparseDoubleMatrix2D newProbs = Node.getSparseDoubleMatrix();
+		ArcProbabilities newProbs = new ArcProbabilities(originalModel.getSn().getGraph());
 		for (int v : chosenArcsPerNode.keySet()) {
 			for (Arc arc : chosenArcsPerNode.get(v)) {
 				double prob = originalModel.getProbability(arc.getLeaderId(), arc.getFollowerId());
-				newProbs.setQuick(arc.getLeaderId(), arc.getFollowerId(), prob);
+				setProbability(newProbs, arc.getLeaderId(), arc.getFollowerId(), prob);
 			}
 		}
 
@@ -95,47 +107,176 @@ public class GreedySparsifier extends Sparsifier {
 		}
 
 		// Now that we are out of -Infinity for each block, we implement Greedy
-		// for the remaining arcs.
-		// Build priority queue with best arc to remove per block
-		ProgressLogger pl = new ProgressLogger(LOGGER, ProgressLogger.TEN_SECONDS, "nodes");
-		pl.start("GreedySparsifier 2/3: computing per block");
-		pl.expectedUpdates = auxiliary.getNodeActions().keySet().size();
-		PriorityQueue<NodeScoreEntry> pq = new PriorityQueue<NodeScoreEntry>();
-		for (int v : auxiliary.getNodeActions().keySet()) {
-			pl.update();
-			addNextParentFromBlock(chosenArcsPerNode, candidateParentsPerNode, pq, v, logLPerNode);
+		// for the remaining arcs: every block produces its own sequence of
+		// arcs, and the sequences are merged by a priority queue with the next
+		// arc of every block.
+		int[] blockNodes = auxiliary.getNodeActions().keySet().toIntArray();
+		BlockSelection[] selections = new BlockSelection[blockNodes.length];
+		Int2ObjectOpenHashMap<BlockSelection> selectionPerNode = new Int2ObjectOpenHashMap<BlockSelection>(blockNodes.length);
+		for (int i = 0; i < blockNodes.length; i++) {
+			int v = blockNodes[i];
+			selections[i] = new BlockSelection(v, chosenArcsPerNode.get(v), candidateParentsPerNode.get(v), logLPerNode.get(v));
+			selectionPerNode.put(v, selections[i]);
 		}
-		pl.stop();
-
-		pl = new ProgressLogger(LOGGER, ProgressLogger.TEN_SECONDS, "arcs");
-		pl.start("GreedySparsifier 3/3: adding selected arcs and computing intermediate log likelihoods");
-		int numOfArcsToAdd = k - numOfBaseArcs;
-		pl.expectedUpdates = numOfArcsToAdd;
-		for (int i = 0; i < numOfArcsToAdd && !pq.isEmpty(); i++) {
-			pl.update();
-			NodeScoreEntry entry = pq.poll();
-			int v = entry.getNode();
-			double logLIncrease = -entry.getLogL();
-			totalLogL += logLIncrease;
-
-			if (reportPartial) {
-				storePartialResult(Measure.LOG_L, numOfBaseArcs + i + 1, totalLogL);
+
+		ExecutorService executor = (numberOfThreads > 1) ? Executors.newFixedThreadPool(numberOfThreads) : null;
+		try {
+			ProgressLogger pl = new ProgressLogger(LOGGER, ProgressLogger.TEN_SECONDS, "nodes");
+			pl.start("GreedySparsifier 2/3: computing per block using " + numberOfThreads + " threads");
+			pl.expectedUpdates = selections.length;
+			computeFirst(selections, executor, pl);
+			PriorityQueue<NodeScoreEntry> pq = new PriorityQueue<NodeScoreEntry>();
+			for (BlockSelection selection : selections) {
+				NodeScoreEntry entry = selection.ahead.poll();
+				if (entry != null) {
+					pq.add(entry);
+				}
 			}
+			pl.stop();
+
+			pl = new ProgressLogger(LOGGER, ProgressLogger.TEN_SECONDS, "arcs");
+			pl.start("GreedySparsifier 3/3: adding selected arcs and computing intermediate log likelihoods");
+			int numOfArcsToAdd = k - numOfBaseArcs;
+			pl.expectedUpdates = numOfArcsToAdd;
+			long computedAhead = 0;
+			AtomicInteger pending = new AtomicInteger();
+			AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			for (int i = 0; i < numOfArcsToAdd && !pq.isEmpty(); i++) {
+				pl.update();
+				NodeScoreEntry entry = pq.poll();
+				int v = entry.getNode();
+				double logLIncrease = -entry.getLogL();
+				totalLogL += logLIncrease;
+
+				if (reportPartial) {
+					storePartialResult(Measure.LOG_L, numOfBaseArcs + i + 1, totalLogL);
+				}
 
-			Arc arc = entry.getArc();
-			double prob = originalModel.getProbability(arc.getLeaderId(), arc.getFollowerId());
-			newProbs.setQuick(arc.getLeaderId(), arc.getFollowerId(), prob);
-			addNextParentFromBlock(chosenArcsPerNode, candidateParentsPerNode, pq, v, logLPerNode);
+				Arc arc = entry.getArc();
+				double prob = originalModel.getProbability(arc.getLeaderId(), arc.getFollowerId());
+				setProbability(newProbs, arc.getLeaderId(), arc.getFollowerId(), prob);
+
+				BlockSelection selection = selectionPerNode.get(v);
+				NodeScoreEntry next;
+				synchronized (selection) {
+					// A failed computation ahead may have left the block
+					// half-updated
+					rethrow(failure);
+					if (selection.ahead.isEmpty()) {
+						selection.computeNext();
+					} else {
+						computedAhead++;
+					}
+					next = selection.ahead.poll();
+				}
+				if (next != null) {
+					pq.add(next);
+				}
+				if (executor != null) {
+					computeAhead(pq, selectionPerNode, executor, pending, failure);
+				}
 
-			if (reportPartial) {
-				computeAndStorePartialFractionOfPropagations(observations, newProbs, numOfBaseArcs + i + 1);
+				if (reportPartial) {
+					computeAndStorePartialFractionOfPropagations(observations, newProbs, numOfBaseArcs + i + 1);
+				}
+			}
+			rethrow(failure);
+			pl.stop("Done; " + computedAhead + " arcs were computed ahead");
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
 			}
 		}
-		pl.stop();
 
 		return new ICModel(originalModel.getSn(), newProbs);
 	}
 
+	/**
+	 * Computes the first arc of every block, in parallel if an executor is
+	 * given.
+	 */
+	private void computeFirst(final BlockSelection[] selections, ExecutorService executor, final ProgressLogger pl) {
+		// Blocks differ widely in size, so use many small tasks
+		int nTasks = (executor == null) ? 1 : Math.min(selections.length, 16 * numberOfThreads);
+		ObjectArrayList<Callable<Void>> tasks = new ObjectArrayList<Callable<Void>>(nTasks);
+		for (int t = 0; t < nTasks; t++) {
+			final int from = (int) ((long) selections.length * t / nTasks);
+			final int to = (int) ((long) selections.length * (t + 1) / nTasks);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					for (int i = from; i < to; i++) {
+						synchronized (selections[i]) {
+							selections[i].computeNext();
+						}
+						synchronized (pl) {
+							pl.update();
+						}
+					}
+					return null;
+				}
+			});
+		}
+		Utilities.runTasks(tasks, executor);
+	}
+
+	/**
+	 * Schedules, in the background, the computation of the arc following the
+	 * one in the priority queue, for the blocks at the top of the heap of the
+	 * priority queue, which are likely to be merged soon. A block computes its
+	 * arcs in the same order whichever thread computes them, so the merge is
+	 * not affected. The first exception thrown by a computation is recorded
+	 * in failure, before the lock on its block is released.
+	 */
+	private void computeAhead(PriorityQueue<NodeScoreEntry> pq, Int2ObjectOpenHashMap<BlockSelection> selectionPerNode,
+			ExecutorService executor, final AtomicInteger pending, final AtomicReference<Throwable> failure) {
+		int maxPending = numberOfThreads * BLOCKS_AHEAD_PER_THREAD;
+		Iterator<NodeScoreEntry> heap = pq.iterator();
+		for (int j = 0; j < maxPending && heap.hasNext() && pending.get() < maxPending; j++) {
+			final BlockSelection selection = selectionPerNode.get(heap.next().getNode());
+			if (selection.scheduled) {
+				continue;
+			}
+			selection.scheduled = true;
+			pending.incrementAndGet();
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						synchronized (selection) {
+							try {
+								if (selection.ahead.isEmpty()) {
+									selection.computeNext();
+								}
+							} catch (Throwable t) {
+								failure.compareAndSet(null, t);
+							}
+						}
+					} finally {
+						selection.scheduled = false;
+						pending.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Re-throws in the merging thread the exception of a computation ahead,
+	 * if any, as {@link Utilities#runTasks} does.
+	 */
+	private static void rethrow(AtomicReference<Throwable> failure) {
+		Throwable t = failure.get();
+		if (t == null) {
+			return;
+		}
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else {
+			throw new IllegalStateException(t);
+		}
+	}
+
 	private void populateWithMaxLogL(Int2ObjectOpenHashMap<IntOpenHashSet> from, Int2ObjectOpenHashMap<PriorityQueue<NodeScoreEntry>> to) {
 		for (int v : from.keySet()) {
 			if (!to.containsKey(v)) {
@@ -148,100 +289,104 @@ public class GreedySparsifier extends Sparsifier {
 		}
 	}
 
-	protected void addNextParentFromBlock(Int2ObjectOpenHashMap<ObjectOpenHashSet<Arc>> chosenArcsPerNode,
-			Int2ObjectOpenHashMap<PriorityQueue<NodeScoreEntry>> candidateParentsPerNode, PriorityQueue<NodeScoreEntry> pq, int v, TIntDoubleHashMap logLPerNode) {
-
-		if (incrementalLikelihoodComputation) {
-			addNextParentFromBlockIncremental(chosenArcsPerNode, candidateParentsPerNode, pq, v, logLPerNode);
-		} else {
-			addNextParentFromBlockNonIncremental(chosenArcsPerNode, candidateParentsPerNode, pq, v, logLPerNode);
-		}
-
-	}
-
 	/**
-	 * Adds next parent from a block
-	 * 
-	 * @param chosenArcsPerNode
-	 * @param candidateParentsPerNode
-	 * @param pq
-	 * @param v
-	 * @param logLPerNode
+	 * The greedy selection of the arcs into a block. The arcs of a block are
+	 * chosen independently of other blocks, so the sequence of arcs of every
+	 * block can be computed ahead of the merge, in any thread, without
+	 * changing the model. Every access is synchronized on the instance.
 	 */
-	protected void addNextParentFromBlockNonIncremental(Int2ObjectOpenHashMap<ObjectOpenHashSet<Arc>> chosenArcsPerNode,
-			Int2ObjectOpenHashMap<PriorityQueue<NodeScoreEntry>> candidateParentsPerNode, PriorityQueue<NodeScoreEntry> pq, int v, TIntDoubleHashMap logLPerNode) {
-
-		Int2ObjectOpenHashMap<IntArrayList> cPlusV = auxiliary.getCplusOnline(v);
-		Int2ObjectOpenHashMap<IntArrayList> cMinusV = auxiliary.getCminusOnline(v);
-
-		double bestLogLIncrease = Double.NEGATIVE_INFINITY;
-
-		NodeScoreEntry[] candidateEntries = candidateParentsPerNode.get(v).toArray(new NodeScoreEntry[0]);
-		Arrays.sort(candidateEntries);
-
-		for (NodeScoreEntry uEntry : candidateEntries) {
-			if (-uEntry.getLogL() >= bestLogLIncrease) {
-				ObjectOpenHashSet<Arc> updatedParents = new ObjectOpenHashSet<Arc>(chosenArcsPerNode.get(v));
-				updatedParents.add(new Arc(uEntry.getNode(), v));
-				double logLIncrease = blockLogLikelihood(v, cPlusV, cMinusV, updatedParents) - logLPerNode.get(v);
-				if (logLIncrease > bestLogLIncrease) {
-					bestLogLIncrease = logLIncrease;
-				}
-				candidateParentsPerNode.get(v).remove(uEntry);
-				NodeScoreEntry updEntry = new NodeScoreEntry(uEntry.getNode(), -logLIncrease);
-				candidateParentsPerNode.get(v).add(updEntry);
+	private class BlockSelection {
+
+		final int v;
+
+		final ObjectOpenHashSet<Arc> chosenArcs;
+
+		final PriorityQueue<NodeScoreEntry> candidates;
+
+		/**
+		 * The log-likelihood of the block with {@link #chosenArcs}.
+		 */
+		double logL;
+
+		final BlockLikelihood block;
+
+		/**
+		 * The arcs chosen for the block but not yet merged, in order.
+		 */
+		final ArrayDeque<NodeScoreEntry> ahead;
+
+		/**
+		 * True when the block has no more candidates.
+		 */
+		boolean exhausted;
+
+		/**
+		 * True while the computation of the next arc is scheduled in the
+		 * background.
+		 */
+		volatile boolean scheduled;
+
+		BlockSelection(int v, ObjectOpenHashSet<Arc> chosenArcs, PriorityQueue<NodeScoreEntry> candidates, double logL) {
+			this.v = v;
+			this.chosenArcs = chosenArcs;
+			this.candidates = candidates;
+			this.logL = logL;
+			this.block = newBlockLikelihood();
+			this.ahead = new ArrayDeque<NodeScoreEntry>(2);
+			this.exhausted = (candidates == null);
+			block.setBlock(v);
+			for (Arc arc : chosenArcs) {
+				block.select(arc.getLeaderId());
 			}
 		}
 
-		NodeScoreEntry bestEntry = candidateParentsPerNode.get(v).poll();
-		if (bestEntry != null) {
-			Arc bestArc = new Arc(bestEntry.getNode(), v);
-			pq.add(new NodeScoreEntry(v, -bestLogLIncrease, bestArc));
-			chosenArcsPerNode.get(v).add(bestArc);
-			logLPerNode.adjustOrPutValue(v, bestLogLIncrease, bestLogLIncrease);
-		}
-	}
-
-	/**
-	 * Adds next parent from a block; this method exploits submodularity of logL to avoid
-	 * re-computation.
-	 * 
-	 * @param chosenArcsPerNode
-	 * @param candidateParentsPerNode
-	 * @param pq
-	 * @param v
-	 * @param logLPerNode
-	 */
-	protected void addNextParentFromBlockIncremental(Int2ObjectOpenHashMap<ObjectOpenHashSet<Arc>> chosenArcsPerNode,
-			Int2ObjectOpenHashMap<PriorityQueue<NodeScoreEntry>> candidateParentsPerNode, PriorityQueue<NodeScoreEntry> pq, int v, TIntDoubleHashMap logLPerNode) {
-
-		Int2ObjectOpenHashMap<IntArrayList> cPlusV = auxiliary.getCplusOnline(v);
-		Int2ObjectOpenHashMap<IntArrayList> cMinusV = auxiliary.getCminusOnline(v);
-
-		double bestLogLIncrease = Double.NEGATIVE_INFINITY;
-
-		NodeScoreEntry[] candidateEntries = candidateParentsPerNode.get(v).toArray(new NodeScoreEntry[0]);
-		Arrays.sort(candidateEntries);
+		/**
+		 * Chooses the next arc of the block, and appends it to {@link #ahead}.
+		 */
+		void computeNext() {
+			if (exhausted) {
+				return;
+			}
 
-		for (NodeScoreEntry uEntry : candidateEntries) {
-			if (-uEntry.getLogL() >= bestLogLIncrease) {
-				int extraParentId = uEntry.getNode();
-				double logLIncrease = blockLogLikelihoodIncrease(v, cPlusV, cMinusV, chosenArcsPerNode.get(v), extraParentId);
-				if (logLIncrease > bestLogLIncrease) {
-					bestLogLIncrease = logLIncrease;
+			double bestLogLIncrease = Double.NEGATIVE_INFINITY;
+
+			NodeScoreEntry[] candidateEntries = candidates.toArray(new NodeScoreEntry[0]);
+			Arrays.sort(candidateEntries);
+
+			for (NodeScoreEntry uEntry : candidateEntries) {
+				if (-uEntry.getLogL() >= bestLogLIncrease) {
+					int u = uEntry.getNode();
+					double logLIncrease;
+					if (incrementalLikelihoodComputation) {
+						// Exploits submodularity of logL to avoid re-computation
+						logLIncrease = block.logLikelihoodIncrease(u);
+					} else {
+						boolean wasSelected = block.isSelected(u);
+						block.select(u);
+						logLIncrease = block.logLikelihood() - logL;
+						if (!wasSelected) {
+							block.deselect(u);
+						}
+					}
+					if (logLIncrease > bestLogLIncrease) {
+						bestLogLIncrease = logLIncrease;
+					}
+					candidates.remove(uEntry);
+					NodeScoreEntry updEntry = new NodeScoreEntry(u, -logLIncrease);
+					candidates.add(updEntry);
 				}
-				candidateParentsPerNode.get(v).remove(uEntry);
-				NodeScoreEntry updEntry = new NodeScoreEntry(uEntry.getNode(), -logLIncrease);
-				candidateParentsPerNode.get(v).add(updEntry);
 			}
-		}
 
-		NodeScoreEntry bestEntry = candidateParentsPerNode.get(v).poll();
-		if (bestEntry != null) {
-			Arc bestArc = new Arc(bestEntry.getNode(), v);
-			pq.add(new NodeScoreEntry(v, -bestLogLIncrease, bestArc));
-			chosenArcsPerNode.get(v).add(bestArc);
-			logLPerNode.adjustOrPutValue(v, bestLogLIncrease, bestLogLIncrease);
+			NodeScoreEntry bestEntry = candidates.poll();
+			if (bestEntry != null) {
+				Arc bestArc = new Arc(originalModel.getSn().getNodeDictionary(), bestEntry.getNode(), v);
+				ahead.add(new NodeScoreEntry(v, -bestLogLIncrease, bestArc));
+				chosenArcs.add(bestArc);
+				block.select(bestEntry.getNode());
+				logL += bestLogLIncrease;
+			} else {
+				exhausted = true;
+			}
 		}
 	}
 }
@@ -8,10 +8,10 @@ import it.unimi.dsi.logging.ProgressLogger;
 import java.util.Comparator;
 import java.util.PriorityQueue;
 
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
 import edu.toronto.cs.propagation.ObservationsReader;
 import edu.toronto.cs.propagation.ic.ICModel;
 import edu.toronto.cs.propagation.util.Arc;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
 import edu.toronto.cs.propagation.util.Node;
 import edu.toronto.cs.propagation.util.ProbArcEntry;
 import edu.toronto.cs.propagation.util.Utilities;
@@ -24,11 +24,11 @@ import edu.toronto.cs.propagation.util.Utilities;
  */
 public abstract class NaiveSparsifier extends Sparsifier {
 
-	Node OMEGA = Node.DEFAULT_START_NODE;
-	int MAX_REPORT_POINTS = 30;
+	Node OMEGA;
 
 	public NaiveSparsifier(ICModel model) {
 		super(model);
+		OMEGA = model.getSn().getNodeDictionary().getDefaultStartNode();
 	}
 
 	/**
@@ -62,7 +62,7 @@ public abstract class NaiveSparsifier extends Sparsifier {
 		LOGGER.info("Number of initial arcs: " + numberInitialArcs);
 
 		// The new probabilities
-		SparseDoubleMatrix2D newProbs = Node.getSparseDoubleMatrix();
+		ArcProbabilities newProbs = new ArcProbabilities(originalModel.getSn().getGraph());
 		int numInitializationArcs = 0;
 
 		int numProbs = originalModel.getProbs().cardinality();
@@ -82,18 +82,21 @@ public abstract class NaiveSparsifier extends Sparsifier {
 				// Compute likelihood
 				double prob = originalModel.getProbability(arc.getLeaderId(),
 						arc.getFollowerId());
-				newProbs.setQuick(arc.getLeaderId(), arc.getFollowerId(), prob);
+				setProbability(newProbs, arc.getLeaderId(), arc.getFollowerId(), prob);
 				numInitializationArcs++;
 			}
 		}
+		BlockLogLikelihoods partialLogL = null;
 		if (reportPartial) {
-			computeAndStorePartialLogLikelihood(numInitializationArcs, newProbs);
+			partialLogL = new BlockLogLikelihoods(new ICModel(originalModel.getSn(), newProbs), auxiliary);
+			storePartialResult(Measure.LOG_L, numInitializationArcs, partialLogL.getLogLikelihood());
 		}
 		pl.stop();
 		LOGGER.info("Inserted " + numInitializationArcs + " arcs");
 		pl.start("NaiveSparsifier 2/3: inserting in priority queue rest of arcs");
 		pl.expectedUpdates = numProbs;
-		for (Arc arc : Utilities.getSortedNonZeroArcs(originalModel.getProbs())) {
+		for (Arc arc : Utilities.getSortedNonZeroArcs(
+				originalModel.getSn().getNodeDictionary(), originalModel.getProbs())) {
 			pl.update();
 			if (!initializationArcs.contains(arc)) {
 				double prob = originalModel.getProbability(arc.getLeaderId(),
@@ -111,38 +114,27 @@ public abstract class NaiveSparsifier extends Sparsifier {
 			arcsToGo = 1; // patch
 		}
 
-		// Decide how often to report, by default every
-		// sqrt(k-numInitializationArcs+1) points, unless that yields more
-		// reporting points that we want to (given that each report takes a long
-		// time).
-		// Note that we do NOT report likelihood while getting out of minus
-		// infinity
-		int reportEvery = (int) Math.sqrt(arcsToGo);
-		if ((double) arcsToGo / (double) reportEvery > (double) MAX_REPORT_POINTS) {
-			reportEvery = (int) ((double) arcsToGo / (double) MAX_REPORT_POINTS);
-		}
-		if (reportEvery < 1) {
-			reportEvery = 1;
-		}
-
+		// The likelihood is reported after every arc, updating only the block
+		// of the arc; note that we do NOT report likelihood while getting out
+		// of minus infinity
 		pl.start("NaiveSparsifier 3/3: extracting from priority queue "
-				+ arcsToGo + " arcs, report likelihood every " + reportEvery
-				+ " arcs");
+				+ arcsToGo + " arcs");
 		int i;
 		for (i = numInitializationArcs + 1; i <= k && !queue.isEmpty(); i++) {
 			pl.update();
 			ProbArcEntry entry = queue.poll();
 			Arc arc = entry.getArc();
 			double p = entry.getProb();
-			newProbs.setQuick(arc.getLeaderId(), arc.getFollowerId(), p);
-			if ((i % reportEvery) == 0 && reportPartial) {
-				computeAndStorePartialLogLikelihood(i, newProbs);
+			setProbability(newProbs, arc.getLeaderId(), arc.getFollowerId(), p);
+			if (reportPartial) {
+				partialLogL.update(arc.getFollowerId());
+				storePartialResult(Measure.LOG_L, i, partialLogL.getLogLikelihood());
 				computeAndStorePartialFractionOfPropagations(observations, newProbs, i);
 			}
 		}
 		pl.stop();
 		if (reportPartial) {
-			computeAndStorePartialLogLikelihood(i - 1, newProbs);
+			storePartialResult(Measure.LOG_L, i - 1, partialLogL.getLogLikelihood());
 			computeAndStorePartialFractionOfPropagations(observations, newProbs, i - 1);
 		}
 
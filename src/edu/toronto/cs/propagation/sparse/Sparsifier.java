@@ -3,10 +3,9 @@ package edu.toronto.cs.propagation.sparse;
 import gnu.trove.TIntDoubleHashMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
-import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.logging.ProgressLogger;
 
@@ -16,13 +15,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
-
 import com.martiansoftware.jsap.FlaggedOption;
 import com.martiansoftware.jsap.JSAP;
 import com.martiansoftware.jsap.JSAPResult;
@@ -32,16 +30,20 @@ import com.martiansoftware.jsap.Switch;
 
 import edu.toronto.cs.propagation.ObservationsReader;
 import edu.toronto.cs.propagation.SocialNetwork;
+import edu.toronto.cs.propagation.ic.BlockLikelihood;
+import edu.toronto.cs.propagation.ic.ChildActions;
 import edu.toronto.cs.propagation.ic.ICEstimateAuxiliary;
 import edu.toronto.cs.propagation.ic.ICModel;
 import edu.toronto.cs.propagation.ic.candidate_selection.CandidateSelectionPolicy;
 import edu.toronto.cs.propagation.util.Arc;
-import edu.toronto.cs.propagation.util.KeepMaximum;
+import edu.toronto.cs.propagation.util.ArcProbabilities;
+import edu.toronto.cs.propagation.util.Multithreaded;
 import edu.toronto.cs.propagation.util.Node;
+import edu.toronto.cs.propagation.util.NodeDictionary;
 import edu.toronto.cs.propagation.util.Reflection;
 import edu.toronto.cs.propagation.util.Utilities;
 
-public abstract class Sparsifier {
+public abstract class Sparsifier implements Multithreaded {
 
 	public enum Measure {
 		LOG_L, FRACTION_OF_PROPAGATIONS;
@@ -75,6 +77,17 @@ public abstract class Sparsifier {
 	 */
 	private boolean computeFractionOfPropagations = true;
 
+	/**
+	 * The number of events explained by every arc, to compute the partial
+	 * fraction of covered propagations; created when first needed.
+	 */
+	private FractionOfPropagationsTracker fractionTracker;
+
+	/**
+	 * The number of threads used by the sparsifiers that support it.
+	 */
+	protected int numberOfThreads = DEFAULT_NUMBER_OF_THREADS;
+
 	Object2ObjectOpenHashMap<Node, IntOpenHashSet> relatedActions = new Object2ObjectOpenHashMap<Node, IntOpenHashSet>();
 
 	public Sparsifier(ICModel originalModel) {
@@ -98,6 +111,13 @@ public abstract class Sparsifier {
 		this.auxiliary = theAuxiliary;
 	}
 
+	public void setNumberOfThreads(int numberOfThreads) {
+		if (numberOfThreads < 1) {
+			throw new IllegalArgumentException("The number of threads must be at least 1");
+		}
+		this.numberOfThreads = numberOfThreads;
+	}
+
 	ICEstimateAuxiliary getAuxiliary() {
 		return this.auxiliary;
 	}
@@ -123,14 +143,33 @@ public abstract class Sparsifier {
 	 * @param newProbs the probabilities of the current model
 	 * @param i a number indicating the number of edges so far
 	 */
-	protected void computeAndStorePartialFractionOfPropagations(ObservationsReader observations, SparseDoubleMatrix2D newProbs, int i) {
+	protected void computeAndStorePartialFractionOfPropagations(ObservationsReader observations, ArcProbabilities newProbs, int i) {
 		if (computeFractionOfPropagations) {
-			ICModel tempModel = new ICModel(originalModel.getSn(), newProbs);
-			double sparsifiedFraction = tempModel.getTotalFraction(observations);
+			if (fractionTracker == null || fractionTracker.getObservations() != observations) {
+				fractionTracker = new FractionOfPropagationsTracker(observations, newProbs.getGraph());
+			}
+			double sparsifiedFraction = fractionTracker.getFraction(newProbs);
 			storePartialResult(Measure.FRACTION_OF_PROPAGATIONS, i, sparsifiedFraction);
 		}
 	}
 
+	/**
+	 * Sets the probability of an arc of the model being created. Changes of
+	 * the model must go through this method, so that the partial fraction of
+	 * covered propagations can be updated incrementally.
+	 * 
+	 * @param newProbs the probabilities of the current model
+	 * @param leaderId the leader of the arc
+	 * @param followerId the follower of the arc
+	 * @param probability the probability
+	 */
+	protected void setProbability(ArcProbabilities newProbs, int leaderId, int followerId, double probability) {
+		newProbs.setQuick(leaderId, followerId, probability);
+		if (fractionTracker != null) {
+			fractionTracker.update(newProbs, leaderId, followerId);
+		}
+	}
+
 	/**
 	 * Disables the computation of covered propagations.
 	 */
@@ -138,7 +177,7 @@ public abstract class Sparsifier {
 		computeFractionOfPropagations = false;
 	}
 
-	protected double computeAndStorePartialLogLikelihood(int k, SparseDoubleMatrix2D newProbs) {
+	protected double computeAndStorePartialLogLikelihood(int k, ArcProbabilities newProbs) {
 		ICModel model = new ICModel(originalModel.getSn(), newProbs);
 		double logLikelihood = model.getLogLikelihoodIgnoringParentInformation(auxiliary);
 		storePartialResult(Measure.LOG_L, k, logLikelihood);
@@ -163,18 +202,14 @@ public abstract class Sparsifier {
 		}
 	}
 
-	public double blockLogLikelihood(int v, Int2ObjectOpenHashMap<IntArrayList> cPlusV, Int2ObjectOpenHashMap<IntArrayList> cMinusV, IntOpenHashSet selectedParents) {
-		return auxiliary.blockLogLikelihood(originalModel, v, cPlusV, cMinusV, selectedParents);
-	}
-
-	public double blockLogLikelihood(int v, Int2ObjectOpenHashMap<IntArrayList> cPlusV, Int2ObjectOpenHashMap<IntArrayList> cMinusV,
-			ObjectOpenHashSet<Arc> selectedParents) {
-		return auxiliary.blockLogLikelihood(originalModel, v, cPlusV, cMinusV, selectedParents);
-	}
-
-	public double blockLogLikelihoodIncrease(int v, Int2ObjectOpenHashMap<IntArrayList> cPlusV, Int2ObjectOpenHashMap<IntArrayList> cMinusV,
-			ObjectOpenHashSet<Arc> selectedParents, int extraParent) {
-		return auxiliary.blockLogLikelihoodIncrease(originalModel, v, cPlusV, cMinusV, selectedParents, extraParent);
+	/**
+	 * Creates a kernel for the log-likelihood of the blocks of the original
+	 * model. Kernels are not thread-safe.
+	 * 
+	 * @return
+	 */
+	protected BlockLikelihood newBlockLikelihood() {
+		return new BlockLikelihood(originalModel, auxiliary);
 	}
 
 	/*
@@ -204,69 +239,55 @@ public abstract class Sparsifier {
 	 */
 	protected double getOutOfMinusInfinity(Int2ObjectOpenHashMap<IntOpenHashSet> candidateParentsPerNode,
 			Int2ObjectOpenHashMap<ObjectOpenHashSet<Arc>> chosenArcsPerNode, IntOpenHashSet setOfBlocks, TIntDoubleHashMap logLPerNode) {
-		double totalLogL = 0;
-
-		ProgressLogger pl = new ProgressLogger(LOGGER, ProgressLogger.TEN_SECONDS, "blocks");
-		pl.start("Begin initializing, to avoid zero likelihood, using set-cover heuristic");
+		final ProgressLogger pl = new ProgressLogger(LOGGER, ProgressLogger.TEN_SECONDS, "blocks");
+		pl.start("Begin initializing, to avoid zero likelihood, using set-cover heuristic on " + numberOfThreads + " threads");
 		pl.expectedUpdates = setOfBlocks.size();
-		int nArcs = 0;
-		for (int v : setOfBlocks) {
-			pl.update();
-
-			IntOpenHashSet vParents = candidateParentsPerNode.get(v);
-
-			Int2ObjectOpenHashMap<IntOpenHashSet> parentActions = new Int2ObjectOpenHashMap<IntOpenHashSet>();
-
-			Int2ObjectOpenHashMap<IntArrayList> cPlusV = auxiliary.getCplusOnline(v);
-			Int2ObjectOpenHashMap<IntArrayList> cMinusV = auxiliary.getCminusOnline(v);
 
-			if (cPlusV != null) {
-				IntSet actions = cPlusV.keySet();
-				// Heuristic: first add the parents that participate in A+ for
-				// most actions
-				for (int action : actions) {
-					for (int u : cPlusV.get(action)) {
-						if (!parentActions.containsKey(u)) {
-							parentActions.put(u, new IntOpenHashSet());
+		// Blocks are independent, and differ widely in size, so use many
+		// small tasks
+		final int[] blocks = setOfBlocks.toIntArray();
+		final int[][] chosenParents = new int[blocks.length][];
+		final double[] blockLogL = new double[blocks.length];
+		int nTasks = (numberOfThreads > 1) ? Math.min(blocks.length, 16 * numberOfThreads) : 1;
+		ObjectArrayList<Callable<Void>> tasks = new ObjectArrayList<Callable<Void>>(nTasks);
+		for (int t = 0; t < nTasks; t++) {
+			final int from = (int) ((long) blocks.length * t / nTasks);
+			final int to = (int) ((long) blocks.length * (t + 1) / nTasks);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					BlockSetCover cover = new BlockSetCover(newBlockLikelihood());
+					for (int i = from; i < to; i++) {
+						chosenParents[i] = cover.cover(blocks[i]);
+						blockLogL[i] = cover.getLogLikelihood();
+						synchronized (pl) {
+							pl.update();
 						}
-						parentActions.get(u).add(action);
 					}
+					return null;
 				}
-			}
-
-			KeepMaximum km = new KeepMaximum();
-			km.addAllKey2Listsize(parentActions);
+			});
+		}
+		Utilities.runTasks(tasks, numberOfThreads);
 
-			IntOpenHashSet baseSetOfParents = new IntOpenHashSet();
-			double logL = Double.NEGATIVE_INFINITY;
-			while (logL == Double.NEGATIVE_INFINITY && (km.getMaximumKey() != -1)) {
-				int u = km.getMaximumKey();
-				if (baseSetOfParents.contains(u)) {
-					throw new IllegalStateException("Attempted to add twice the same parent");
-				}
-				baseSetOfParents.add(u);
-				logL = blockLogLikelihood(v, cPlusV, cMinusV, baseSetOfParents);
-				IntOpenHashSet uActions = parentActions.get(u);
-				for (int parent : vParents) {
-					parentActions.get(parent).removeAll(uActions);
-				}
-				vParents.remove(u);
-				parentActions.remove(u);
-				km.reset();
-				km.addAllKey2Listsize(parentActions);
-			}
+		double totalLogL = 0;
+		int nArcs = 0;
+		for (int i = 0; i < blocks.length; i++) {
+			int v = blocks[i];
 
 			// keep track of the likelihood
-			totalLogL += logL;
+			totalLogL += blockLogL[i];
 			if (logLPerNode != null) {
-				logLPerNode.put(v, logL);
+				logLPerNode.put(v, blockLogL[i]);
 			}
 
-			chosenArcsPerNode.put(v, new ObjectOpenHashSet<Arc>());
-			for (int u : baseSetOfParents) {
+			IntOpenHashSet vParents = candidateParentsPerNode.get(v);
+			ObjectOpenHashSet<Arc> chosenArcs = new ObjectOpenHashSet<Arc>();
+			for (int u : chosenParents[i]) {
 				nArcs++;
-				chosenArcsPerNode.get(v).add(new Arc(u, v));
+				vParents.remove(u);
+				chosenArcs.add(new Arc(originalModel.getSn().getNodeDictionary(), u, v));
 			}
+			chosenArcsPerNode.put(v, chosenArcs);
 		}
 		pl.stop("Done initialization. Added " + nArcs + " arcs, logLikelihood=" + totalLogL);
 		return totalLogL;
@@ -282,12 +303,10 @@ public abstract class Sparsifier {
 	protected void populateCandidateParents(Int2ObjectOpenHashMap<IntOpenHashSet> candidateParentsPerNode, IntOpenHashSet chunk) {
 		for (int v : chunk) {
 			IntOpenHashSet candidateParents = new IntOpenHashSet();
-			Int2ObjectOpenHashMap<IntArrayList> cPlusV = auxiliary.getCplusOnline(v);
-			if (cPlusV != null) {
-				for (int action : cPlusV.keySet()) {
-					for (int u : cPlusV.get(action)) {
-						candidateParents.add(u);
-					}
+			ChildActions cPlusV = auxiliary.getCplus(v);
+			for (int i = 0; i < cPlusV.size(); i++) {
+				for (int j = 0; j < cPlusV.sizeParents(i); j++) {
+					candidateParents.add(cPlusV.getParent(i, j));
 				}
 			}
 			candidateParentsPerNode.put(v, candidateParents);
@@ -323,12 +342,15 @@ public abstract class Sparsifier {
 						new FlaggedOption("number-of-chunks", JSAP.INTEGER_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'r', "number-of-chunks",
 								"The number of chunks to be sparsified in parralel"),
 						new FlaggedOption("output", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'o', "output", "File to dump sparsified model to"),
+						new Switch("binary-output", JSAP.NO_SHORTFLAG, "binary-output", "Dump the sparsified model in binary, to be loaded faster"),
 						new FlaggedOption("measures-file", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'z', "measures-file",
 								"Save measures of partial models to file"),
 						new FlaggedOption("debug-file", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'd', "debug-file", "Save debug information to file"),
 						new Switch("with-fraction", 'n', "with-fraction", "Disable the computation of the 'fraction of covered propagations'."),
 						new Switch("incremental-likelihood", JSAP.NO_SHORTFLAG, "incremental-likelihood",
 								"Performs incremental computation of likelihood, for sparsifications methods that support this option (faster, experimental)."),
+						new FlaggedOption("threads", JSAP.INTEGER_PARSER, Integer.toString(DEFAULT_NUMBER_OF_THREADS), JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "threads",
+								"The number of threads, for the auxiliary variables and the sparsification methods that support it; results do not depend on it"),
 
 				});
 
@@ -339,12 +361,14 @@ public abstract class Sparsifier {
 
 		// Load social network and input
 		String snFilename = jsapResult.getString("social-network");
-		SocialNetwork socNet = new SocialNetwork(Utilities.getIterator(snFilename));
+		NodeDictionary dictionary = new NodeDictionary();
+		SocialNetwork socNet = new SocialNetwork(dictionary, new File(snFilename));
 		String obsFilename = jsapResult.getString("input");
-		ObservationsReader observations = new ObservationsReader(obsFilename);
+		ObservationsReader observations = new ObservationsReader(dictionary, obsFilename, true);
+		dictionary.freeze();
 
 		// Load original model
-		ICModel originalModel = new ICModel(socNet, Utilities.getIterator(jsapResult.getString("probabilities")));
+		ICModel originalModel = new ICModel(socNet, new File(jsapResult.getString("probabilities")));
 
 		// Load candidate selection policy
 		String selectionPolicyName = jsapResult.getString("candidate-selection-policy");
@@ -390,6 +414,11 @@ public abstract class Sparsifier {
 			sparsifier.computeAuxiliary(observations, candidateSelectionPolicy);
 		}
 
+		int numberOfThreads = jsapResult.getInt("threads");
+		sparsifier.setNumberOfThreads(numberOfThreads);
+		sparsifier.getAuxiliary().setNumberOfThreads(numberOfThreads);
+		LOGGER.info("Number of threads: " + numberOfThreads);
+
 		int maxSparseSize;
 		if (jsapResult.userSpecified("sparse-model-size")) {
 			maxSparseSize = jsapResult.getInt("sparse-model-size");
@@ -441,10 +470,14 @@ public abstract class Sparsifier {
 		// Dump probabilities
 		if (jsapResult.userSpecified("output")) {
 			String probsFilename = jsapResult.getString("output");
-			PrintWriter pw = Utilities.getPW(probsFilename);
 			LOGGER.info("Dumping probabilities to " + probsFilename);
-			sparseModel.dumpProbabilities(pw);
-			pw.close();
+			if (jsapResult.getBoolean("binary-output")) {
+				sparseModel.writeProbabilities(new File(probsFilename));
+			} else {
+				PrintWriter pw = Utilities.getPW(probsFilename);
+				sparseModel.dumpProbabilities(pw);
+				pw.close();
+			}
 		}
 
 		sparsifier.closeDebugFile();
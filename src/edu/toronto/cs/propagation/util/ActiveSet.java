@@ -0,0 +1,18 @@
+package edu.toronto.cs.propagation.util;
+
+/**
+ * An iterative method that can stop updating the variables that have
+ * converged, and only re-checks them in periodic full sweeps.
+ */
+public interface ActiveSet {
+	/**
+	 * A variable leaves the active set once its change stays below this for
+	 * several iterations (0=always update all variables).
+	 */
+	public final static double DEFAULT_ARC_TOLERANCE = 0.0;
+
+	public final static int DEFAULT_FULL_SWEEP_INTERVAL = 20;
+
+	public void setArcTolerance(double arcTolerance);
+	public void setFullSweepInterval(int fullSweepInterval);
+}
@@ -6,6 +6,8 @@ package edu.toronto.cs.propagation.util;
  */
 public class Arc implements Comparable<Arc> {
 
+	final NodeDictionary dictionary;
+
 	int follower;
 
 	int leader;
@@ -16,12 +18,14 @@ public class Arc implements Comparable<Arc> {
 		} else if( leader != null && follower != null && leader.equals(follower) ) {
 			throw new IllegalArgumentException("The members of the arc can not be equal: " + leader + "==" + follower );
 		}
+		this.dictionary = leader == null ? follower.getDictionary() : leader.getDictionary();
 		this.leader = leader == null ? 0 : leader.getId();
 		this.follower = follower == null ? 0 : follower.getId();
 		
 	}
 
-	public Arc(int leader, int follower) {
+	public Arc(NodeDictionary dictionary, int leader, int follower) {
+		this.dictionary = dictionary;
 		this.leader = leader;
 		this.follower = follower;
 	}
@@ -44,12 +48,16 @@ public class Arc implements Comparable<Arc> {
 		}
 	}
 
+	public NodeDictionary getDictionary() {
+		return dictionary;
+	}
+
 	public String getFollowerName() {
-		return Node.getName(follower);
+		return dictionary.getName(follower);
 	}
 
 	public String getLeaderName() {
-		return Node.getName(leader);
+		return dictionary.getName(leader);
 	}
 	
 	public int getLeaderId() {
@@ -0,0 +1,524 @@
+package edu.toronto.cs.propagation.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Sorted lists of distinct actions, one for every arc of a {@link CSRGraph},
+ * stored compressed in a single byte array indexed by arc id.
+ * <p>
+ * The list of an arc starts with its size, as a variable-length integer (7
+ * bits per byte, the highest bit set on all but the last byte). Then, if it
+ * has more than {@link #SKIP_QUANTUM} actions, comes a table of skips: for
+ * every multiple <em>k</em> of {@link #SKIP_QUANTUM}, the <em>k</em>-th action
+ * and the position of the action after it, as two 4-byte integers. Last come
+ * the actions: the first one, and then the gaps between consecutive ones minus
+ * one, all as variable-length integers. Actions of the same arc tend to be
+ * close, so most of them take one byte.
+ * <p>
+ * The lists are decoded sequentially by a {@link Cursor}, which can use the
+ * skips to jump ahead, without creating any object per list. They are built by
+ * a {@link Builder} and can not be changed; they can be read concurrently.
+ * They are stored in binary files as they are in memory, by
+ * {@link #write(BinaryFileWriter)}, so lists read from a file are served from
+ * the mapped file.
+ */
+public class ArcActionLists {
+
+	/**
+	 * The number of actions between two skips.
+	 */
+	public static final int SKIP_QUANTUM = 64;
+
+	private static final int SKIP_SIZE = 8;
+
+	private final CSRGraph graph;
+
+	/**
+	 * The list of arc <em>i</em> is in
+	 * {@link #bytes}[offsets[i] .. offsets[i+1]-1]; it is empty if there are
+	 * no bytes. Both are either arrays or views of a mapped file, and are
+	 * only read with absolute gets.
+	 */
+	private final IntBuffer offsets;
+
+	private final ByteBuffer bytes;
+
+	private final int cardinality;
+
+	private final long sizeActions;
+
+	private ArcActionLists(CSRGraph graph, IntBuffer offsets, ByteBuffer bytes,
+			int cardinality, long sizeActions) {
+		this.graph = graph;
+		this.offsets = offsets;
+		this.bytes = bytes;
+		this.cardinality = cardinality;
+		this.sizeActions = sizeActions;
+	}
+
+	public CSRGraph getGraph() {
+		return graph;
+	}
+
+	/**
+	 * @return the number of arcs with a non-empty list
+	 */
+	public int cardinality() {
+		return cardinality;
+	}
+
+	/**
+	 * @return the total number of actions, over all the arcs
+	 */
+	public long sizeActions() {
+		return sizeActions;
+	}
+
+	/**
+	 * @return the number of bytes of the compressed lists
+	 */
+	public long sizeBytes() {
+		return bytes.capacity() + 4L * offsets.capacity();
+	}
+
+	/**
+	 * @return the number of actions of an arc
+	 */
+	public int size(int arcId) {
+		int position = offsets.get(arcId);
+		if (position == offsets.get(arcId + 1)) {
+			return 0;
+		}
+		return readVarInt(bytes, position);
+	}
+
+	/**
+	 * Gets the number of actions of an arc.
+	 *
+	 * @param leaderId
+	 *            the leader
+	 * @param followerId
+	 *            the follower
+	 * @return the number of actions, or zero if the arc is not in the graph
+	 */
+	public int getListSize(int leaderId, int followerId) {
+		int arcId = graph.getArcId(leaderId, followerId);
+		return arcId == -1 ? 0 : size(arcId);
+	}
+
+	/**
+	 * Checks whether the list of an arc contains an action, decoding at most
+	 * {@link #SKIP_QUANTUM} actions.
+	 */
+	public boolean contains(int arcId, int action) {
+		Cursor cursor = new Cursor();
+		cursor.reset(arcId);
+		return cursor.skipTo(action) == action;
+	}
+
+	/**
+	 * @return a new cursor, to be {@link Cursor#reset(int)} to an arc
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * @return the actions of an arc, decoded into a new array
+	 */
+	public int[] toIntArray(int arcId) {
+		Cursor cursor = new Cursor();
+		cursor.reset(arcId);
+		int[] actions = new int[cursor.remaining];
+		for (int i = 0; i < actions.length; i++) {
+			actions[i] = cursor.nextInt();
+		}
+		return actions;
+	}
+
+	/**
+	 * Writes the lists as they are in memory, to be read by
+	 * {@link #read(MappedFileReader, CSRGraph, int[])}.
+	 */
+	public void write(BinaryFileWriter out) throws IOException {
+		int nArcs = offsets.capacity() - 1;
+		out.writeInt(nArcs);
+		out.writeInt(cardinality);
+		out.writeLong(sizeActions);
+		out.writeInts(offsets);
+		out.writeBytes(bytes);
+		out.align(4);
+	}
+
+	/**
+	 * Reads lists written by {@link #write(BinaryFileWriter)}. If the arcs of
+	 * the file are those of the graph, the lists are mapped and used as they
+	 * are; otherwise they are coded again for the arc ids of the graph.
+	 *
+	 * @param in
+	 *            the file, positioned at the lists
+	 * @param graph
+	 *            the graph defining the arc ids of the lists returned
+	 * @param arcIds
+	 *            the arc id in the graph of every arc of the file, -1 if it is
+	 *            not in the graph; null if the arcs of the file are those of
+	 *            the graph
+	 * @throws IllegalArgumentException
+	 *             if an arc with actions is not in the graph
+	 */
+	public static ArcActionLists read(MappedFileReader in, CSRGraph graph,
+			int[] arcIds) throws IOException {
+		int nArcs = in.readInt();
+		int cardinality = in.readInt();
+		long sizeActions = in.readLong();
+		IntBuffer offsets = in.viewInts(nArcs + 1);
+		ByteBuffer bytes = in.mapBytes(offsets.get(nArcs));
+		in.align(4);
+		if (arcIds == null) {
+			if (nArcs != graph.sizeArcs()) {
+				throw new IllegalArgumentException("The lists have " + nArcs
+						+ " arcs, but the graph has " + graph.sizeArcs());
+			}
+			return new ArcActionLists(graph, offsets, bytes, cardinality,
+					sizeActions);
+		}
+
+		ArcActionLists lists = new ArcActionLists(null, offsets, bytes,
+				cardinality, sizeActions);
+		Builder builder = new Builder(graph);
+		Cursor cursor = lists.cursor();
+		for (int i = 0; i < nArcs; i++) {
+			cursor.reset(i);
+			if (cursor.size() > 0 && arcIds[i] == -1) {
+				throw new IllegalArgumentException("Arc " + i
+						+ " of the file has actions, but is not in the graph");
+			}
+			while (cursor.hasNext()) {
+				builder.count(arcIds[i], cursor.nextInt());
+			}
+		}
+		for (int i = 0; i < nArcs; i++) {
+			for (cursor.reset(i); cursor.hasNext();) {
+				builder.add(arcIds[i], cursor.nextInt());
+			}
+		}
+		return builder.build();
+	}
+
+	private static int readVarInt(ByteBuffer bytes, int position) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = bytes.get(position++);
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	private static int varIntLength(int value) {
+		int length = 1;
+		while ((value >>>= 7) != 0) {
+			length++;
+		}
+		return length;
+	}
+
+	private static int writeVarInt(byte[] bytes, int position, int value) {
+		while ((value & ~0x7F) != 0) {
+			bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[position++] = (byte) value;
+		return position;
+	}
+
+	private static int readFixedInt(ByteBuffer bytes, int position) {
+		return bytes.getInt(position);
+	}
+
+	private static void writeFixedInt(byte[] bytes, int position, int value) {
+		bytes[position] = (byte) (value >>> 24);
+		bytes[position + 1] = (byte) (value >>> 16);
+		bytes[position + 2] = (byte) (value >>> 8);
+		bytes[position + 3] = (byte) value;
+	}
+
+	/**
+	 * Decodes the list of an arc, from the smallest action to the largest.
+	 * A cursor can be reset to any arc, and is meant to be reused; it must
+	 * not be shared between threads.
+	 */
+	public final class Cursor {
+
+		/**
+		 * The position of the next action.
+		 */
+		private int position;
+
+		/**
+		 * The number of actions not decoded yet.
+		 */
+		private int remaining;
+
+		private int size;
+
+		/**
+		 * The last action decoded, or -1.
+		 */
+		private int last;
+
+		private int skipsStart;
+
+		private int nSkips;
+
+		private Cursor() {
+		}
+
+		/**
+		 * Moves to the first action of an arc.
+		 *
+		 * @return this cursor
+		 */
+		public Cursor reset(int arcId) {
+			position = offsets.get(arcId);
+			last = -1;
+			if (position == offsets.get(arcId + 1)) {
+				size = remaining = nSkips = 0;
+				return this;
+			}
+			size = remaining = readVarInt(bytes, position);
+			position += varIntLength(size);
+			nSkips = (size - 1) / SKIP_QUANTUM;
+			skipsStart = position;
+			position += nSkips * SKIP_SIZE;
+			return this;
+		}
+
+		/**
+		 * @return the number of actions of the arc
+		 */
+		public int size() {
+			return size;
+		}
+
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		/**
+		 * @return the next action
+		 */
+		public int nextInt() {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = bytes.get(position++);
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			remaining--;
+			last = (last == -1) ? value : last + value + 1;
+			return last;
+		}
+
+		/**
+		 * Moves to the first action that is not smaller than a given one,
+		 * jumping over whole blocks of {@link ArcActionLists#SKIP_QUANTUM}
+		 * actions when possible.
+		 *
+		 * @return the first action not smaller than the given one, which is
+		 *         then the last action decoded (it may have been decoded
+		 *         already), or -1 if there is none
+		 */
+		public int skipTo(int action) {
+			if (last >= action) {
+				return last;
+			}
+			// The last skip before the action, after the current position
+			int decoded = size - remaining;
+			int low = decoded / SKIP_QUANTUM;
+			int high = nSkips - 1;
+			int best = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (readFixedInt(bytes, skipsStart + mid * SKIP_SIZE) <= action) {
+					best = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			if (best != -1) {
+				int skip = skipsStart + best * SKIP_SIZE;
+				last = readFixedInt(bytes, skip);
+				position = readFixedInt(bytes, skip + 4);
+				remaining = size - (best + 1) * SKIP_QUANTUM - 1;
+				if (last == action) {
+					return last;
+				}
+			}
+			while (remaining > 0) {
+				if (nextInt() >= action) {
+					return last;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Builds lists from (arc, action) pairs, given twice: first all of them
+	 * to {@link #count(int, int)}, so the exact size of the array is known,
+	 * then again in the same order to {@link #add(int, int)}. The pairs of
+	 * different arcs can be interleaved, but the actions of every arc must be
+	 * given in increasing order.
+	 */
+	public static class Builder {
+
+		private final CSRGraph graph;
+
+		private int[] sizes;
+
+		/**
+		 * Before adding, the number of bytes of the actions of every arc;
+		 * then, the position of its next action.
+		 */
+		private int[] positions;
+
+		/**
+		 * The last action of every arc, or -1.
+		 */
+		private int[] last;
+
+		/**
+		 * The number of actions added to every arc.
+		 */
+		private int[] added;
+
+		private int[] offsets;
+
+		private byte[] bytes;
+
+		public Builder(CSRGraph graph) {
+			this.graph = graph;
+			int nArcs = graph.sizeArcs();
+			sizes = new int[nArcs];
+			positions = new int[nArcs];
+			last = new int[nArcs];
+			Arrays.fill(last, -1);
+		}
+
+		private int gap(int arcId, int action) {
+			if (action < 0) {
+				throw new IllegalArgumentException("Invalid action " + action);
+			}
+			if (action <= last[arcId]) {
+				throw new IllegalArgumentException("The actions of arc "
+						+ arcId + " are not increasing: " + action + " after "
+						+ last[arcId]);
+			}
+			return last[arcId] == -1 ? action : action - last[arcId] - 1;
+		}
+
+		/**
+		 * Counts a pair, in the first pass.
+		 */
+		public void count(int arcId, int action) {
+			if (bytes != null) {
+				throw new IllegalStateException(
+						"Can not count pairs after adding them");
+			}
+			int length = varIntLength(gap(arcId, action));
+			if (positions[arcId] > Integer.MAX_VALUE - length) {
+				throw new IllegalStateException("Too many actions for arc "
+						+ arcId);
+			}
+			positions[arcId] += length;
+			last[arcId] = action;
+			sizes[arcId]++;
+		}
+
+		private void allocate() {
+			int nArcs = sizes.length;
+			offsets = new int[nArcs + 1];
+			for (int arcId = 0; arcId < nArcs; arcId++) {
+				long length = 0;
+				if (sizes[arcId] > 0) {
+					length = varIntLength(sizes[arcId])
+							+ (long) ((sizes[arcId] - 1) / SKIP_QUANTUM)
+							* SKIP_SIZE + positions[arcId];
+				}
+				if (offsets[arcId] + length > Integer.MAX_VALUE) {
+					throw new IllegalStateException(
+							"Too many actions to compress in a single array");
+				}
+				offsets[arcId + 1] = (int) (offsets[arcId] + length);
+			}
+			bytes = new byte[offsets[nArcs]];
+			added = new int[nArcs];
+			for (int arcId = 0; arcId < nArcs; arcId++) {
+				if (sizes[arcId] > 0) {
+					int position = writeVarInt(bytes, offsets[arcId],
+							sizes[arcId]);
+					positions[arcId] = position + (sizes[arcId] - 1)
+							/ SKIP_QUANTUM * SKIP_SIZE;
+				}
+			}
+			Arrays.fill(last, -1);
+		}
+
+		/**
+		 * Adds a pair, in the second pass.
+		 */
+		public void add(int arcId, int action) {
+			if (bytes == null) {
+				allocate();
+			}
+			if (added[arcId] == sizes[arcId]) {
+				throw new IllegalStateException("More actions added than counted for arc " + arcId);
+			}
+			int gap = gap(arcId, action);
+			positions[arcId] = writeVarInt(bytes, positions[arcId], gap);
+			last[arcId] = action;
+			added[arcId]++;
+			if (added[arcId] % SKIP_QUANTUM == 1 && added[arcId] > 1) {
+				int skip = offsets[arcId] + varIntLength(sizes[arcId])
+						+ (added[arcId] / SKIP_QUANTUM - 1) * SKIP_SIZE;
+				writeFixedInt(bytes, skip, action);
+				writeFixedInt(bytes, skip + 4, positions[arcId]);
+			}
+		}
+
+		/**
+		 * @return the lists; the builder can not be used any more
+		 */
+		public ArcActionLists build() {
+			if (bytes == null) {
+				allocate();
+			}
+			int cardinality = 0;
+			long sizeActions = 0;
+			for (int arcId = 0; arcId < sizes.length; arcId++) {
+				if (added[arcId] != sizes[arcId]) {
+					throw new IllegalStateException("Fewer actions added than counted for arc " + arcId);
+				}
+				if (sizes[arcId] > 0) {
+					cardinality++;
+					sizeActions += sizes[arcId];
+				}
+			}
+			ArcActionLists lists = new ArcActionLists(graph,
+					IntBuffer.wrap(offsets), ByteBuffer.wrap(bytes), cardinality,
+					sizeActions);
+			sizes = positions = last = added = offsets = null;
+			bytes = null;
+			return lists;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package edu.toronto.cs.propagation.util;
+
+import java.util.Arrays;
+
+/**
+ * Influence probabilities of the arcs of a social network, stored in an array
+ * indexed by the arc ids of a {@link CSRGraph}.
+ * <p>
+ * Arcs that are not in the graph have probability zero, and can not be set to
+ * any other value. Unlike a square matrix, the size of this store depends only
+ * on the number of arcs, not on the number of nodes.
+ */
+public class ArcProbabilities {
+
+	private final CSRGraph graph;
+
+	private final double[] probs;
+
+	/**
+	 * Creates a store in which all arcs have probability zero.
+	 *
+	 * @param graph
+	 *            the graph defining the arc ids
+	 */
+	public ArcProbabilities(CSRGraph graph) {
+		this.graph = graph;
+		this.probs = new double[graph.sizeArcs()];
+	}
+
+	/**
+	 * Creates a copy of another store.
+	 *
+	 * @param other
+	 *            the store to copy
+	 */
+	public ArcProbabilities(ArcProbabilities other) {
+		this.graph = other.graph;
+		this.probs = other.probs.clone();
+	}
+
+	public CSRGraph getGraph() {
+		return graph;
+	}
+
+	/**
+	 * @return the number of arcs, including those with probability zero
+	 */
+	public int size() {
+		return probs.length;
+	}
+
+	public double get(int arcId) {
+		return probs[arcId];
+	}
+
+	public void set(int arcId, double probability) {
+		probs[arcId] = probability;
+	}
+
+	/**
+	 * Gets the probability of an arc.
+	 *
+	 * @param leaderId
+	 *            the leader
+	 * @param followerId
+	 *            the follower
+	 * @return the probability, or zero if the arc is not in the graph
+	 */
+	public double getQuick(int leaderId, int followerId) {
+		int arcId = graph.getArcId(leaderId, followerId);
+		return arcId == -1 ? 0.0 : probs[arcId];
+	}
+
+	/**
+	 * Sets the probability of an arc.
+	 *
+	 * @param leaderId
+	 *            the leader
+	 * @param followerId
+	 *            the follower
+	 * @param probability
+	 *            the probability
+	 * @throws IllegalArgumentException
+	 *             if the arc is not in the graph and the probability is not
+	 *             zero
+	 */
+	public void setQuick(int leaderId, int followerId, double probability) {
+		int arcId = graph.getArcId(leaderId, followerId);
+		if (arcId == -1) {
+			if (probability != 0.0) {
+				throw new IllegalArgumentException("The arc (" + leaderId + ","
+						+ followerId + ") is not in the social network");
+			}
+		} else {
+			probs[arcId] = probability;
+		}
+	}
+
+	/**
+	 * @return the number of arcs with non-zero probability
+	 */
+	public int cardinality() {
+		int cardinality = 0;
+		for (double p : probs) {
+			if (p != 0.0) {
+				cardinality++;
+			}
+		}
+		return cardinality;
+	}
+
+	/**
+	 * Copies the probabilities of another store over the same graph.
+	 *
+	 * @param other
+	 *            the store to copy from
+	 */
+	public void assign(ArcProbabilities other) {
+		if (other.graph != graph) {
+			throw new IllegalArgumentException(
+					"Can not assign probabilities defined over a different graph");
+		}
+		System.arraycopy(other.probs, 0, probs, 0, probs.length);
+	}
+
+	public void setToZero() {
+		Arrays.fill(probs, 0.0);
+	}
+}
@@ -13,8 +13,8 @@ public class ArcWithTimestamp extends Arc {
 	
 	long timestamp;
 	
-	public ArcWithTimestamp(int leader, int follower, long timestamp) {
-		super(leader, follower);
+	public ArcWithTimestamp(NodeDictionary dictionary, int leader, int follower, long timestamp) {
+		super(dictionary, leader, follower);
 		this.timestamp = timestamp;
 	}
 	
@@ -23,12 +23,12 @@ public class ArcWithTimestamp extends Arc {
 		this.timestamp = timestamp;
 	}
 	
-	public ArcWithTimestamp(String[] tokens) {
-		this( tokens[0].length() > 0 ? new Node(tokens[0]) : null, tokens[1].length() > 0 ? new Node(tokens[1]) : null, Long.parseLong(tokens[2]));
+	public ArcWithTimestamp(NodeDictionary dictionary, String[] tokens) {
+		this( tokens[0].length() > 0 ? new Node(dictionary, tokens[0]) : null, tokens[1].length() > 0 ? new Node(dictionary, tokens[1]) : null, Long.parseLong(tokens[2]));
 	}
 
-	public ArcWithTimestamp(String str) {
-		this( StringUtils.splitPreserveAllTokens(str, '\t') );
+	public ArcWithTimestamp(NodeDictionary dictionary, String str) {
+		this( dictionary, StringUtils.splitPreserveAllTokens(str, '\t') );
 	}
 
 	@Override
@@ -55,6 +55,6 @@ public class ArcWithTimestamp extends Arc {
 	}
 
 	public Arc toArc() {
-		return new Arc( leader, follower );
+		return new Arc( dictionary, leader, follower );
 	}
 }
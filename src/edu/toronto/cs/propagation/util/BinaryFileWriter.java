@@ -0,0 +1,188 @@
+package edu.toronto.cs.propagation.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a binary file of big-endian primitives and primitive arrays, to be
+ * read by {@link MappedFileReader}.
+ * <p>
+ * Arrays are not prefixed by their length; the format must store lengths (or
+ * offset tables from which they can be computed) before the arrays.
+ */
+public class BinaryFileWriter implements Closeable {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileOutputStream out;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer;
+
+	private long position;
+
+	public BinaryFileWriter(File file) throws IOException {
+		out = new FileOutputStream(file);
+		channel = out.getChannel();
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		position = 0;
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public long position() {
+		return position;
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Writes the header of a file, checked by
+	 * {@link MappedFileReader#readHeader(int, int)}.
+	 *
+	 * @param magic
+	 *            a number identifying the type of file
+	 * @param version
+	 *            the version of the format
+	 */
+	public void writeHeader(int magic, int version) throws IOException {
+		writeInt(magic);
+		writeInt(version);
+	}
+
+	public void writeInt(int value) throws IOException {
+		ensure(4);
+		buffer.putInt(value);
+		position += 4;
+	}
+
+	public void writeLong(long value) throws IOException {
+		ensure(8);
+		buffer.putLong(value);
+		position += 8;
+	}
+
+	public void writeDouble(double value) throws IOException {
+		ensure(8);
+		buffer.putDouble(value);
+		position += 8;
+	}
+
+	/**
+	 * Writes a string as its length in bytes followed by its UTF-8 encoding.
+	 * A null string is written as length -1.
+	 */
+	public void writeString(String value) throws IOException {
+		if (value == null) {
+			writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		writeInt(bytes.length);
+		writeBytes(bytes, 0, bytes.length);
+	}
+
+	public void writeBytes(byte[] values, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			ensure(1);
+			int n = Math.min(length, buffer.remaining());
+			buffer.put(values, offset, n);
+			offset += n;
+			length -= n;
+			position += n;
+		}
+	}
+
+	/**
+	 * Writes the bytes of a buffer, from its position to its limit, without
+	 * moving its position.
+	 */
+	public void writeBytes(ByteBuffer values) throws IOException {
+		ByteBuffer source = values.duplicate();
+		while (source.hasRemaining()) {
+			ensure(1);
+			int n = Math.min(source.remaining(), buffer.remaining());
+			ByteBuffer slice = source.slice();
+			slice.limit(n);
+			buffer.put(slice);
+			source.position(source.position() + n);
+			position += n;
+		}
+	}
+
+	public void writeInts(int[] values) throws IOException {
+		writeInts(values, 0, values.length);
+	}
+
+	public void writeInts(int[] values, int offset, int length)
+			throws IOException {
+		for (int i = offset; i < offset + length; i++) {
+			writeInt(values[i]);
+		}
+	}
+
+	/**
+	 * Writes the ints of a buffer, from its position to its limit, without
+	 * moving its position.
+	 */
+	public void writeInts(IntBuffer values) throws IOException {
+		for (int i = values.position(); i < values.limit(); i++) {
+			writeInt(values.get(i));
+		}
+	}
+
+	public void writeLongs(long[] values) throws IOException {
+		for (long value : values) {
+			writeLong(value);
+		}
+	}
+
+	public void writeDoubles(double[] values) throws IOException {
+		for (double value : values) {
+			writeDouble(value);
+		}
+	}
+
+	/**
+	 * Writes zeros until the position is a multiple of a number of bytes, so
+	 * the next array can be mapped aligned.
+	 */
+	public void align(int bytes) throws IOException {
+		while (position % bytes != 0) {
+			ensure(1);
+			buffer.put((byte) 0);
+			position++;
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+}
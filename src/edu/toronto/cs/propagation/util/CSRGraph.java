@@ -0,0 +1,306 @@
+package edu.toronto.cs.propagation.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable directed graph in compressed sparse row (CSR) format, indexed by
+ * node id.
+ * <p>
+ * Every arc is stored twice: grouped by leader (the followers of each node)
+ * and grouped by follower (the leaders of each node). Within each group the
+ * neighbors are sorted by increasing node id.
+ * <p>
+ * Arcs are numbered densely, from 0 to {@link #sizeArcs()}-1, in the order in
+ * which they appear in the leader-grouped arrays. For the follower-grouped
+ * arrays, {@link #getLeaderArcIds()} gives the arc id of each position.
+ * <p>
+ * The arrays returned by the getters are shared and must not be modified.
+ * <p>
+ * An arc id can be resolved from its (leader, follower) pair in constant
+ * expected time through {@link #getArcId(int, int)}, which uses an
+ * open-addressing hash table of primitive keys.
+ */
+public class CSRGraph {
+
+	/**
+	 * For node <em>u</em>, its followers are in
+	 * {@link #followerIds}[followerOffsets[u] .. followerOffsets[u+1]-1].
+	 */
+	private final int[] followerOffsets;
+
+	private final int[] followerIds;
+
+	/**
+	 * The leader of every arc, indexed by arc id.
+	 */
+	private final int[] arcLeaderIds;
+
+	/**
+	 * For node <em>v</em>, its leaders are in
+	 * {@link #leaderIds}[leaderOffsets[v] .. leaderOffsets[v+1]-1].
+	 */
+	private final int[] leaderOffsets;
+
+	private final int[] leaderIds;
+
+	/**
+	 * For every position in {@link #leaderIds}, the id of the corresponding
+	 * arc.
+	 */
+	private final int[] leaderArcIds;
+
+	/**
+	 * Hash table from (leader,follower) keys to arc ids, with linear probing;
+	 * empty slots have key -1.
+	 */
+	private final long[] arcKeys;
+
+	private final int[] arcKeyIds;
+
+	private final int arcKeyMask;
+
+	/**
+	 * Creates a graph from a collection of distinct arcs.
+	 *
+	 * @param arcs
+	 *            the arcs, must not contain duplicates
+	 */
+	public CSRGraph(Collection<? extends Arc> arcs) {
+		this(leaderIdsOf(arcs), followerIdsOf(arcs), arcs.size());
+	}
+
+	private static int[] leaderIdsOf(Collection<? extends Arc> arcs) {
+		int[] ids = new int[arcs.size()];
+		int i = 0;
+		for (Arc arc : arcs) {
+			ids[i++] = arc.getLeaderId();
+		}
+		return ids;
+	}
+
+	private static int[] followerIdsOf(Collection<? extends Arc> arcs) {
+		int[] ids = new int[arcs.size()];
+		int i = 0;
+		for (Arc arc : arcs) {
+			ids[i++] = arc.getFollowerId();
+		}
+		return ids;
+	}
+
+	/**
+	 * Creates a graph from the leaders and followers of distinct arcs, in any
+	 * order.
+	 *
+	 * @param arcLeaders
+	 *            the leader of every arc
+	 * @param arcFollowers
+	 *            the follower of every arc
+	 * @param nArcs
+	 *            the number of arcs, which may be smaller than the arrays
+	 */
+	public CSRGraph(int[] arcLeaders, int[] arcFollowers, int nArcs) {
+		int maxNodeId = 0;
+		for (int i = 0; i < nArcs; i++) {
+			maxNodeId = Utilities.max(maxNodeId,
+					Utilities.max(arcLeaders[i], arcFollowers[i]));
+		}
+
+		// Bucket by follower, then (stable) by leader: rows sorted by follower
+		int[] byFollower = new int[nArcs];
+		leaderOffsets = countingSort(arcFollowers, identity(nArcs),
+				maxNodeId, byFollower);
+		int[] byLeader = new int[nArcs];
+		followerOffsets = countingSort(arcLeaders, byFollower, maxNodeId,
+				byLeader);
+
+		// byLeader[arcId] is the input position of the arc with that id
+		followerIds = new int[nArcs];
+		arcLeaderIds = new int[nArcs];
+		for (int arcId = 0; arcId < nArcs; arcId++) {
+			followerIds[arcId] = arcFollowers[byLeader[arcId]];
+			arcLeaderIds[arcId] = arcLeaders[byLeader[arcId]];
+		}
+
+		// Bucket arc ids (already in leader order) by follower: leaders sorted
+		leaderArcIds = new int[nArcs];
+		countingSort(followerIds, identity(nArcs), maxNodeId, leaderArcIds);
+		leaderIds = new int[nArcs];
+		for (int pos = 0; pos < nArcs; pos++) {
+			leaderIds[pos] = arcLeaderIds[leaderArcIds[pos]];
+		}
+
+		// Hash table, at most half full
+		int capacity = 2;
+		while (capacity < 2 * nArcs) {
+			capacity <<= 1;
+		}
+		arcKeyMask = capacity - 1;
+		arcKeys = new long[capacity];
+		Arrays.fill(arcKeys, -1L);
+		arcKeyIds = new int[capacity];
+		for (int arcId = 0; arcId < nArcs; arcId++) {
+			long key = arcKey(arcLeaderIds[arcId], followerIds[arcId]);
+			int slot = slot(key);
+			while (arcKeys[slot] != -1L) {
+				slot = (slot + 1) & arcKeyMask;
+			}
+			arcKeys[slot] = key;
+			arcKeyIds[slot] = arcId;
+		}
+	}
+
+	private static long arcKey(int leaderId, int followerId) {
+		return ((long) leaderId << 32) | (followerId & 0xFFFFFFFFL);
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & arcKeyMask;
+	}
+
+	/**
+	 * Gets the id of an arc.
+	 * 
+	 * @param leaderId
+	 *            the leader
+	 * @param followerId
+	 *            the follower
+	 * @return the id of the arc, or -1 if the arc is not in the graph
+	 */
+	public int getArcId(int leaderId, int followerId) {
+		if (leaderId < 0 || followerId < 0) {
+			return -1;
+		}
+		long key = arcKey(leaderId, followerId);
+		int slot = slot(key);
+		while (arcKeys[slot] != -1L) {
+			if (arcKeys[slot] == key) {
+				return arcKeyIds[slot];
+			}
+			slot = (slot + 1) & arcKeyMask;
+		}
+		return -1;
+	}
+
+	private static int[] identity(int n) {
+		int[] result = new int[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = i;
+		}
+		return result;
+	}
+
+	/**
+	 * Stable counting sort of a permutation by key.
+	 *
+	 * @param keys
+	 *            the key of every element
+	 * @param order
+	 *            the elements, in their current order
+	 * @param maxKey
+	 *            the largest key
+	 * @param sorted
+	 *            output: the elements, sorted by key
+	 * @return the offsets of every key in the output, of length maxKey+2
+	 */
+	private static int[] countingSort(int[] keys, int[] order, int maxKey,
+			int[] sorted) {
+		int[] offsets = new int[maxKey + 2];
+		for (int element : order) {
+			offsets[keys[element] + 1]++;
+		}
+		for (int key = 0; key <= maxKey; key++) {
+			offsets[key + 1] += offsets[key];
+		}
+		int[] next = offsets.clone();
+		for (int element : order) {
+			sorted[next[keys[element]]++] = element;
+		}
+		return offsets;
+	}
+
+	public int sizeArcs() {
+		return followerIds.length;
+	}
+
+	/**
+	 * @return the largest node id that can have arcs in this graph
+	 */
+	public int getMaxNodeId() {
+		return followerOffsets.length - 2;
+	}
+
+	/**
+	 * Gets the first position of the followers of a node in
+	 * {@link #getFollowerIds()}. Also the id of its first outgoing arc.
+	 */
+	public int getFollowersBegin(int nodeId) {
+		return (nodeId >= 0 && nodeId < followerOffsets.length - 1) ? followerOffsets[nodeId]
+				: 0;
+	}
+
+	/**
+	 * Gets the position after the last follower of a node in
+	 * {@link #getFollowerIds()}.
+	 */
+	public int getFollowersEnd(int nodeId) {
+		return (nodeId >= 0 && nodeId < followerOffsets.length - 1) ? followerOffsets[nodeId + 1]
+				: 0;
+	}
+
+	/**
+	 * Gets the followers of all nodes, indexed by arc id.
+	 */
+	public int[] getFollowerIds() {
+		return followerIds;
+	}
+
+	/**
+	 * Gets the first position of the leaders of a node in
+	 * {@link #getLeaderIds()}.
+	 */
+	public int getLeadersBegin(int nodeId) {
+		return (nodeId >= 0 && nodeId < leaderOffsets.length - 1) ? leaderOffsets[nodeId]
+				: 0;
+	}
+
+	/**
+	 * Gets the position after the last leader of a node in
+	 * {@link #getLeaderIds()}.
+	 */
+	public int getLeadersEnd(int nodeId) {
+		return (nodeId >= 0 && nodeId < leaderOffsets.length - 1) ? leaderOffsets[nodeId + 1]
+				: 0;
+	}
+
+	/**
+	 * Gets the leaders of all nodes, grouped by follower.
+	 */
+	public int[] getLeaderIds() {
+		return leaderIds;
+	}
+
+	/**
+	 * Gets the arc id of every position in {@link #getLeaderIds()}.
+	 */
+	public int[] getLeaderArcIds() {
+		return leaderArcIds;
+	}
+
+	public int getArcLeaderId(int arcId) {
+		return arcLeaderIds[arcId];
+	}
+
+	public int getArcFollowerId(int arcId) {
+		return followerIds[arcId];
+	}
+
+	public int outDegree(int nodeId) {
+		return getFollowersEnd(nodeId) - getFollowersBegin(nodeId);
+	}
+
+	public int inDegree(int nodeId) {
+		return getLeadersEnd(nodeId) - getLeadersBegin(nodeId);
+	}
+}
@@ -26,6 +26,27 @@ public class Int2ArrayOfIntMap {
 		}
 	}
 	
+	/**
+	 * Creates a map from its keys and their arrays, which are not copied.
+	 *
+	 * @param keys
+	 *            the keys, without duplicates
+	 * @param values
+	 *            the array of every key
+	 */
+	public Int2ArrayOfIntMap(int[] keys, int[][] values) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException(
+					"The number of keys and of values differ");
+		}
+		key2pos = new Int2IntOpenHashMap(keys.length);
+		key2pos.defaultReturnValue(-1); // to catch errors
+		for (int pos = 0; pos < keys.length; pos++) {
+			key2pos.put(keys[pos], pos);
+		}
+		data = values;
+	}
+	
 	public int[] get(int key) {
 		return key2pos.get(key) >= 0 ? data[key2pos.get(key)] : null;
 	}
@@ -0,0 +1,296 @@
+package edu.toronto.cs.propagation.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a binary file written by {@link BinaryFileWriter}, through memory
+ * mapping.
+ * <p>
+ * Scalars are read from a mapped window that moves along the file. Arrays are
+ * mapped on their own, and either copied in bulk into a Java array or
+ * returned as a read-only view of the file, so no value is parsed. Files
+ * larger than 2GB are supported, but a single view can not be. Views stay
+ * valid after the reader is closed.
+ */
+public class MappedFileReader implements Closeable {
+
+	private static final int WINDOW_SIZE = 1 << 20;
+
+	/**
+	 * Arrays larger than this are copied in several mappings.
+	 */
+	private static final long MAX_MAPPING = 1L << 30;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	private final long size;
+
+	private MappedByteBuffer window;
+
+	private long windowStart;
+
+	private long position;
+
+	public MappedFileReader(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		this.size = channel.size();
+		this.window = null;
+		this.windowStart = 0;
+		this.position = 0;
+	}
+
+	/**
+	 * @return the position of the next value, in bytes
+	 */
+	public long position() {
+		return position;
+	}
+
+	/**
+	 * Moves to a position, for formats with tables at known offsets.
+	 *
+	 * @param position
+	 *            the position of the next value, in bytes
+	 */
+	public void seek(long position) throws IOException {
+		if (position < 0 || position > size) {
+			throw new IOException("Invalid position " + position
+					+ " (file has " + size + " bytes)");
+		}
+		this.position = position;
+	}
+
+	/**
+	 * @return the size of the file, in bytes
+	 */
+	public long size() {
+		return size;
+	}
+
+	private MappedByteBuffer map(long start, long length) throws IOException {
+		if (start + length > size) {
+			throw new IOException("Unexpected end of file at byte " + start
+					+ " (file has " + size + " bytes)");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+	}
+
+	/**
+	 * Gets a buffer positioned at the current position with at least a
+	 * number of bytes remaining, and advances the position.
+	 */
+	private ByteBuffer scalar(int bytes) throws IOException {
+		if (window == null || position < windowStart
+				|| position + bytes > windowStart + window.limit()) {
+			windowStart = position;
+			window = map(windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+		}
+		window.position((int) (position - windowStart));
+		position += bytes;
+		return window;
+	}
+
+	public int readInt() throws IOException {
+		return scalar(4).getInt();
+	}
+
+	public long readLong() throws IOException {
+		return scalar(8).getLong();
+	}
+
+	public double readDouble() throws IOException {
+		return scalar(8).getDouble();
+	}
+
+	/**
+	 * Reads a string written by {@link BinaryFileWriter#writeString(String)}.
+	 */
+	public String readString() throws IOException {
+		int length = readInt();
+		if (length == -1) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		readBytes(bytes);
+		return new String(bytes, BinaryFileWriter.UTF8);
+	}
+
+	public void readBytes(byte[] values) throws IOException {
+		if (values.length <= WINDOW_SIZE) {
+			// Short arrays, such as strings, are read from the window rather
+			// than mapped on their own
+			scalar(values.length).get(values);
+			return;
+		}
+		int done = 0;
+		while (done < values.length) {
+			int n = (int) Math.min(values.length - done, MAX_MAPPING);
+			map(position, n).get(values, done, n);
+			position += n;
+			done += n;
+		}
+	}
+
+	public int[] readInts(int length) throws IOException {
+		int[] values = new int[length];
+		int done = 0;
+		while (done < length) {
+			int n = (int) Math.min(length - done, MAX_MAPPING / 4);
+			map(position, 4L * n).asIntBuffer().get(values, done, n);
+			position += 4L * n;
+			done += n;
+		}
+		return values;
+	}
+
+	public long[] readLongs(int length) throws IOException {
+		long[] values = new long[length];
+		int done = 0;
+		while (done < length) {
+			int n = (int) Math.min(length - done, MAX_MAPPING / 8);
+			map(position, 8L * n).asLongBuffer().get(values, done, n);
+			position += 8L * n;
+			done += n;
+		}
+		return values;
+	}
+
+	public double[] readDoubles(int length) throws IOException {
+		double[] values = new double[length];
+		int done = 0;
+		while (done < length) {
+			int n = (int) Math.min(length - done, MAX_MAPPING / 8);
+			map(position, 8L * n).asDoubleBuffer().get(values, done, n);
+			position += 8L * n;
+			done += n;
+		}
+		return values;
+	}
+
+	/**
+	 * Maps a number of bytes without copying them.
+	 *
+	 * @param length
+	 *            the number of bytes
+	 * @return a read-only view of the bytes
+	 */
+	public ByteBuffer mapBytes(long length) throws IOException {
+		checkViewSize(length);
+		ByteBuffer view = map(position, length);
+		position += length;
+		return view;
+	}
+
+	/**
+	 * Maps an array of ints without copying it.
+	 *
+	 * @param length
+	 *            the number of ints
+	 * @return a read-only view of the array
+	 */
+	public IntBuffer mapInts(int length) throws IOException {
+		checkViewSize(4L * length);
+		IntBuffer view = map(position, 4L * length).asIntBuffer();
+		position += 4L * length;
+		return view;
+	}
+
+	/**
+	 * Maps an array of ints without copying it if it fits in a single view,
+	 * or copies it otherwise.
+	 *
+	 * @param length
+	 *            the number of ints
+	 * @return a read-only view of the array, or a buffer wrapping a copy
+	 */
+	public IntBuffer viewInts(int length) throws IOException {
+		if (4L * length > Integer.MAX_VALUE) {
+			return IntBuffer.wrap(readInts(length));
+		}
+		return mapInts(length);
+	}
+
+	/**
+	 * Maps an array of longs without copying it.
+	 *
+	 * @param length
+	 *            the number of longs
+	 * @return a read-only view of the array
+	 */
+	public LongBuffer mapLongs(int length) throws IOException {
+		checkViewSize(8L * length);
+		LongBuffer view = map(position, 8L * length).asLongBuffer();
+		position += 8L * length;
+		return view;
+	}
+
+	/**
+	 * Maps an array of doubles without copying it.
+	 *
+	 * @param length
+	 *            the number of doubles
+	 * @return a read-only view of the array
+	 */
+	public DoubleBuffer mapDoubles(int length) throws IOException {
+		checkViewSize(8L * length);
+		DoubleBuffer view = map(position, 8L * length).asDoubleBuffer();
+		position += 8L * length;
+		return view;
+	}
+
+	private static void checkViewSize(long bytes) {
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					"Can not map more than 2GB in a single view");
+		}
+	}
+
+	/**
+	 * Skips the padding written by {@link BinaryFileWriter#align(int)}.
+	 */
+	public void align(int bytes) {
+		while (position % bytes != 0) {
+			position++;
+		}
+	}
+
+	/**
+	 * Reads and checks the header of a file.
+	 *
+	 * @param magic
+	 *            the expected magic number
+	 * @param maxVersion
+	 *            the last version of the format that can be read
+	 * @return the version of the format of the file
+	 * @throws IOException
+	 *             if the file has a different magic number or a newer version
+	 */
+	public int readHeader(int magic, int maxVersion) throws IOException {
+		if (size < 8 || readInt() != magic) {
+			throw new IOException("Not a file of the expected type (bad magic number)");
+		}
+		int version = readInt();
+		if (version < 1 || version > maxVersion) {
+			throw new IOException("Unsupported format version " + version
+					+ " (this program reads up to version " + maxVersion + ")");
+		}
+		return version;
+	}
+
+	public void close() throws IOException {
+		window = null;
+		file.close();
+	}
+}
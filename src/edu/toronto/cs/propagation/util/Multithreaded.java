@@ -0,0 +1,7 @@
+package edu.toronto.cs.propagation.util;
+
+public interface Multithreaded {
+	public final static int DEFAULT_NUMBER_OF_THREADS = Runtime.getRuntime().availableProcessors();
+
+	public void setNumberOfThreads(int numberOfThreads);
+}
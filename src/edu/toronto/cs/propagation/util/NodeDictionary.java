@@ -0,0 +1,196 @@
+package edu.toronto.cs.propagation.util;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * The mapping between node names and node ids of a dataset.
+ * <p>
+ * Ids are assigned densely, in the order in which names are first seen. Id
+ * {@link Node#getNullId()} is reserved for the null node, and the default start
+ * node ("omega") always gets id {@link Node#getDefaultStartNodeId()}.
+ * <p>
+ * A dictionary is filled while the inputs of a dataset are loaded, possibly
+ * by several threads at the same time: all methods are thread-safe. Once
+ * loading is done it should be {@link #freeze() frozen}; after that no new
+ * names can be added and lookups do not take any lock.
+ * <p>
+ * Every {@link Node} and {@link Arc} refers to the dictionary in which its
+ * ids are defined, so independent datasets can be processed in the same JVM.
+ */
+public class NodeDictionary {
+
+	public static final String DEFAULT_START_NODE_NAME = "omega";
+
+	/**
+	 * Guarded by this while the dictionary is not frozen.
+	 */
+	private final Object2IntOpenHashMap<String> name2id;
+
+	/**
+	 * The name of every id, id 0 has a null name. Guarded by this while the
+	 * dictionary is not frozen.
+	 */
+	private final ObjectArrayList<String> id2name;
+
+	private volatile boolean frozen;
+
+	public NodeDictionary() {
+		name2id = new Object2IntOpenHashMap<String>();
+		name2id.defaultReturnValue(-1);
+		id2name = new ObjectArrayList<String>();
+		id2name.add(null);
+		intern(DEFAULT_START_NODE_NAME);
+	}
+
+	/**
+	 * Gets the id of a node, assigning a new id if the name has not been seen.
+	 *
+	 * @param name
+	 *            the name of the node
+	 * @return the id of the node
+	 * @throws IllegalArgumentException
+	 *             if the name is empty or contains white spaces
+	 * @throws IllegalStateException
+	 *             if the name is new and the dictionary is frozen
+	 */
+	public int intern(String name) {
+		if (name == null || name.length() == 0) {
+			throw new IllegalArgumentException(
+					"The name of the node can not be null or an empty string");
+		}
+		if (frozen) {
+			int id = name2id.getInt(name);
+			if (id == -1) {
+				throw new IllegalStateException(
+						"The node dictionary is frozen, can not add node '"
+								+ name + "'");
+			}
+			return id;
+		}
+		if (Utilities.containsWhitespace(name)) {
+			throw new IllegalArgumentException(
+					"The name of the node can not contain white spaces");
+		}
+		synchronized (this) {
+			int id = name2id.getInt(name);
+			if (id != -1) {
+				return id;
+			}
+			if (frozen) {
+				throw new IllegalStateException(
+						"The node dictionary is frozen, can not add node '"
+								+ name + "'");
+			}
+			if (id2name.size() == Integer.MAX_VALUE) {
+				throw new IllegalStateException("Overflow in number of nodes");
+			}
+			id = id2name.size();
+			name2id.put(name, id);
+			id2name.add(name);
+			return id;
+		}
+	}
+
+	/**
+	 * Gets the id of a node, without adding it.
+	 *
+	 * @param name
+	 *            the name of the node
+	 * @return the id of the node, {@link Node#getNullId()} if the name is
+	 *         null, or -1 if the name has not been seen
+	 */
+	public int getId(String name) {
+		if (name == null) {
+			return Node.getNullId();
+		}
+		if (frozen) {
+			return name2id.getInt(name);
+		}
+		synchronized (this) {
+			return name2id.getInt(name);
+		}
+	}
+
+	/**
+	 * Gets the name of a node.
+	 *
+	 * @param id
+	 *            the id of the node
+	 * @return the name, or null for {@link Node#getNullId()}
+	 * @throws IllegalArgumentException
+	 *             if the id is unknown
+	 */
+	public String getName(int id) {
+		if (frozen) {
+			return name(id);
+		}
+		synchronized (this) {
+			return name(id);
+		}
+	}
+
+	private String name(int id) {
+		if (id < 0 || id >= id2name.size()) {
+			throw new IllegalArgumentException(
+					"Don't know the name of node with id=" + id);
+		}
+		return id2name.get(id);
+	}
+
+	public boolean containsId(int id) {
+		if (frozen) {
+			return id >= 0 && id < id2name.size();
+		}
+		synchronized (this) {
+			return id >= 0 && id < id2name.size();
+		}
+	}
+
+	/**
+	 * @return the largest id assigned so far
+	 */
+	public int getMaxId() {
+		if (frozen) {
+			return id2name.size() - 1;
+		}
+		synchronized (this) {
+			return id2name.size() - 1;
+		}
+	}
+
+	/**
+	 * Prevents new names from being added. Lookups on a frozen dictionary do
+	 * not synchronize.
+	 */
+	public synchronized void freeze() {
+		id2name.trim();
+		frozen = true;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	public Node getDefaultStartNode() {
+		return new Node(this, Node.getDefaultStartNodeId());
+	}
+
+	/**
+	 * This is the only function allowed to build a sparse matrix of lists;
+	 * this is because the dictionary is the only one that knows what is the
+	 * maximum nodeid.
+	 *
+	 * Do not create a {@link SparseIntArrayListMatrix2D} outside this
+	 * function. Probabilities are not stored in matrices, but in
+	 * {@link ArcProbabilities}.
+	 *
+	 * @return
+	 */
+	public SparseIntArrayListMatrix2D getSparseObjectMatrix() {
+		int n = getMaxId() + 1;
+		// Expect around 50 elements per node.
+		// Allow occupation to be between 5% and 80% (default is 25% and 50%).
+		return new SparseIntArrayListMatrix2D(n, n, n * 50, 0.05, 0.8);
+	}
+}
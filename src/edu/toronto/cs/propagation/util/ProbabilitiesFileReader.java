@@ -0,0 +1,184 @@
+package edu.toronto.cs.propagation.util;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads propagation probabilities written by {@link ProbabilitiesFileWriter},
+ * through memory mapping.
+ * <p>
+ * The names of the nodes used by the file are looked up in (or added to) a
+ * {@link NodeDictionary} once, and the ids of the records are translated to
+ * those of the dictionary as they are read; the records themselves are not
+ * copied. As a single view can not be larger than 2GB, the records are
+ * mapped in chunks of 2<sup>26</sup> records.
+ */
+public class ProbabilitiesFileReader implements Closeable {
+
+	private final MappedFileReader in;
+
+	/**
+	 * The id in the dictionary of every node id of the file, -1 for nodes
+	 * that are not in the dictionary; null if they are the same.
+	 */
+	private final int[] remap;
+
+	/**
+	 * The base 2 logarithm of the number of records in a chunk.
+	 */
+	private static final int CHUNK_SHIFT = 26;
+
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+	/**
+	 * The records, the <em>i</em>-th at position i &amp; CHUNK_MASK of chunk
+	 * i &gt;&gt;&gt; CHUNK_SHIFT.
+	 */
+	private final ByteBuffer[] chunks;
+
+	private final int size;
+
+	/**
+	 * Opens a file.
+	 *
+	 * @param file
+	 *            the file
+	 * @param dictionary
+	 *            the dictionary of the node ids to return
+	 * @param intern
+	 *            whether to add the nodes of the file that are not in the
+	 *            dictionary; otherwise their id is -1
+	 */
+	public ProbabilitiesFileReader(File file, NodeDictionary dictionary,
+			boolean intern) throws IOException {
+		in = new MappedFileReader(file);
+		try {
+			in.readHeader(ProbabilitiesFileWriter.MAGIC,
+					ProbabilitiesFileWriter.VERSION);
+			long recordsPosition = in.position();
+			if (in.size() < recordsPosition + 8) {
+				throw new IOException("Truncated probabilities file: " + file);
+			}
+			in.seek(in.size() - 8);
+			long namesPosition = in.readLong();
+			long bytes = namesPosition - recordsPosition;
+			if (bytes < ProbabilitiesFileWriter.RECORD_SIZE
+					|| bytes % ProbabilitiesFileWriter.RECORD_SIZE != 0
+					|| namesPosition > in.size() - 8) {
+				throw new IOException("Truncated probabilities file: " + file);
+			}
+
+			in.seek(namesPosition);
+			int nNodes = in.readInt();
+			int nNames = in.readInt();
+			int[] ids = new int[nNodes];
+			Arrays.fill(ids, -1);
+			boolean identity = true;
+			for (int i = 0; i < nNames; i++) {
+				int id = in.readInt();
+				String name = in.readString();
+				if (name == null) {
+					ids[id] = Node.getNullId();
+				} else if (intern) {
+					ids[id] = dictionary.intern(name);
+				} else {
+					ids[id] = dictionary.getId(name);
+				}
+				identity &= (ids[id] == id);
+			}
+			remap = identity ? null : ids;
+
+			long nRecords = bytes / ProbabilitiesFileWriter.RECORD_SIZE;
+			if (nRecords - 1 > Integer.MAX_VALUE) {
+				throw new IOException("Too many probabilities in file: " + file);
+			}
+			size = (int) (nRecords - 1);
+
+			in.seek(recordsPosition);
+			chunks = new ByteBuffer[(int) ((nRecords + CHUNK_MASK) >>> CHUNK_SHIFT)];
+			for (int c = 0; c < chunks.length; c++) {
+				long chunkRecords = Math.min(1L << CHUNK_SHIFT, nRecords - ((long) c << CHUNK_SHIFT));
+				chunks[c] = in.mapBytes(chunkRecords * ProbabilitiesFileWriter.RECORD_SIZE);
+			}
+			if (record(size).getInt(offset(size)) != ProbabilitiesFileWriter.END_OF_RECORDS) {
+				throw new IOException("Truncated probabilities file: " + file);
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		} catch (RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks whether a file has been written by a
+	 * {@link ProbabilitiesFileWriter}, rather than being a text file.
+	 */
+	public static boolean isProbabilitiesFile(File file) throws IOException {
+		if (file.length() < 4) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt() == ProbabilitiesFileWriter.MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the number of probabilities
+	 */
+	public int size() {
+		return size;
+	}
+
+	private int id(int fileId) {
+		return remap == null ? fileId : remap[fileId];
+	}
+
+	/**
+	 * @return the chunk of the <em>i</em>-th record
+	 */
+	private ByteBuffer record(int i) {
+		return chunks[i >>> CHUNK_SHIFT];
+	}
+
+	/**
+	 * @return the position of the <em>i</em>-th record in its chunk
+	 */
+	private static int offset(int i) {
+		return (i & CHUNK_MASK) * ProbabilitiesFileWriter.RECORD_SIZE;
+	}
+
+	/**
+	 * @return the id of the leader of the <em>i</em>-th probability, or -1 if
+	 *         it is not in the dictionary
+	 */
+	public int getLeaderId(int i) {
+		return id(record(i).getInt(offset(i)));
+	}
+
+	/**
+	 * @return the id of the follower of the <em>i</em>-th probability, or -1
+	 *         if it is not in the dictionary
+	 */
+	public int getFollowerId(int i) {
+		return id(record(i).getInt(offset(i) + 4));
+	}
+
+	public double getProbability(int i) {
+		return record(i).getDouble(offset(i) + 8);
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,128 @@
+package edu.toronto.cs.propagation.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes propagation probabilities in a binary format, to be read by
+ * {@link ProbabilitiesFileReader}.
+ * <p>
+ * After the header come the probabilities, written one at a time as records
+ * of 16 bytes (leader id, follower id, probability as a double) with the ids
+ * of a {@link NodeDictionary}, and a last record with leader -1. Then comes
+ * the table of the names of the nodes used by the records, with their ids,
+ * and the position of that table as the last 8 bytes of the file. Names are
+ * only looked up when the file is closed, so nodes can be added to the
+ * dictionary while writing.
+ */
+public class ProbabilitiesFileWriter implements Closeable {
+
+	/**
+	 * The first bytes of the format, "SPPB".
+	 */
+	static final int MAGIC = 0x53505042;
+
+	/**
+	 * The version of the format written. Readers accept this version and all
+	 * the previous ones.
+	 */
+	static final int VERSION = 1;
+
+	static final int RECORD_SIZE = 16;
+
+	static final int END_OF_RECORDS = -1;
+
+	private final BinaryFileWriter out;
+
+	private final NodeDictionary dictionary;
+
+	/**
+	 * Whether every node id has been used in a record.
+	 */
+	private boolean[] used = new boolean[1024];
+
+	private int maxUsedId = -1;
+
+	private long size = 0;
+
+	/**
+	 * Creates a file.
+	 *
+	 * @param file
+	 *            the file
+	 * @param dictionary
+	 *            the dictionary of the node ids that will be written
+	 */
+	public ProbabilitiesFileWriter(File file, NodeDictionary dictionary) throws IOException {
+		this.dictionary = dictionary;
+		out = new BinaryFileWriter(file);
+		out.writeHeader(MAGIC, VERSION);
+	}
+
+	private void use(int id) {
+		if (id < 0) {
+			throw new IllegalArgumentException("Invalid node id " + id);
+		}
+		if (id >= used.length) {
+			used = Arrays.copyOf(used, Math.max(id + 1, 2 * used.length));
+		}
+		used[id] = true;
+		if (id > maxUsedId) {
+			maxUsedId = id;
+		}
+	}
+
+	/**
+	 * Writes the probability of an arc.
+	 */
+	public void write(int leaderId, int followerId, double probability) throws IOException {
+		use(leaderId);
+		use(followerId);
+		out.writeInt(leaderId);
+		out.writeInt(followerId);
+		out.writeDouble(probability);
+		size++;
+	}
+
+	/**
+	 * @return the number of probabilities written so far
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Writes the names of the nodes and closes the file.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a node id is not in the dictionary
+	 */
+	public void close() throws IOException {
+		try {
+			out.writeInt(END_OF_RECORDS);
+			out.writeInt(END_OF_RECORDS);
+			out.writeDouble(0.0);
+
+			long namesPosition = out.position();
+			int nNames = 0;
+			for (int id = 0; id <= maxUsedId; id++) {
+				if (used[id]) {
+					nNames++;
+				}
+			}
+			out.writeInt(maxUsedId + 1);
+			out.writeInt(nNames);
+			for (int id = 0; id <= maxUsedId; id++) {
+				if (used[id]) {
+					out.writeInt(id);
+					out.writeString(dictionary.getName(id));
+				}
+			}
+			out.writeLong(namesPosition);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,502 @@
+package edu.toronto.cs.propagation.util;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a text file of tab-separated fields, line by line, through memory
+ * mapping.
+ * <p>
+ * The current line is split into fields by scanning its bytes; fields are
+ * then parsed straight from the mapped bytes. Node names are looked up in a
+ * {@link NodeDictionary} through a cache keyed by their bytes, so a
+ * {@link String} is created only the first time a name is seen. Integers are
+ * parsed without creating any object; decimal numbers are parsed exactly when
+ * their digits and exponent are small enough for a single floating-point
+ * operation to be correctly rounded, and by {@link Double#parseDouble(String)}
+ * otherwise.
+ * <p>
+ * Files larger than 2GB are supported, by mapping a window that moves along
+ * the file, but a single line must fit in a window. Lines end with '\n' or
+ * "\r\n", and names are decoded as UTF-8. An instance is not thread-safe.
+ */
+public class TabSeparatedFileParser implements Closeable {
+
+	private static final long WINDOW_SIZE = 1L << 28;
+
+	/**
+	 * The largest power of ten that is an exact double.
+	 */
+	private static final int MAX_EXACT_POWER_OF_TEN = 22;
+
+	private static final double[] POWERS_OF_TEN = new double[MAX_EXACT_POWER_OF_TEN + 1];
+	static {
+		POWERS_OF_TEN[0] = 1.0;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+		}
+	}
+
+	private final File path;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	private final long size;
+
+	private MappedByteBuffer window;
+
+	private long windowStart;
+
+	private int windowLength;
+
+	/**
+	 * The position in the window of the line after the current one.
+	 */
+	private int next;
+
+	private int lineStart;
+
+	private int lineEnd;
+
+	private int numberOfFields;
+
+	private int[] fieldStarts = new int[8];
+
+	private int[] fieldEnds = new int[8];
+
+	private long lineNumber;
+
+	/**
+	 * The dictionary of the names in the cache.
+	 */
+	private NodeDictionary cacheDictionary;
+
+	/**
+	 * Open addressing table of the names seen so far: the id plus one (0 for
+	 * an empty slot), the hash and the position of the bytes of the name in
+	 * {@link #cacheBytes}.
+	 */
+	private int[] cacheIds = new int[1024];
+
+	private int[] cacheHashes = new int[1024];
+
+	private int[] cacheOffsets = new int[1024];
+
+	private int[] cacheLengths = new int[1024];
+
+	private int cacheSize = 0;
+
+	private byte[] cacheBytes = new byte[1 << 14];
+
+	private int cacheBytesSize = 0;
+
+	private byte[] scratch = new byte[64];
+
+	public TabSeparatedFileParser(File file) throws IOException {
+		this.path = file;
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		this.size = channel.size();
+		this.window = null;
+		this.windowStart = 0;
+		this.windowLength = 0;
+		this.next = 0;
+		this.lineNumber = 0;
+	}
+
+	public TabSeparatedFileParser(String fileName) throws IOException {
+		this(new File(fileName));
+	}
+
+	private void map(long start) throws IOException {
+		windowStart = start;
+		windowLength = (int) Math.min(WINDOW_SIZE, size - start);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, windowLength);
+	}
+
+	/**
+	 * Moves to the next line and splits it into fields.
+	 *
+	 * @return false if there are no more lines
+	 */
+	public boolean nextLine() throws IOException {
+		if (window == null) {
+			if (size == 0) {
+				return false;
+			}
+			map(0);
+		}
+		if (windowStart + next >= size) {
+			return false;
+		}
+		int end = indexOfNewline(next);
+		if (end == -1 && windowStart + windowLength < size) {
+			// The line continues past the window
+			map(windowStart + next);
+			next = 0;
+			end = indexOfNewline(0);
+			if (end == -1 && windowStart + windowLength < size) {
+				throw new IOException("Line " + (lineNumber + 1) + " of " + path + " is longer than " + WINDOW_SIZE + " bytes");
+			}
+		}
+		if (end == -1) {
+			end = windowLength;
+		}
+		lineStart = next;
+		lineEnd = end;
+		next = end + 1;
+		if (lineEnd > lineStart && window.get(lineEnd - 1) == '\r') {
+			lineEnd--;
+		}
+		lineNumber++;
+
+		numberOfFields = 0;
+		int fieldStart = lineStart;
+		for (int pos = lineStart; pos <= lineEnd; pos++) {
+			if (pos == lineEnd || window.get(pos) == '\t') {
+				if (numberOfFields == fieldStarts.length) {
+					fieldStarts = IntArrays.grow(fieldStarts, numberOfFields + 1);
+					fieldEnds = IntArrays.grow(fieldEnds, numberOfFields + 1);
+				}
+				fieldStarts[numberOfFields] = fieldStart;
+				fieldEnds[numberOfFields] = pos;
+				numberOfFields++;
+				fieldStart = pos + 1;
+			}
+		}
+		return true;
+	}
+
+	private int indexOfNewline(int from) {
+		for (int pos = from; pos < windowLength; pos++) {
+			if (window.get(pos) == '\n') {
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of the current line, starting from 1
+	 */
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return the number of fields of the current line; an empty line has one
+	 *         empty field
+	 */
+	public int numberOfFields() {
+		return numberOfFields;
+	}
+
+	/**
+	 * @return the first byte of the current line, or -1 if it is empty
+	 */
+	public int firstByte() {
+		return lineEnd > lineStart ? window.get(lineStart) : -1;
+	}
+
+	public boolean isEmpty(int field) {
+		checkField(field);
+		return fieldEnds[field] == fieldStarts[field];
+	}
+
+	private void checkField(int field) {
+		if (field < 0 || field >= numberOfFields) {
+			throw new IllegalArgumentException("Line " + lineNumber + " of " + path + " has no field " + field + ": '" + getLine() + "'");
+		}
+	}
+
+	/**
+	 * @return the current line, as a string
+	 */
+	public String getLine() {
+		return decode(lineStart, lineEnd);
+	}
+
+	/**
+	 * @return a field of the current line, as a string
+	 */
+	public String getString(int field) {
+		checkField(field);
+		return decode(fieldStarts[field], fieldEnds[field]);
+	}
+
+	/**
+	 * Compares a field of the current line with an ASCII string, ignoring
+	 * case, without decoding the field.
+	 *
+	 * @param ascii
+	 *            a string made only of ASCII characters
+	 */
+	public boolean fieldEqualsIgnoreCase(int field, String ascii) {
+		checkField(field);
+		int start = fieldStarts[field];
+		int length = ascii.length();
+		if (fieldEnds[field] - start != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			int b = window.get(start + i);
+			int c = ascii.charAt(i);
+			if (b != c && toLowerCase(b) != toLowerCase(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLowerCase(int c) {
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+
+	private String decode(int start, int end) {
+		int length = end - start;
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, 2 * scratch.length)];
+		}
+		for (int i = 0; i < length; i++) {
+			scratch[i] = window.get(start + i);
+		}
+		return new String(scratch, 0, length, BinaryFileWriter.UTF8);
+	}
+
+	/**
+	 * Gets the id of the node named by a field, adding it to a dictionary if
+	 * it is new.
+	 *
+	 * @see NodeDictionary#intern(String)
+	 */
+	public int internNode(int field, NodeDictionary dictionary) {
+		return lookupNode(field, dictionary, true);
+	}
+
+	/**
+	 * Gets the id of the node named by a field, without adding it.
+	 *
+	 * @return the id of the node, or -1 if it is not in the dictionary
+	 * @see NodeDictionary#getId(String)
+	 */
+	public int getNodeId(int field, NodeDictionary dictionary) {
+		return lookupNode(field, dictionary, false);
+	}
+
+	private int lookupNode(int field, NodeDictionary dictionary, boolean add) {
+		checkField(field);
+		if (dictionary != cacheDictionary) {
+			clearCache(cacheIds.length);
+			cacheDictionary = dictionary;
+		}
+		int start = fieldStarts[field];
+		int length = fieldEnds[field] - start;
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < length; i++) {
+			hash = (hash ^ window.get(start + i)) * 0x01000193;
+		}
+		int mask = cacheIds.length - 1;
+		int slot = hash & mask;
+		while (cacheIds[slot] != 0) {
+			if (cacheHashes[slot] == hash && cacheLengths[slot] == length && equalsCached(cacheOffsets[slot], start, length)) {
+				return cacheIds[slot] - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		String name = decode(start, start + length);
+		int id = add ? dictionary.intern(name) : dictionary.getId(name);
+		if (id < 0) {
+			return id;
+		}
+		if (cacheBytesSize + length > cacheBytes.length) {
+			byte[] grown = new byte[Math.max(cacheBytesSize + length, 2 * cacheBytes.length)];
+			System.arraycopy(cacheBytes, 0, grown, 0, cacheBytesSize);
+			cacheBytes = grown;
+		}
+		for (int i = 0; i < length; i++) {
+			cacheBytes[cacheBytesSize + i] = window.get(start + i);
+		}
+		cacheIds[slot] = id + 1;
+		cacheHashes[slot] = hash;
+		cacheOffsets[slot] = cacheBytesSize;
+		cacheLengths[slot] = length;
+		cacheBytesSize += length;
+		if (++cacheSize * 2 > cacheIds.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	private boolean equalsCached(int offset, int start, int length) {
+		for (int i = 0; i < length; i++) {
+			if (cacheBytes[offset + i] != window.get(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void clearCache(int capacity) {
+		cacheIds = new int[capacity];
+		cacheHashes = new int[capacity];
+		cacheOffsets = new int[capacity];
+		cacheLengths = new int[capacity];
+		cacheSize = 0;
+		cacheBytesSize = 0;
+	}
+
+	private void rehash() {
+		int[] ids = cacheIds;
+		int[] hashes = cacheHashes;
+		int[] offsets = cacheOffsets;
+		int[] lengths = cacheLengths;
+		cacheIds = new int[2 * ids.length];
+		cacheHashes = new int[2 * ids.length];
+		cacheOffsets = new int[2 * ids.length];
+		cacheLengths = new int[2 * ids.length];
+		int mask = cacheIds.length - 1;
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] != 0) {
+				int slot = hashes[i] & mask;
+				while (cacheIds[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				cacheIds[slot] = ids[i];
+				cacheHashes[slot] = hashes[i];
+				cacheOffsets[slot] = offsets[i];
+				cacheLengths[slot] = lengths[i];
+			}
+		}
+	}
+
+	/**
+	 * Parses a field as a decimal integer, like {@link Long#parseLong(String)}.
+	 */
+	public long parseLong(int field) {
+		checkField(field);
+		int pos = fieldStarts[field];
+		int end = fieldEnds[field];
+		boolean negative = false;
+		if (pos < end && (window.get(pos) == '-' || window.get(pos) == '+')) {
+			negative = window.get(pos) == '-';
+			pos++;
+		}
+		if (pos == end) {
+			throw new NumberFormatException("Not a number: '" + getString(field) + "'");
+		}
+		// Accumulate negatively, to parse Long.MIN_VALUE
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long result = 0;
+		for (; pos < end; pos++) {
+			int digit = window.get(pos) - '0';
+			if (digit < 0 || digit > 9 || result < limit / 10 || result * 10 < limit + digit) {
+				throw new NumberFormatException("Not a valid long: '" + getString(field) + "'");
+			}
+			result = result * 10 - digit;
+		}
+		return negative ? result : -result;
+	}
+
+	/**
+	 * Parses a field as a decimal integer, like {@link Integer#parseInt(String)}.
+	 */
+	public int parseInt(int field) {
+		long value = parseLong(field);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Not a valid int: '" + getString(field) + "'");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Parses a field as a floating-point number, with the same result as
+	 * {@link Double#parseDouble(String)}.
+	 */
+	public double parseDouble(int field) {
+		checkField(field);
+		int pos = fieldStarts[field];
+		int end = fieldEnds[field];
+		boolean negative = false;
+		if (pos < end && (window.get(pos) == '-' || window.get(pos) == '+')) {
+			negative = window.get(pos) == '-';
+			pos++;
+		}
+		// Fast path: at most 15 significant digits and a small exponent, so
+		// that the digits and the power of ten are exact doubles, and a single
+		// correctly rounded multiplication or division gives the result
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean seenDigit = false;
+		boolean seenPoint = false;
+		for (; pos < end; pos++) {
+			byte b = window.get(pos);
+			if (b >= '0' && b <= '9') {
+				seenDigit = true;
+				if (mantissa != 0 || b != '0') {
+					if (++digits > 15) {
+						return Double.parseDouble(getString(field));
+					}
+					mantissa = mantissa * 10 + (b - '0');
+				}
+				if (seenPoint) {
+					exponent--;
+				}
+			} else if (b == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				break;
+			}
+		}
+		if (!seenDigit) {
+			return Double.parseDouble(getString(field));
+		}
+		if (pos < end) {
+			byte b = window.get(pos);
+			if ((b != 'e' && b != 'E') || ++pos == end) {
+				return Double.parseDouble(getString(field));
+			}
+			boolean negativeExponent = false;
+			if (window.get(pos) == '-' || window.get(pos) == '+') {
+				negativeExponent = window.get(pos) == '-';
+				if (++pos == end) {
+					return Double.parseDouble(getString(field));
+				}
+			}
+			int explicit = 0;
+			for (; pos < end; pos++) {
+				int digit = window.get(pos) - '0';
+				if (digit < 0 || digit > 9 || explicit > 100000) {
+					return Double.parseDouble(getString(field));
+				}
+				explicit = explicit * 10 + digit;
+			}
+			exponent += negativeExponent ? -explicit : explicit;
+		}
+		double value;
+		if (mantissa == 0) {
+			value = 0.0;
+		} else if (exponent >= 0 && exponent <= MAX_EXACT_POWER_OF_TEN) {
+			value = mantissa * POWERS_OF_TEN[exponent];
+		} else if (exponent < 0 && exponent >= -MAX_EXACT_POWER_OF_TEN) {
+			value = mantissa / POWERS_OF_TEN[-exponent];
+		} else {
+			return Double.parseDouble(getString(field));
+		}
+		return negative ? -value : value;
+	}
+
+	public void close() throws IOException {
+		window = null;
+		file.close();
+	}
+}
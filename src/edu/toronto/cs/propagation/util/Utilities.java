@@ -24,12 +24,14 @@ import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import cern.colt.function.DoubleDoubleFunction;
-import cern.colt.function.IntIntDoubleFunction;
 import cern.colt.list.IntArrayList;
 import cern.colt.list.ObjectArrayList;
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
 import cern.colt.matrix.impl.SparseObjectMatrix2D;
 import edu.toronto.cs.propagation.SocialNetwork;
 import edu.toronto.cs.propagation.ic.ICModel;
@@ -49,33 +51,33 @@ public class Utilities {
 	}
 
 	/**
-	 * For two matrices A, B, computes sum( (a_ij - b_ij)^2 ).
+	 * For two sets of probabilities A, B over the same graph, computes sum(
+	 * (a_ij - b_ij)^2 ).
 	 * 
 	 * @param mA
 	 * @param mB
 	 * @return
 	 */
-	public static double l2sq(SparseDoubleMatrix2D mA, SparseDoubleMatrix2D mB) {
-		return mA.aggregate(mB, new DoubleDoubleFunction() {
-			public double apply(double x, double y) {
-				// sum
-				return x + y;
-			}
-		}, new DoubleDoubleFunction() {
-			public double apply(double x, double y) {
-				// diff sq
-				double d = x - y;
-				return d * d;
-			}
-		});
-
+	public static double l2sq(ArcProbabilities mA, ArcProbabilities mB) {
+		if (mA.getGraph() != mB.getGraph()) {
+			throw new IllegalArgumentException(
+					"Can not compare probabilities defined over different graphs");
+		}
+		double sum = 0.0;
+		for (int arcId = 0; arcId < mA.size(); arcId++) {
+			double d = mA.get(arcId) - mB.get(arcId);
+			sum += d * d;
+		}
+		return sum;
 	}
 
 	public static void createPrefuseXML(String snFile, String modelFile,
-			String xmlFile, Node startNode, double minProb, double maxProb)
+			String xmlFile, String startNodeName, double minProb, double maxProb)
 			throws IOException {
-		ICModel model = new ICModel(new SocialNetwork(getIterator(snFile)),
-				getIterator(modelFile));
+		ICModel model = new ICModel(new SocialNetwork(new File(snFile)),
+				new File(modelFile));
+		NodeDictionary dictionary = model.getSn().getNodeDictionary();
+		int startNodeId = dictionary.getId(startNodeName);
 		System.out.println("Social network size: nodes="
 				+ model.getSn().sizeNodes() + ", arcs="
 				+ model.getSn().sizeArcs());
@@ -95,7 +97,7 @@ public class Utilities {
 		pw.println("<!-- arcs -->");
 		for (Arc arc : model.getSn().getArcs()) {
 			int leaderId = arc.getLeaderId();
-			if (leaderId == Node.getNullId() || leaderId == startNode.getId()) {
+			if (leaderId == Node.getNullId() || leaderId == startNodeId) {
 				continue;
 			}
 			int followerId = arc.getFollowerId();
@@ -105,8 +107,8 @@ public class Utilities {
 				continue;
 			}
 
-			Node leader = new Node(leaderId);
-			Node follower = new Node(followerId);
+			Node leader = new Node(dictionary, leaderId);
+			Node follower = new Node(dictionary, followerId);
 			pw.println("<edge source=\"" + leader.getName() + "\" target=\""
 					+ follower.getName() + "\"></edge>");
 
@@ -257,6 +259,87 @@ public class Utilities {
 		return nodeChunks;
 	}
 
+	/**
+	 * Runs a list of tasks on a pool of threads, and returns their results in
+	 * the order of the tasks, regardless of the order in which they finish.
+	 * With one thread, or one task, the tasks are run in the calling thread.
+	 * 
+	 * @param tasks
+	 *            the tasks
+	 * @param numberOfThreads
+	 *            the maximum number of tasks to run at the same time
+	 * @return the result of every task
+	 * @throws IllegalStateException
+	 *             if a task throws a checked exception or the calling thread
+	 *             is interrupted; unchecked exceptions are re-thrown
+	 */
+	public static <T> List<T> runTasks(List<? extends Callable<T>> tasks,
+			int numberOfThreads) {
+		if (numberOfThreads <= 1 || tasks.size() <= 1) {
+			return runTasks(tasks, null);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				numberOfThreads, tasks.size()));
+		try {
+			return runTasks(tasks, executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs a list of tasks on an existing pool of threads, which can be
+	 * reused for many lists, and returns their results in the order of the
+	 * tasks.
+	 * 
+	 * @param tasks
+	 *            the tasks
+	 * @param executor
+	 *            the pool of threads, or null to run the tasks in the calling
+	 *            thread
+	 * @return the result of every task
+	 * @throws IllegalStateException
+	 *             if a task throws a checked exception or the calling thread
+	 *             is interrupted; unchecked exceptions are re-thrown
+	 */
+	public static <T> List<T> runTasks(List<? extends Callable<T>> tasks,
+			ExecutorService executor) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		if (executor == null || tasks.size() <= 1) {
+			for (Callable<T> task : tasks) {
+				try {
+					results.add(task.call());
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return results;
+		}
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+			for (Callable<T> task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for tasks", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			} else {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return results;
+	}
+
 	public static <T> List<Set<T>> partition(List<T> originalList,
 			int requestedNumOfPartitions) {
 		List<Set<T>> chunks = new ArrayList<Set<T>>();
@@ -299,7 +382,8 @@ public class Utilities {
 		return chunks;
 	}
 
-	public static String toString(Int2IntOpenHashMap structure) {
+	public static String toString(NodeDictionary dictionary,
+			Int2IntOpenHashMap structure) {
 		String ret = "";
 
 		if (structure == null) {
@@ -308,13 +392,14 @@ public class Utilities {
 
 		for (int v : structure.keySet()) {
 			int num = structure.get(v);
-			ret += Node.getName(v) + " :\t" + num + "\n";
+			ret += dictionary.getName(v) + " :\t" + num + "\n";
 		}
 
 		return ret;
 	}
 
 	public static String toString(
+			NodeDictionary dictionary,
 			Int2ObjectOpenHashMap<Int2ObjectOpenHashMap<SetOfParentsLogLEntry>> structure) {
 
 		String ret = "";
@@ -328,7 +413,7 @@ public class Utilities {
 					.get(v);
 			for (int size : inter.keySet()) {
 				SetOfParentsLogLEntry entry = inter.get(size);
-				ret += Node.getName(v) + "\t"
+				ret += dictionary.getName(v) + "\t"
 						+ entry.getSelectedParents().toString() + "\t"
 						+ entry.getLogL() + "\n";
 			}
@@ -339,6 +424,7 @@ public class Utilities {
 	}
 
 	public static String toString_1(
+			NodeDictionary dictionary,
 			Int2ObjectOpenHashMap<Int2ObjectOpenHashMap<SetOfParentsLogLEntry>> structure) {
 
 		String ret = "";
@@ -351,10 +437,10 @@ public class Utilities {
 			Int2ObjectOpenHashMap<SetOfParentsLogLEntry> inter = structure
 					.get(v);
 			for (int size : inter.keySet()) {
-				ret += Node.getName(v) + "\t<-\t" + size + "\t{ ";
+				ret += dictionary.getName(v) + "\t<-\t" + size + "\t{ ";
 				SetOfParentsLogLEntry entry = inter.get(size);
 				for (int u : entry.getSelectedParents()) {
-					ret += Node.getName(u) + " ";
+					ret += dictionary.getName(u) + " ";
 				}
 				ret += "}\t" + entry.getLogL() + "\n";
 			}
@@ -392,34 +478,35 @@ public class Utilities {
 		return outurl;
 	}
 
-	public static TreeSet<Arc> getSortedNonZeroArcs(SparseDoubleMatrix2D matrix) {
-		final TreeSet<Arc> arcs = new TreeSet<Arc>();
-		matrix.forEachNonZero(new IntIntDoubleFunction() {
-			public double apply(int u, int v, double value) {
-				if (value != 0.0) {
-					arcs.add(new Arc(u, v));
-				}
-				return value;
+	public static TreeSet<Arc> getSortedNonZeroArcs(NodeDictionary dictionary,
+			ArcProbabilities probs) {
+		TreeSet<Arc> arcs = new TreeSet<Arc>();
+		CSRGraph graph = probs.getGraph();
+		for (int arcId = 0; arcId < probs.size(); arcId++) {
+			if (probs.get(arcId) != 0.0) {
+				arcs.add(new Arc(dictionary, graph.getArcLeaderId(arcId),
+						graph.getArcFollowerId(arcId)));
 			}
-		});
+		}
 		return arcs;
 	}
 
 	public static TreeSet<Arc> getSortedArcsWithHighProbability(
-			SparseDoubleMatrix2D matrix, final double minProbability) {
-		final TreeSet<Arc> arcs = new TreeSet<Arc>();
-		matrix.forEachNonZero(new IntIntDoubleFunction() {
-			public double apply(int u, int v, double value) {
-				if (value > minProbability) {
-					arcs.add(new Arc(u, v));
-				}
-				return value;
+			NodeDictionary dictionary, ArcProbabilities probs,
+			double minProbability) {
+		TreeSet<Arc> arcs = new TreeSet<Arc>();
+		CSRGraph graph = probs.getGraph();
+		for (int arcId = 0; arcId < probs.size(); arcId++) {
+			if (probs.get(arcId) > minProbability) {
+				arcs.add(new Arc(dictionary, graph.getArcLeaderId(arcId),
+						graph.getArcFollowerId(arcId)));
 			}
-		});
+		}
 		return arcs;
 	}
 
-	public static TreeSet<Arc> getSortedNonZeroArcs(SparseObjectMatrix2D matrix) {
+	public static TreeSet<Arc> getSortedNonZeroArcs(NodeDictionary dictionary,
+			SparseObjectMatrix2D matrix) {
 		final TreeSet<Arc> arcs = new TreeSet<Arc>();
 		int cardinality = matrix.cardinality();
 		IntArrayList rowList = new IntArrayList(cardinality), columnList = new IntArrayList(
@@ -427,21 +514,11 @@ public class Utilities {
 		ObjectArrayList valueList = new ObjectArrayList(cardinality);
 		matrix.getNonZeros(rowList, columnList, valueList);
 		for (int i = 0; i < rowList.size(); i++) {
-			arcs.add(new Arc(rowList.get(i), columnList.get(i)));
+			arcs.add(new Arc(dictionary, rowList.get(i), columnList.get(i)));
 		}
 		return arcs;
 	}
 
-	public static void setToZero(final SparseDoubleMatrix2D matrix) {
-		matrix.forEachNonZero(new IntIntDoubleFunction() {
-			public double apply(int u, int v, double value) {
-				matrix.setQuick(u, v, 0.0);
-				return 0.0;
-			}
-		});
-		matrix.trimToSize();
-	}
-
 	public static int max(int a, int b) {
 		int result = a;
 		if (b > result) {
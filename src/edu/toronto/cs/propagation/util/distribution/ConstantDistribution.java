@@ -1,5 +1,7 @@
 package edu.toronto.cs.propagation.util.distribution;
 
+import java.util.SplittableRandom;
+
 public class ConstantDistribution implements TimeDistribution {
 	int x;
 	public ConstantDistribution(int x) {
@@ -8,4 +10,7 @@ public class ConstantDistribution implements TimeDistribution {
 	public double sample() {
 		return x;
 	}
+	public double sample(SplittableRandom random) {
+		return x;
+	}
 }
@@ -1,5 +1,7 @@
 package edu.toronto.cs.propagation.util.distribution;
 
+import java.util.SplittableRandom;
+
 public class ExponentialDistribution implements TimeDistribution {
 	double lambda;
 	public ExponentialDistribution(double lambda) {
@@ -8,4 +10,7 @@ public class ExponentialDistribution implements TimeDistribution {
 	public double sample() {
 		return -Math.log(Math.random())/lambda;
 	}
+	public double sample(SplittableRandom random) {
+		return -Math.log(1.0 - random.nextDouble())/lambda;
+	}
 }
@@ -1,5 +1,12 @@
 package edu.toronto.cs.propagation.util.distribution;
 
+import java.util.SplittableRandom;
+
 public interface TimeDistribution {
 	public double sample();
+
+	/**
+	 * Samples using a given generator, instead of the shared one.
+	 */
+	public double sample(SplittableRandom random);
 }